@@ -0,0 +1,209 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Annotates variants through the ExAC bulk variant service. The variants are
+ * posted in chunks, which run concurrently on the given executor so its size
+ * bounds the number of requests in flight. The response of each chunk is
+ * read with a streaming parser that keeps only the wanted fields of each
+ * variant, and a chunk that fails is retried on its own.
+ *
+ */
+public class EXACBulkAnnotator {
+	private static final String VARIANT_FIELD = "variant";
+
+	private final HttpClient client;
+	private final String resourceURL;
+	private final ExecutorService executor;
+	private final int chunkSize;
+	private final int retries;
+
+	/**
+	 * Creates an annotator
+	 *
+	 * @param client
+	 *            HTTP client
+	 * @param resourceURL
+	 *            URL of the ExAC service
+	 * @param executor
+	 *            Executor the chunks run on
+	 * @param chunkSize
+	 *            Number of variants in a request
+	 * @param retries
+	 *            Number of times a failed chunk is retried
+	 */
+	public EXACBulkAnnotator(HttpClient client, String resourceURL,
+			ExecutorService executor, int chunkSize, int retries) {
+		this.client = client;
+		this.resourceURL = resourceURL;
+		this.executor = executor;
+		this.chunkSize = Math.max(1, chunkSize);
+		this.retries = Math.max(0, retries);
+	}
+
+	/**
+	 * Returns the fields of each variant found by the service. Fields the
+	 * variant does not have are returned as empty strings.
+	 *
+	 * @param variantIds
+	 *            Variants as chromosome-position-reference-alternate
+	 * @param columns
+	 *            Fields of the variant object to return
+	 * @return Field values by field name, by variant
+	 * @throws IOException
+	 *             A chunk failed after all of its retries
+	 */
+	public Map<String, Map<String, String>> annotate(List<String> variantIds,
+			final EXACJsonPaths columns) throws IOException {
+		List<Future<Map<String, Map<String, String>>>> chunks = new ArrayList<Future<Map<String, Map<String, String>>>>();
+		for (int start = 0; start < variantIds.size(); start += chunkSize) {
+			final List<String> chunk = variantIds.subList(start,
+					Math.min(variantIds.size(), start + chunkSize));
+			chunks.add(executor
+					.submit(new Callable<Map<String, Map<String, String>>>() {
+						@Override
+						public Map<String, Map<String, String>> call()
+								throws Exception {
+							return annotateChunk(chunk, columns);
+						}
+					}));
+		}
+
+		Map<String, Map<String, String>> annotations = new HashMap<String, Map<String, String>>();
+		try {
+			for (Future<Map<String, Map<String, String>>> chunk : chunks) {
+				annotations.putAll(chunk.get());
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while annotating variants");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		} finally {
+			for (Future<Map<String, Map<String, String>>> chunk : chunks) {
+				chunk.cancel(true);
+			}
+		}
+		return annotations;
+	}
+
+	private Map<String, Map<String, String>> annotateChunk(
+			List<String> variantIds, EXACJsonPaths columns) throws IOException,
+			InterruptedException {
+		JsonArrayBuilder jsonArray = Json.createArrayBuilder();
+		for (String variantId : variantIds) {
+			jsonArray.add(variantId);
+		}
+		String body = jsonArray.build().toString();
+
+		for (int attempt = 0;; attempt++) {
+			HttpPost post = new HttpPost(this.resourceURL
+					+ "/rest/bulk/variant");
+			post.setEntity(new StringEntity(body, ContentType.create(
+					"application/json", StandardCharsets.UTF_8)));
+			HttpResponse response = null;
+			try {
+				response = client.execute(post);
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200) {
+					throw new IOException("ExAC bulk request failed with status "
+							+ status);
+				}
+				InputStream content = response.getEntity().getContent();
+				try {
+					return readResponse(content, columns);
+				} finally {
+					content.close();
+				}
+			} catch (IOException | JsonException e) {
+				if (attempt >= retries) {
+					throw new IOException("ExAC bulk request of "
+							+ variantIds.size() + " variants failed: "
+							+ e.getMessage(), e);
+				}
+				if (response != null) {
+					EntityUtils.consumeQuietly(response.getEntity());
+				}
+				// Back off before the chunk is sent again
+				Thread.sleep(1000L * (attempt + 1));
+			}
+		}
+	}
+
+	/**
+	 * Reads a bulk response, an object of variant objects by variant id,
+	 * keeping only the wanted fields of the variant object of each entry
+	 */
+	private Map<String, Map<String, String>> readResponse(
+			InputStream content, EXACJsonPaths columns) {
+		Map<String, Map<String, String>> annotations = new HashMap<String, Map<String, String>>();
+		JsonParser parser = Json.createParser(content);
+		try {
+			if (!parser.hasNext() || parser.next() != Event.START_OBJECT) {
+				throw new JsonException("Unexpected ExAC bulk response");
+			}
+			while (parser.next() == Event.KEY_NAME) {
+				String variantId = parser.getString();
+				String[] values = readEntry(parser, parser.next(), columns);
+				if (values != null) {
+					annotations.put(variantId, columns.toMap(values));
+				}
+			}
+		} finally {
+			parser.close();
+		}
+		return annotations;
+	}
+
+	/**
+	 * Reads the entry of a variant starting with the given event. Returns the
+	 * wanted fields of its variant object, or null if it has none.
+	 */
+	private String[] readEntry(JsonParser parser, Event event,
+			EXACJsonPaths columns) {
+		if (event != Event.START_OBJECT) {
+			EXACJsonPaths.skip(parser, event);
+			return null;
+		}
+		String[] values = null;
+		while (parser.next() == Event.KEY_NAME) {
+			String key = parser.getString();
+			Event next = parser.next();
+			if (key.equals(VARIANT_FIELD) && next == Event.START_OBJECT) {
+				values = columns.read(parser);
+			} else {
+				EXACJsonPaths.skip(parser, next);
+			}
+		}
+		return values;
+	}
+}
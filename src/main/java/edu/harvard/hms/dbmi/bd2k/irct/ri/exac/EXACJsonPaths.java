@@ -0,0 +1,179 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+/**
+ * A set of fields of a JSON object, named with nested fields separated by a
+ * dot, compiled once so values can be read without parsing the names again.
+ * Each name is split into its segments, and the segments of all names form a
+ * tree that the streaming parser is walked along; fields outside the tree are
+ * skipped.
+ * <p>
+ * Values are returned as strings in the order of the names. Numbers keep
+ * their JSON text, booleans are TRUE or FALSE, and a field that is missing,
+ * null, an object or an array is an empty string.
+ *
+ */
+public class EXACJsonPaths {
+	private final String[] names;
+	private final Node root = new Node();
+
+	/**
+	 * Compiles a set of field names
+	 *
+	 * @param names
+	 *            Field names
+	 */
+	public EXACJsonPaths(String[] names) {
+		this.names = names.clone();
+		for (int namei = 0; namei < names.length; namei++) {
+			Node node = root;
+			for (String segment : split(names[namei])) {
+				node = node.child(segment);
+			}
+			node.column = namei;
+		}
+	}
+
+	/**
+	 * Returns the field names
+	 *
+	 * @return Field names
+	 */
+	public String[] getNames() {
+		return names.clone();
+	}
+
+	/**
+	 * Reads the values of the fields of the object the parser has just
+	 * started. The parser is left at the end of the object.
+	 *
+	 * @param parser
+	 *            Parser whose last event was the start of the object
+	 * @return Values in the order of the names
+	 */
+	public String[] read(JsonParser parser) {
+		String[] values = new String[names.length];
+		Arrays.fill(values, "");
+		readObject(parser, root, values);
+		return values;
+	}
+
+	/**
+	 * Returns the values of a row by field name
+	 *
+	 * @param values
+	 *            Values in the order of the names
+	 * @return Values by field name
+	 */
+	public Map<String, String> toMap(String[] values) {
+		Map<String, String> map = new HashMap<String, String>();
+		for (int namei = 0; namei < names.length; namei++) {
+			map.put(names[namei], values[namei]);
+		}
+		return map;
+	}
+
+	/**
+	 * Skips the value starting with the given event
+	 *
+	 * @param parser
+	 *            Parser
+	 * @param event
+	 *            Last event of the parser
+	 */
+	public static void skip(JsonParser parser, Event event) {
+		if (event != Event.START_ARRAY && event != Event.START_OBJECT) {
+			return;
+		}
+		int depth = 1;
+		while (depth > 0) {
+			Event next = parser.next();
+			if (next == Event.START_ARRAY || next == Event.START_OBJECT) {
+				depth++;
+			} else if (next == Event.END_ARRAY || next == Event.END_OBJECT) {
+				depth--;
+			}
+		}
+	}
+
+	private void readObject(JsonParser parser, Node node, String[] values) {
+		while (parser.next() == Event.KEY_NAME) {
+			Node child = node.children == null ? null : node.children
+					.get(parser.getString());
+			Event event = parser.next();
+			if (child == null) {
+				skip(parser, event);
+			} else if (event == Event.START_OBJECT && child.children != null) {
+				readObject(parser, child, values);
+			} else if (child.column != -1) {
+				values[child.column] = format(parser, event);
+				skip(parser, event);
+			} else {
+				skip(parser, event);
+			}
+		}
+	}
+
+	/**
+	 * Returns the scalar value the parser has just read as a string
+	 *
+	 * @param parser
+	 *            Parser
+	 * @param event
+	 *            Last event of the parser
+	 * @return Value
+	 */
+	public static String format(JsonParser parser, Event event) {
+		switch (event) {
+		case VALUE_STRING:
+		case VALUE_NUMBER:
+			return parser.getString();
+		case VALUE_TRUE:
+			return "TRUE";
+		case VALUE_FALSE:
+			return "FALSE";
+		default:
+			return "";
+		}
+	}
+
+	private static String[] split(String name) {
+		List<String> segments = new ArrayList<String>();
+		int start = 0;
+		int dot;
+		while ((dot = name.indexOf('.', start)) != -1) {
+			segments.add(name.substring(start, dot));
+			start = dot + 1;
+		}
+		segments.add(name.substring(start));
+		return segments.toArray(new String[segments.size()]);
+	}
+
+	private static class Node {
+		private Map<String, Node> children;
+		private int column = -1;
+
+		private Node child(String segment) {
+			if (children == null) {
+				children = new HashMap<String, Node>();
+			}
+			Node child = children.get(segment);
+			if (child == null) {
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+	}
+}
@@ -0,0 +1,286 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+
+import javax.json.Json;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.util.EntityUtils;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
+
+/**
+ * Fetches a region of a chromosome from an ExAC region service as fixed size
+ * tiles aligned to multiples of the tile size, so a large region is split
+ * into requests ExAC can answer and overlapping regions share their tiles.
+ * The tiles run concurrently on the given executor, with a bounded number
+ * requested ahead of the tile being written, and their responses are cached by service, chromosome and tile for every user of the resource. A
+ * tile that is already being fetched is waited for rather than fetched again.
+ * <p>
+ * The tiles are written to the result set in coordinate order. Rows outside
+ * the region are dropped, as are rows repeated from the previous tile, such
+ * as a gene that spans both.
+ *
+ */
+public class EXACRegionTiler {
+	private final String resourceURL;
+	private final ExecutorService executor;
+	private final long tileSize;
+	private final int retries;
+	private final int window;
+	private final ExpiringCache<String, byte[]> tiles;
+	private final ConcurrentMap<String, Future<byte[]>> fetching = new ConcurrentHashMap<String, Future<byte[]>>();
+
+	/**
+	 * Creates a tiler
+	 *
+	 * @param resourceURL
+	 *            URL of the ExAC service
+	 * @param executor
+	 *            Executor the tiles are fetched on
+	 * @param tileSize
+	 *            Number of bases in a tile
+	 * @param retries
+	 *            Number of times a failed tile is retried
+	 * @param window
+	 *            Maximum number of tiles of a region requested but not yet
+	 *            written
+	 * @param cacheSize
+	 *            Maximum number of tiles cached
+	 * @param cacheTTL
+	 *            Time to live of a cached tile in milliseconds
+	 */
+	public EXACRegionTiler(String resourceURL, ExecutorService executor,
+			long tileSize, int retries, int window, int cacheSize,
+			long cacheTTL) {
+		this.resourceURL = resourceURL;
+		this.executor = executor;
+		this.tileSize = Math.max(1, tileSize);
+		this.retries = Math.max(0, retries);
+		this.window = Math.max(1, window);
+		this.tiles = new ExpiringCache<String, byte[]>(cacheSize, cacheTTL);
+	}
+
+	/**
+	 * Writes the rows of a region into a result set
+	 *
+	 * @param client
+	 *            HTTP client
+	 * @param service
+	 *            Region service, such as variants_in_region
+	 * @param chromosome
+	 *            Chromosome
+	 * @param start
+	 *            First position of the region
+	 * @param stop
+	 *            Last position of the region
+	 * @param converter
+	 *            Converter of the result set
+	 * @return Number of rows written
+	 * @throws IOException
+	 *             A tile could not be fetched
+	 * @throws ResultSetException
+	 *             A row could not be written
+	 * @throws PersistableException
+	 *             The rows could not be merged
+	 */
+	public long fetch(HttpClient client, String service, String chromosome,
+			long start, long stop, EXACResultConverter converter)
+			throws IOException, ResultSetException, PersistableException {
+		// Only a window of tiles is outstanding, so a large region neither
+		// floods the executor nor holds every tile in memory at once
+		Deque<Future<byte[]>> regionTiles = new ArrayDeque<Future<byte[]>>();
+		long nextTileStart = (start / tileSize) * tileSize;
+		while (nextTileStart <= stop && regionTiles.size() < window) {
+			regionTiles.add(getTile(client, service, chromosome, nextTileStart));
+			nextTileStart += tileSize;
+		}
+
+		long rows = 0;
+		Set<String> previousRows = new HashSet<String>();
+		while (!regionTiles.isEmpty()) {
+			byte[] tile = awaitTile(regionTiles.poll());
+			if (nextTileStart <= stop) {
+				regionTiles.add(getTile(client, service, chromosome,
+						nextTileStart));
+				nextTileStart += tileSize;
+			}
+
+			Set<String> tileRows = new HashSet<String>();
+			JsonParser parser = Json.createParser(new ByteArrayInputStream(
+					tile));
+			try {
+				if (!parser.hasNext() || parser.next() != Event.START_ARRAY) {
+					throw new JsonException("Unexpected ExAC region response");
+				}
+				Event event;
+				while ((event = parser.next()) != Event.END_ARRAY) {
+					if (event != Event.START_OBJECT) {
+						EXACJsonPaths.skip(parser, event);
+						continue;
+					}
+					String[] row = converter.readRow(parser);
+					String rowKey = getRowKey(row);
+					tileRows.add(rowKey);
+					if (!previousRows.contains(rowKey)
+							&& isInRegion(converter.getColumns(), row, start,
+									stop)) {
+						converter.writeRow(row);
+						rows++;
+					}
+				}
+			} catch (JsonException e) {
+				throw new IOException(e.getMessage(), e);
+			} finally {
+				parser.close();
+			}
+			previousRows = tileRows;
+		}
+		return rows;
+	}
+
+	private Future<byte[]> getTile(final HttpClient client,
+			final String service, final String chromosome, final long tileStart) {
+		final String key = service + "/" + chromosome + "-" + tileStart;
+		final byte[] cached = tiles.get(key);
+		if (cached != null) {
+			FutureTask<byte[]> done = new FutureTask<byte[]>(
+					new Callable<byte[]>() {
+						@Override
+						public byte[] call() {
+							return cached;
+						}
+					});
+			done.run();
+			return done;
+		}
+
+		FutureTask<byte[]> task = new FutureTask<byte[]>(
+				new Callable<byte[]>() {
+					@Override
+					public byte[] call() throws Exception {
+						try {
+							byte[] tile = fetchTile(client, service, chromosome,
+									tileStart);
+							tiles.put(key, tile);
+							return tile;
+						} finally {
+							fetching.remove(key);
+						}
+					}
+				});
+		Future<byte[]> running = fetching.putIfAbsent(key, task);
+		if (running != null) {
+			return running;
+		}
+		executor.execute(task);
+		return task;
+	}
+
+	private byte[] fetchTile(HttpClient client, String service,
+			String chromosome, long tileStart) throws IOException,
+			InterruptedException {
+		String urlString = resourceURL + "/rest/region/" + service + "/"
+				+ chromosome + "-" + tileStart + "-"
+				+ (tileStart + tileSize - 1);
+		for (int attempt = 0;; attempt++) {
+			HttpResponse response = null;
+			try {
+				response = client.execute(new HttpGet(urlString));
+				int status = response.getStatusLine().getStatusCode();
+				if (status != 200) {
+					throw new IOException("ExAC region request failed with status "
+							+ status);
+				}
+				return EntityUtils.toByteArray(response.getEntity());
+			} catch (IOException e) {
+				if (attempt >= retries) {
+					throw new IOException("ExAC region request " + urlString
+							+ " failed: " + e.getMessage(), e);
+				}
+				if (response != null) {
+					EntityUtils.consumeQuietly(response.getEntity());
+				}
+				// Back off before the tile is requested again
+				Thread.sleep(1000L * (attempt + 1));
+			}
+		}
+	}
+
+	private byte[] awaitTile(Future<byte[]> tile) throws IOException {
+		try {
+			return tile.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while fetching the region");
+		} catch (ExecutionException e) {
+			throw new IOException(e.getCause().getMessage(), e.getCause());
+		}
+	}
+
+	private static String getRowKey(String[] row) {
+		StringBuilder rowKey = new StringBuilder();
+		for (String value : row) {
+			rowKey.append(value).append('\u0000');
+		}
+		return rowKey.toString();
+	}
+
+	/**
+	 * Returns true if a row overlaps the region, by its start and stop
+	 * columns or by its pos column. Rows without them are kept.
+	 */
+	private static boolean isInRegion(EXACJsonPaths columns, String[] row,
+			long start, long stop) {
+		String[] names = columns.getNames();
+		int startColumn = -1;
+		int stopColumn = -1;
+		int positionColumn = -1;
+		for (int column = 0; column < names.length; column++) {
+			if (names[column].equals("start")) {
+				startColumn = column;
+			} else if (names[column].equals("stop")) {
+				stopColumn = column;
+			} else if (names[column].equals("pos")) {
+				positionColumn = column;
+			}
+		}
+
+		try {
+			if (startColumn != -1 && stopColumn != -1) {
+				return Long.parseLong(row[startColumn]) <= stop
+						&& Long.parseLong(row[stopColumn]) >= start;
+			} else if (positionColumn != -1) {
+				long position = Long.parseLong(row[positionColumn]);
+				return position >= start && position <= stop;
+			}
+		} catch (NumberFormatException e) {
+			// Rows without a position are kept
+		}
+		return true;
+	}
+}
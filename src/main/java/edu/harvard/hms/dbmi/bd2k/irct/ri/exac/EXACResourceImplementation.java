@@ -3,27 +3,30 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
 
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 import javax.json.Json;
-import javax.json.JsonArray;
-import javax.json.JsonArrayBuilder;
-import javax.json.JsonObject;
-import javax.json.JsonReader;
-import javax.json.JsonStructure;
-import javax.json.JsonValue;
-import javax.json.JsonValue.ValueType;
+import javax.json.JsonException;
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
 
 import org.apache.http.HttpResponse;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.methods.HttpGet;
-import org.apache.http.client.methods.HttpPost;
-import org.apache.http.entity.StringEntity;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.util.EntityUtils;
 
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindInformationInterface;
@@ -47,15 +50,26 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.DaemonThreadFactory;
 
 public class EXACResourceImplementation implements
 		QueryResourceImplementationInterface,
 		PathResourceImplementationInterface,
 		ProcessResourceImplementationInterface {
+	private static final String BULK_SERVICE = "bulk";
+	private static final List<String> TILED_REGION_SERVICES = Arrays.asList(
+			"variants_in_region", "genes_in_region", "coverage_array");
 
 	private ResourceState resourceState;
 	private String resourceName;
 	private String resourceURL;
+	private int bulkChunkSize;
+	private int bulkRetries;
+	private ExecutorService bulkWorkers;
+	private int maxConnections;
+	private EXACVariantCache variantCache;
+	private ExecutorService regionWorkers;
+	private EXACRegionTiler regionTiler;
 	private String[] exacColumns = { "allele_count", "allele_freq", "allele_num",
 			"alt", "chrom", "filter", "hom_count", "pop_acs.African",
 			"pop_acs.East Asian", "pop_acs.European (Finnish)",
@@ -74,6 +88,7 @@ public class EXACResourceImplementation implements
 			"quality_metrics.QD", "quality_metrics.ReadPosRankSum",
 			"quality_metrics.VQSLOD", "ref", "rsid", "site_quality",
 			"variant_id", "xpos", "xstart", "xstop" };
+	private EXACJsonPaths exacPaths = new EXACJsonPaths(exacColumns);
 
 	@Override
 	public void setup(Map<String, String> parameters)
@@ -84,9 +99,82 @@ public class EXACResourceImplementation implements
 		}
 		this.resourceName = parameters.get("resourceName");
 		this.resourceURL = parameters.get("resourceURL");
+
+		int bulkConcurrency;
+		int regionTileSize;
+		int regionConcurrency;
+		int regionTileCacheSize;
+		int regionTileCacheTTL;
+		try {
+			this.bulkChunkSize = getIntParameter(parameters, "bulkChunkSize",
+					500);
+			this.bulkRetries = getIntParameter(parameters, "bulkRetries", 3);
+			bulkConcurrency = getIntParameter(parameters, "bulkConcurrency", 4);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException("Invalid bulk parameter "
+					+ e.getMessage());
+		}
+		try {
+			regionTileSize = getIntParameter(parameters, "regionTileSize",
+					100000);
+			regionConcurrency = getIntParameter(parameters,
+					"regionConcurrency", 4);
+			regionTileCacheSize = getIntParameter(parameters,
+					"regionTileCacheSize", 256);
+			regionTileCacheTTL = getIntParameter(parameters,
+					"regionTileCacheTTL", 60);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException("Invalid region parameter "
+					+ e.getMessage());
+		}
+		if (bulkWorkers == null) {
+			bulkWorkers = Executors.newFixedThreadPool(
+					Math.max(1, bulkConcurrency), new DaemonThreadFactory(
+							"EXAC-bulk"));
+		}
+		// Regions are tiled unless the tile size is 0
+		if (regionTileSize > 0 && regionTiler == null) {
+			regionWorkers = Executors.newFixedThreadPool(
+					Math.max(1, regionConcurrency), new DaemonThreadFactory(
+							"EXAC-region"));
+			regionTiler = new EXACRegionTiler(resourceURL, regionWorkers,
+					regionTileSize, bulkRetries,
+					2 * Math.max(1, regionConcurrency), regionTileCacheSize,
+					regionTileCacheTTL * 60000L);
+		}
+		// Enough connections for every concurrent chunk or tile of a request
+		this.maxConnections = Math.max(2,
+				Math.max(bulkConcurrency, regionConcurrency));
+
+		// Variant cache, kept on disk when a directory is given
+		String variantCacheDirectory = parameters.get("variantCacheDirectory");
+		if (variantCacheDirectory != null && variantCache == null) {
+			try {
+				long timeToLive = getIntParameter(parameters, "variantCacheTTL",
+						720) * 3600000L;
+				long maxSize = getIntParameter(parameters, "variantCacheSize",
+						1024) * 1048576L;
+				variantCache = new EXACVariantCache(new File(
+						variantCacheDirectory), timeToLive, maxSize);
+			} catch (NumberFormatException e) {
+				throw new ResourceInterfaceException(
+						"Invalid variant cache parameter " + e.getMessage());
+			} catch (IOException e) {
+				e.printStackTrace();
+				throw new ResourceInterfaceException(
+						"Unable to open the variant cache " + e.getMessage());
+			}
+		}
+
 		this.resourceState = ResourceState.READY;
 	}
 
+	private int getIntParameter(Map<String, String> parameters, String name,
+			int defaultValue) {
+		String value = parameters.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
 	@Override
 	public List<Entity> getPathRelationship(Entity path,
 			OntologyRelationship relationship, SecureSession session)
@@ -175,6 +263,7 @@ public class EXACResourceImplementation implements
 		WhereClause whereClause = (WhereClause) clause;
 		// Create Query
 		String urlString = null;
+		ByteBuffer cacheKey = null;
 
 		// BY ENSEMBL
 		if (whereClause.getPredicateType().getName().equals("ENSEMBL")) {
@@ -195,22 +284,44 @@ public class EXACResourceImplementation implements
 					+ whereClause.getStringValues().get("QUERY") + service;
 		} else if (whereClause.getPredicateType().getName().equals("REGION")) {
 			// BY REGION
-			urlString = resourceURL + "/rest"
-					+ getResourcePathFromPUI(whereClause.getField().getPui())
-					+ "/" + whereClause.getStringValues().get("CHROMOSOME")
-					+ "-" + whereClause.getStringValues().get("START");
+			String resourcePath = getResourcePathFromPUI(whereClause
+					.getField().getPui());
+			urlString = resourceURL + "/rest" + resourcePath + "/"
+					+ whereClause.getStringValues().get("CHROMOSOME") + "-"
+					+ whereClause.getStringValues().get("START");
 			if (whereClause.getStringValues().containsKey("STOP")) {
 				urlString += "-" + whereClause.getStringValues().get("STOP");
+
+				// Ranges of the list services are fetched as tiles
+				String[] regionPath = resourcePath.split("/");
+				if (regionTiler != null && regionPath.length == 3
+						&& TILED_REGION_SERVICES.contains(regionPath[2])) {
+					try {
+						long start = Long.parseLong(whereClause
+								.getStringValues().get("START").trim());
+						long stop = Long.parseLong(whereClause
+								.getStringValues().get("STOP").trim());
+						return runTiledRegionQuery(client, regionPath[2],
+								whereClause.getStringValues().get("CHROMOSOME")
+										.trim(), start, stop, result);
+					} catch (NumberFormatException e) {
+						// Left for ExAC to report
+					}
+				}
 			}
 
 		} else if (whereClause.getPredicateType().getName().equals("VARIANT")) {
 			// BY VARIANT
-			urlString = resourceURL + "/rest"
-					+ getResourcePathFromPUI(whereClause.getField().getPui())
-					+ "/" + whereClause.getStringValues().get("CHROMOSOME")
+			String resourcePath = getResourcePathFromPUI(whereClause
+					.getField().getPui());
+			String variantId = whereClause.getStringValues().get("CHROMOSOME")
 					+ "-" + whereClause.getStringValues().get("POSITION") + "-"
 					+ whereClause.getStringValues().get("REFERENCE") + "-"
 					+ whereClause.getStringValues().get("VARIANT");
+			urlString = resourceURL + "/rest" + resourcePath + "/" + variantId;
+			if (variantCache != null) {
+				cacheKey = EXACVariantCache.createKey(resourcePath, variantId);
+			}
 		}
 		// Run Query
 		if (urlString == null) {
@@ -219,22 +330,41 @@ public class EXACResourceImplementation implements
 			return result;
 		}
 
-		HttpGet get = new HttpGet(urlString);
 		try {
-			HttpResponse response = client.execute(get);
-			JsonReader reader = Json.createReader(response.getEntity()
-					.getContent());
-			JsonStructure results = reader.read();
-			if (results.getValueType().equals(ValueType.ARRAY)) {
-				result = convertJsonArrayToResultSet((JsonArray) results,
-						result);
+			// Variants answered before are read from the cache
+			byte[] cached = getCached(cacheKey);
+			InputStream content;
+			if (cached != null) {
+				content = new ByteArrayInputStream(cached);
 			} else {
-				result = convertJsonObjectToResultSet((JsonObject) results,
-						result);
+				HttpResponse response = client.execute(new HttpGet(urlString));
+				if (cacheKey != null
+						&& response.getStatusLine().getStatusCode() == 200) {
+					byte[] body = EntityUtils.toByteArray(response.getEntity());
+					putCached(cacheKey, body);
+					content = new ByteArrayInputStream(body);
+				} else {
+					content = response.getEntity().getContent();
+				}
+			}
+			// Rows are written as the response is parsed
+			JsonParser parser = Json.createParser(content);
+			try {
+				Event event = parser.hasNext() ? parser.next() : null;
+				if (event == Event.START_ARRAY) {
+					result = convertJsonArrayToResultSet(parser, result);
+				} else if (event == Event.START_OBJECT) {
+					result = convertJsonObjectToResultSet(parser, result);
+				} else {
+					throw new JsonException("Unexpected ExAC response");
+				}
+			} finally {
+				parser.close();
 			}
-			reader.close();
 			result.setResultStatus(ResultStatus.COMPLETE);
-		} catch (IOException e) {
+		} catch (IOException | JsonException | ResultSetException
+				| PersistableException e) {
+			e.printStackTrace();
 			result.setResultStatus(ResultStatus.ERROR);
 			result.setMessage(e.getMessage());
 		}
@@ -244,6 +374,24 @@ public class EXACResourceImplementation implements
 		return result;
 	}
 
+	private Result runTiledRegionQuery(HttpClient client, String service,
+			String chromosome, long start, long stop, Result result) {
+		FileResultSet mrs = (FileResultSet) result.getData();
+		EXACResultConverter converter = new EXACResultConverter(mrs);
+		try {
+			regionTiler.fetch(client, service, chromosome, start, stop,
+					converter);
+			converter.finish();
+			result.setData(mrs);
+			result.setResultStatus(ResultStatus.COMPLETE);
+		} catch (IOException | ResultSetException | PersistableException e) {
+			e.printStackTrace();
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(e.getMessage());
+		}
+		return result;
+	}
+
 	@Override
 	public Result runProcess(SecureSession session, IRCTProcess process,
 			Result result) throws ResourceInterfaceException {
@@ -264,29 +412,41 @@ public class EXACResourceImplementation implements
 			// Loop through all rows and get the data needed for the bulk
 			// request
 			resultSetField.beforeFirst();
-			JsonArrayBuilder jsonArray = Json.createArrayBuilder();
+			List<String> variantIds = new ArrayList<String>();
 			while (resultSetField.next()) {
-
-				String queryString = resultSetField.getString(chromosomeColumn);
-				queryString += "-" + resultSetField.getString(positionColumn);
-				queryString += "-" + resultSetField.getString(referenceColumn);
-				queryString += "-" + resultSetField.getString(variantColumn);
-
-				// Run the Bulk request(s)
-				jsonArray.add(queryString);
-
+				variantIds.add(getVariantId(resultSetField, chromosomeColumn,
+						positionColumn, referenceColumn, variantColumn));
 			}
 
-			HttpPost post = new HttpPost(this.resourceURL + "/rest/bulk/variant");
-
-			// Set Header
+			// Run the bulk requests for the variants that are not cached
 			try {
-				post.setEntity(new StringEntity(jsonArray.build().toString()));
-				HttpResponse response = client.execute(post);
-				JsonReader reader = Json.createReader(response.getEntity()
-						.getContent());
-				JsonObject responseObject = reader.readObject();
-				
+				Map<String, Map<String, String>> annotations = new HashMap<String, Map<String, String>>();
+				List<String> misses = new ArrayList<String>();
+				for (String variantId : new LinkedHashSet<String>(variantIds)) {
+					byte[] cached = getCached(EXACVariantCache.createKey(
+							BULK_SERVICE, variantId));
+					if (cached == null) {
+						misses.add(variantId);
+					} else if (cached.length != 0) {
+						annotations.put(variantId,
+								EXACVariantCache.decodeValues(cached));
+					}
+				}
+				if (!misses.isEmpty()) {
+					Map<String, Map<String, String>> fetched = new EXACBulkAnnotator(
+							client, this.resourceURL, bulkWorkers,
+							bulkChunkSize, bulkRetries).annotate(misses,
+							this.exacPaths);
+					// Variants not found are cached as empty responses
+					for (String variantId : misses) {
+						Map<String, String> values = fetched.get(variantId);
+						putCached(EXACVariantCache.createKey(BULK_SERVICE,
+								variantId), values == null ? new byte[0]
+								: EXACVariantCache.encodeValues(values));
+					}
+					annotations.putAll(fetched);
+				}
+
 				//Merge the results back into the result set
 				resultSetField.beforeFirst();
 				rs.first();
@@ -297,18 +457,14 @@ public class EXACResourceImplementation implements
 						rs.updateString(column.getName(), resultSetField.getString(column.getName()));
 					}
 					//Add the new data if it exists
-					String queryString = resultSetField.getString(chromosomeColumn);
-					queryString += "-" + resultSetField.getString(positionColumn);
-					queryString += "-" + resultSetField.getString(referenceColumn);
-					queryString += "-" + resultSetField.getString(variantColumn);
-					
-					if(responseObject.containsKey(queryString)) {
-						JsonObject varObject = responseObject.getJsonObject(queryString).getJsonObject("variant");
-						for(String newColumnString : this.exacColumns) {
-							String value = getValue(varObject, newColumnString);
-							if(value != null) {
-								rs.updateString(newColumnString, value.toString());
-							}
+					Map<String, String> values = annotations
+							.get(getVariantId(resultSetField,
+									chromosomeColumn, positionColumn,
+									referenceColumn, variantColumn));
+					if (values != null) {
+						for (String newColumnString : this.exacColumns) {
+							rs.updateString(newColumnString,
+									values.get(newColumnString));
 						}
 					}
 				}
@@ -330,6 +486,51 @@ public class EXACResourceImplementation implements
 		return result;
 	}
 
+	/**
+	 * Returns the cached response of a key, or null if it is not cached. A
+	 * cache that cannot be read is treated as a miss.
+	 */
+	private byte[] getCached(ByteBuffer key) {
+		if (variantCache == null || key == null) {
+			return null;
+		}
+		try {
+			return variantCache.get(key);
+		} catch (IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	private void putCached(ByteBuffer key, byte[] response) {
+		if (variantCache == null || key == null) {
+			return;
+		}
+		try {
+			variantCache.put(key, response);
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Returns the variant cache, or null if the resource has none
+	 *
+	 * @return Variant cache
+	 */
+	public EXACVariantCache getVariantCache() {
+		return variantCache;
+	}
+
+	private String getVariantId(ResultSet resultSet, String chromosomeColumn,
+			String positionColumn, String referenceColumn, String variantColumn)
+			throws ResultSetException {
+		return resultSet.getString(chromosomeColumn) + "-"
+				+ resultSet.getString(positionColumn) + "-"
+				+ resultSet.getString(referenceColumn) + "-"
+				+ resultSet.getString(variantColumn);
+	}
+
 //	private JsonValue getValueFromJson(JsonObject varObject, String newColumnString) {
 ////		String[] columnPath = newColumnString.split("\\.");
 //		
@@ -412,88 +613,26 @@ public class EXACResourceImplementation implements
 		return ResultDataType.TABULAR;
 	}
 
-	private Result convertJsonObjectToResultSet(JsonObject exacJSONResults,
-			Result result) {
-		// TODO: BUILD OUT
-		return result;
-	}
-
-	private Result convertJsonArrayToResultSet(JsonArray exacJSONResults,
-			Result result) {
-
+	private Result convertJsonObjectToResultSet(JsonParser parser,
+			Result result) throws ResultSetException, PersistableException {
 		FileResultSet mrs = (FileResultSet) result.getData();
-		try {
-			if (exacJSONResults.size() == 0) {
-				result.setData(mrs);
-				return result;
-			}
-			// Setup columns
-			JsonObject columnObject = (JsonObject) exacJSONResults.get(0);
-
-			List<String> fields = getNames("", columnObject);
-			for (String field : fields) {
-				Column column = new Column();
-				column.setName(field);
-				column.setDataType(PrimitiveDataType.STRING);
-				mrs.appendColumn(column);
-			}
-
-			// Add data
-			for (JsonValue val : exacJSONResults) {
-				JsonObject obj = (JsonObject) val;
-				mrs.appendRow();
-				for (String field : fields) {
-					mrs.updateString(field, getValue(obj, field));
-				}
-			}
-		} catch (ResultSetException | PersistableException e) {
-			e.printStackTrace();
-		}
+		EXACResultConverter converter = new EXACResultConverter(mrs);
+		converter.convertObject(parser);
+		converter.finish();
 
 		result.setData(mrs);
 		return result;
 	}
 
-	private String getValue(JsonObject obj, String field) {
-		if (field.contains(".")) {
-			String thisField = field.split("\\.")[0];
-			String remaining = field.replaceFirst(thisField + ".", "");
-			return getValue(obj.getJsonObject(thisField), remaining);
-		}
-		if (obj.containsKey(field)) {
-			ValueType vt = obj.get(field).getValueType();
-			if (vt == ValueType.NUMBER) {
-				return obj.getJsonNumber(field).toString();
-			} else if (vt == ValueType.TRUE) {
-				return "TRUE";
-			} else if (vt == ValueType.FALSE) {
-				return "FALSE";
-			}
-			return obj.getString(field);
-		}
-		return "";
-	}
-
-	private List<String> getNames(String prefix, JsonObject obj) {
-		List<String> returns = new ArrayList<String>();
-		for (String field : obj.keySet()) {
-			if (obj.get(field).getValueType() == ValueType.OBJECT) {
-				if (prefix.equals("")) {
-					returns.addAll(getNames(field, obj.getJsonObject(field)));
-				} else {
-					returns.addAll(getNames(prefix + "." + field,
-							obj.getJsonObject(field)));
-				}
-			} else if (obj.get(field).getValueType() != ValueType.ARRAY) {
-				if (prefix.equals("")) {
-					returns.add(field);
-				} else {
-					returns.add(prefix + "." + field);
-				}
-			}
-		}
+	private Result convertJsonArrayToResultSet(JsonParser parser,
+			Result result) throws ResultSetException, PersistableException {
+		FileResultSet mrs = (FileResultSet) result.getData();
+		EXACResultConverter converter = new EXACResultConverter(mrs);
+		converter.convertArray(parser);
+		converter.finish();
 
-		return returns;
+		result.setData(mrs);
+		return result;
 	}
 
 	private String getResourcePathFromPUI(String pui) {
@@ -513,7 +652,9 @@ public class EXACResourceImplementation implements
 	}
 
 	private HttpClient createClient(SecureSession session) {
-		HttpClientBuilder returns = HttpClientBuilder.create();
+		HttpClientBuilder returns = HttpClientBuilder.create()
+				.setMaxConnPerRoute(maxConnections)
+				.setMaxConnTotal(maxConnections);
 		return returns.build();
 	};
 
@@ -0,0 +1,173 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.json.stream.JsonParser;
+import javax.json.stream.JsonParser.Event;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+
+/**
+ * Converts ExAC responses into rows of a result set while they are parsed,
+ * so a response is never held in memory as a whole. The columns are the
+ * fields of the first object read, with nested fields separated by a dot;
+ * arrays are not columns. Later objects are read through the compiled paths
+ * of those columns, and their other fields are skipped.
+ * <p>
+ * Rows are merged into the result set as they are written. The columns are
+ * kept across responses, so several responses can be written into the same
+ * result set.
+ *
+ */
+public class EXACResultConverter {
+	private final FileResultSet rs;
+	private EXACJsonPaths columns;
+
+	/**
+	 * Creates a converter
+	 *
+	 * @param rs
+	 *            Result set without columns
+	 */
+	public EXACResultConverter(FileResultSet rs) {
+		this.rs = rs;
+	}
+
+	/**
+	 * Returns the columns, or null until the first object has been read
+	 *
+	 * @return Columns
+	 */
+	public EXACJsonPaths getColumns() {
+		return columns;
+	}
+
+	/**
+	 * Writes a row for each object of the array the parser has just started.
+	 * Elements that are not objects are skipped.
+	 *
+	 * @param parser
+	 *            Parser whose last event was the start of the array
+	 * @return Number of rows written
+	 * @throws ResultSetException
+	 *             A row could not be written
+	 * @throws PersistableException
+	 *             The rows could not be merged
+	 */
+	public long convertArray(JsonParser parser) throws ResultSetException,
+			PersistableException {
+		long rows = 0;
+		Event event;
+		while ((event = parser.next()) != Event.END_ARRAY) {
+			if (event == Event.START_OBJECT) {
+				writeRow(readRow(parser));
+				rows++;
+			} else {
+				EXACJsonPaths.skip(parser, event);
+			}
+		}
+		return rows;
+	}
+
+	/**
+	 * Writes a row for the object the parser has just started
+	 *
+	 * @param parser
+	 *            Parser whose last event was the start of the object
+	 * @throws ResultSetException
+	 *             The row could not be written
+	 * @throws PersistableException
+	 *             The row could not be merged
+	 */
+	public void convertObject(JsonParser parser) throws ResultSetException,
+			PersistableException {
+		writeRow(readRow(parser));
+	}
+
+	/**
+	 * Reads the values of the object the parser has just started, creating
+	 * the columns from it if it is the first object read
+	 *
+	 * @param parser
+	 *            Parser whose last event was the start of the object
+	 * @return Values in the order of the columns
+	 * @throws ResultSetException
+	 *             The columns could not be created
+	 */
+	public String[] readRow(JsonParser parser) throws ResultSetException {
+		if (columns != null) {
+			return columns.read(parser);
+		}
+
+		Map<String, String> fields = new LinkedHashMap<String, String>();
+		readFields(parser, "", fields);
+		List<String> names = new ArrayList<String>(fields.keySet());
+		for (String name : names) {
+			Column column = new Column();
+			column.setName(name);
+			column.setDataType(PrimitiveDataType.STRING);
+			rs.appendColumn(column);
+		}
+		columns = new EXACJsonPaths(names.toArray(new String[names.size()]));
+		return fields.values().toArray(new String[fields.size()]);
+	}
+
+	/**
+	 * Writes a row
+	 *
+	 * @param values
+	 *            Values in the order of the columns
+	 * @throws ResultSetException
+	 *             The row could not be written
+	 * @throws PersistableException
+	 *             The row could not be merged
+	 */
+	public void writeRow(String[] values) throws ResultSetException,
+			PersistableException {
+		rs.appendRow();
+		for (int column = 0; column < values.length; column++) {
+			rs.updateString(column, values[column]);
+		}
+		if (rs.getRow() % (rs.getMaxPending() - 1) == 0) {
+			rs.merge();
+		}
+	}
+
+	/**
+	 * Merges the rows written since the last merge
+	 *
+	 * @throws ResultSetException
+	 *             The result set could not be read
+	 * @throws PersistableException
+	 *             The rows could not be merged
+	 */
+	public void finish() throws ResultSetException, PersistableException {
+		rs.merge();
+	}
+
+	private void readFields(JsonParser parser, String prefix,
+			Map<String, String> fields) {
+		while (parser.next() == Event.KEY_NAME) {
+			String name = prefix.isEmpty() ? parser.getString() : prefix + "."
+					+ parser.getString();
+			Event event = parser.next();
+			if (event == Event.START_OBJECT) {
+				readFields(parser, name, fields);
+			} else if (event == Event.START_ARRAY) {
+				EXACJsonPaths.skip(parser, event);
+			} else {
+				fields.put(name, EXACJsonPaths.format(parser, event));
+			}
+		}
+	}
+}
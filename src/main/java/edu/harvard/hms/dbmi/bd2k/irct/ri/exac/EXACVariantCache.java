@@ -0,0 +1,473 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A disk backed cache of ExAC responses by variant, so variants annotated
+ * before are answered locally and across restarts. Entries are appended to
+ * segment files in a directory, and an in memory index maps each key to the
+ * position of its latest entry. The index is rebuilt from the segments when
+ * the cache is opened.
+ * <p>
+ * Keys are packed into a few bytes: the chromosome as a number, the position
+ * as an int and the alleles two bits a base when they are made of ACGT only.
+ * Contigs other than 1-22, X, Y and MT are written out by name.
+ * Entries expire after a time to live. Once the segments take up more than
+ * the maximum size the oldest segment is deleted along with its entries.
+ *
+ */
+public class EXACVariantCache {
+	private static final String SEGMENT_PREFIX = "variants-";
+	private static final String SEGMENT_SUFFIX = ".dat";
+	private static final String BASES = "ACGT";
+
+	private final File directory;
+	private final long timeToLive;
+	private final long maxSize;
+	private final long segmentSize;
+
+	private final Deque<Segment> segments = new ArrayDeque<Segment>();
+	private final LinkedHashMap<ByteBuffer, Location> index = new LinkedHashMap<ByteBuffer, Location>();
+	private long size;
+	private long hits;
+	private long misses;
+
+	/**
+	 * Opens a cache, indexing the entries already in the directory
+	 *
+	 * @param directory
+	 *            Directory of the segment files
+	 * @param timeToLive
+	 *            Time to live of an entry in milliseconds
+	 * @param maxSize
+	 *            Maximum size of the segment files in bytes
+	 * @throws IOException
+	 *             The directory could not be read
+	 */
+	public EXACVariantCache(File directory, long timeToLive, long maxSize)
+			throws IOException {
+		this.directory = directory;
+		this.timeToLive = timeToLive;
+		this.maxSize = maxSize;
+		// A few segments so the oldest can be dropped without losing most
+		this.segmentSize = Math.max(1024 * 1024, maxSize / 8);
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Cannot create the variant cache directory "
+					+ directory);
+		}
+		File[] files = directory.listFiles();
+		Map<Integer, File> segmentFiles = new HashMap<Integer, File>();
+		for (File file : files == null ? new File[0] : files) {
+			String name = file.getName();
+			if (name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX)) {
+				try {
+					segmentFiles.put(Integer.parseInt(name.substring(
+							SEGMENT_PREFIX.length(),
+							name.length() - SEGMENT_SUFFIX.length())), file);
+				} catch (NumberFormatException e) {
+					// Not a segment
+				}
+			}
+		}
+		Integer[] ids = segmentFiles.keySet().toArray(new Integer[0]);
+		Arrays.sort(ids);
+		for (Integer id : ids) {
+			Segment segment = new Segment(id, segmentFiles.get(id));
+			segments.addLast(segment);
+			loadSegment(segment);
+			size += segment.size;
+		}
+		if (segments.isEmpty()) {
+			addSegment();
+		}
+		evict();
+	}
+
+	/**
+	 * Returns the key of a variant for a service, or null if the variant id
+	 * is not chromosome-position-reference-alternate or is too long to cache
+	 *
+	 * @param service
+	 *            Service the response is from
+	 * @param variantId
+	 *            Variant id
+	 * @return Key
+	 */
+	public static ByteBuffer createKey(String service, String variantId) {
+		String[] components = variantId.split("-");
+		if (components.length != 4) {
+			return null;
+		}
+		int position;
+		try {
+			position = Integer.parseInt(components[1].trim());
+		} catch (NumberFormatException e) {
+			return null;
+		}
+
+		byte[] serviceBytes = service.getBytes(StandardCharsets.UTF_8);
+		byte[] chromosome = packChromosome(components[0].trim());
+		byte[] reference = packAllele(components[2].trim());
+		byte[] alternate = packAllele(components[3].trim());
+		int keyLength = serviceBytes.length + 1 + chromosome.length + 4
+				+ reference.length + alternate.length;
+		// The length of a key is stored in two bytes
+		if (keyLength > 0xFFFF) {
+			return null;
+		}
+		ByteBuffer key = ByteBuffer.allocate(keyLength);
+		key.put(serviceBytes).put((byte) 0);
+		key.put(chromosome).putInt(position);
+		key.put(reference).put(alternate);
+		key.flip();
+		return key;
+	}
+
+	/**
+	 * Returns the cached response for a key, or null if there is none or it
+	 * has expired
+	 *
+	 * @param key
+	 *            Key
+	 * @return Response
+	 * @throws IOException
+	 *             The entry could not be read
+	 */
+	public synchronized byte[] get(ByteBuffer key) throws IOException {
+		Location location = key == null ? null : index.get(key);
+		if (location == null) {
+			misses++;
+			return null;
+		}
+		if (location.expires < System.currentTimeMillis()) {
+			index.remove(key);
+			misses++;
+			return null;
+		}
+
+		ByteBuffer value = ByteBuffer.allocate(location.length);
+		while (value.hasRemaining()) {
+			if (location.segment.channel.read(value, location.offset
+					+ value.position()) == -1) {
+				throw new EOFException("Truncated variant cache entry");
+			}
+		}
+		hits++;
+		return value.array();
+	}
+
+	/**
+	 * Caches a response
+	 *
+	 * @param key
+	 *            Key
+	 * @param value
+	 *            Response
+	 * @throws IOException
+	 *             The entry could not be written
+	 */
+	public synchronized void put(ByteBuffer key, byte[] value)
+			throws IOException {
+		if (key == null) {
+			return;
+		}
+		int recordLength = 2 + key.remaining() + 8 + 4 + value.length;
+		Segment segment = segments.getLast();
+		if (segment.size > 0 && segment.size + 4 + recordLength > segmentSize) {
+			segment = addSegment();
+		}
+
+		long expires = System.currentTimeMillis() + timeToLive;
+		ByteBuffer record = ByteBuffer.allocate(4 + recordLength);
+		record.putInt(recordLength).putShort((short) key.remaining())
+				.put(key.duplicate()).putLong(expires).putInt(value.length)
+				.put(value);
+		record.flip();
+		long offset = segment.size;
+		while (record.hasRemaining()) {
+			offset += segment.channel.write(record, offset);
+		}
+
+		Location location = new Location(segment, offset - value.length,
+				value.length, expires);
+		index.put(copy(key), location);
+		size += offset - segment.size;
+		segment.size = offset;
+		evict();
+	}
+
+	/**
+	 * Returns the number of lookups answered from the cache
+	 *
+	 * @return Hits
+	 */
+	public synchronized long getHits() {
+		return hits;
+	}
+
+	/**
+	 * Returns the number of lookups not answered from the cache
+	 *
+	 * @return Misses
+	 */
+	public synchronized long getMisses() {
+		return misses;
+	}
+
+	/**
+	 * Returns the share of lookups answered from the cache
+	 *
+	 * @return Hit ratio between 0 and 1
+	 */
+	public synchronized double getHitRatio() {
+		return hits + misses == 0 ? 0 : (double) hits / (hits + misses);
+	}
+
+	/**
+	 * Returns the number of entries in the cache
+	 *
+	 * @return Entries
+	 */
+	public synchronized int getEntryCount() {
+		return index.size();
+	}
+
+	/**
+	 * Returns the size of the segment files in bytes
+	 *
+	 * @return Size
+	 */
+	public synchronized long getSize() {
+		return size;
+	}
+
+	/**
+	 * Encodes field values as a response
+	 *
+	 * @param values
+	 *            Values by field name
+	 * @return Response
+	 */
+	public static byte[] encodeValues(Map<String, String> values) {
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(values.size());
+			for (Map.Entry<String, String> value : values.entrySet()) {
+				out.writeUTF(value.getKey());
+				out.writeUTF(value.getValue() == null ? "" : value.getValue());
+			}
+			out.close();
+			return bytes.toByteArray();
+		} catch (IOException e) {
+			// Not thrown by a byte array stream
+			throw new IllegalStateException(e);
+		}
+	}
+
+	/**
+	 * Decodes a response encoded by {@link #encodeValues(Map)}
+	 *
+	 * @param response
+	 *            Response
+	 * @return Values by field name
+	 * @throws IOException
+	 *             The response is not encoded field values
+	 */
+	public static Map<String, String> decodeValues(byte[] response)
+			throws IOException {
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(
+				response));
+		int count = in.readInt();
+		Map<String, String> values = new HashMap<String, String>();
+		for (int valuei = 0; valuei < count; valuei++) {
+			values.put(in.readUTF(), in.readUTF());
+		}
+		return values;
+	}
+
+	private void loadSegment(Segment segment) throws IOException {
+		long now = System.currentTimeMillis();
+		DataInputStream in = new DataInputStream(new BufferedInputStream(
+				new FileInputStream(segment.file)));
+		long offset = 0;
+		try {
+			while (true) {
+				int recordLength = in.readInt();
+				byte[] key = new byte[in.readUnsignedShort()];
+				in.readFully(key);
+				long expires = in.readLong();
+				int valueLength = in.readInt();
+				if (recordLength != 2 + key.length + 8 + 4 + valueLength
+						|| in.skipBytes(valueLength) != valueLength) {
+					break;
+				}
+				long valueOffset = offset + 4 + 2 + key.length + 8 + 4;
+				if (expires >= now) {
+					index.put(ByteBuffer.wrap(key), new Location(segment,
+							valueOffset, valueLength, expires));
+				} else {
+					index.remove(ByteBuffer.wrap(key));
+				}
+				offset = valueOffset + valueLength;
+			}
+		} catch (EOFException e) {
+			// End of the segment, or an entry cut short by a crash
+		} finally {
+			in.close();
+		}
+		// Later entries are appended after the last complete entry
+		if (segment.channel.size() > offset) {
+			segment.channel.truncate(offset);
+		}
+		segment.size = offset;
+	}
+
+	private Segment addSegment() throws IOException {
+		int id = segments.isEmpty() ? 0 : segments.getLast().id + 1;
+		Segment segment = new Segment(id, new File(directory, SEGMENT_PREFIX
+				+ id + SEGMENT_SUFFIX));
+		segments.addLast(segment);
+		return segment;
+	}
+
+	private void evict() throws IOException {
+		while (size > maxSize && segments.size() > 1) {
+			Segment oldest = segments.removeFirst();
+			Iterator<Location> locations = index.values().iterator();
+			while (locations.hasNext()) {
+				if (locations.next().segment == oldest) {
+					locations.remove();
+				}
+			}
+			size -= oldest.size;
+			oldest.channel.close();
+			if (!oldest.file.delete()) {
+				throw new IOException("Cannot delete the variant cache segment "
+						+ oldest.file);
+			}
+		}
+	}
+
+	/**
+	 * Packs a chromosome as 1-22, 23 for X, 24 for Y and 25 for MT, or as 0
+	 * followed by the length and characters of the name for any other contig
+	 */
+	private static byte[] packChromosome(String chromosome) {
+		String name = chromosome.toUpperCase();
+		if (name.startsWith("CHR")) {
+			name = name.substring(3);
+		}
+		switch (name) {
+		case "X":
+			return new byte[] { 23 };
+		case "Y":
+			return new byte[] { 24 };
+		case "M":
+		case "MT":
+			return new byte[] { 25 };
+		default:
+			for (int number = 1; number <= 22; number++) {
+				if (name.equals(Integer.toString(number))) {
+					return new byte[] { (byte) number };
+				}
+			}
+		}
+
+		byte[] characters = chromosome.getBytes(StandardCharsets.UTF_8);
+		ByteBuffer packed = ByteBuffer.allocate(1 + 2 + characters.length);
+		packed.put((byte) 0).putShort((short) characters.length);
+		return packed.put(characters).array();
+	}
+
+	/**
+	 * Packs an allele as its length followed by two bits a base, or as its
+	 * length with the high bit set followed by its characters if it is not
+	 * made of ACGT only
+	 */
+	private static byte[] packAllele(String allele) {
+		boolean packable = allele.length() < 0x8000;
+		for (int basei = 0; basei < allele.length() && packable; basei++) {
+			packable = BASES.indexOf(allele.charAt(basei)) != -1;
+		}
+
+		if (!packable) {
+			byte[] characters = allele.getBytes(StandardCharsets.UTF_8);
+			ByteBuffer packed = ByteBuffer.allocate(2 + characters.length);
+			packed.putShort((short) (0x8000 | (characters.length & 0x7FFF)));
+			return packed.put(characters).array();
+		}
+
+		ByteBuffer packed = ByteBuffer.allocate(2 + (allele.length() + 3) / 4);
+		packed.putShort((short) allele.length());
+		int current = 0;
+		for (int basei = 0; basei < allele.length(); basei++) {
+			current |= BASES.indexOf(allele.charAt(basei)) << (2 * (basei % 4));
+			if (basei % 4 == 3) {
+				packed.put((byte) current);
+				current = 0;
+			}
+		}
+		if (allele.length() % 4 != 0) {
+			packed.put((byte) current);
+		}
+		return packed.array();
+	}
+
+	private static ByteBuffer copy(ByteBuffer key) {
+		byte[] bytes = new byte[key.remaining()];
+		key.duplicate().get(bytes);
+		return ByteBuffer.wrap(bytes);
+	}
+
+	private static class Segment {
+		private final int id;
+		private final File file;
+		private final FileChannel channel;
+		private long size;
+
+		private Segment(int id, File file) throws IOException {
+			this.id = id;
+			this.file = file;
+			this.channel = new RandomAccessFile(file, "rw").getChannel();
+			this.size = channel.size();
+		}
+	}
+
+	private static class Location {
+		private final Segment segment;
+		private final long offset;
+		private final int length;
+		private final long expires;
+
+		private Location(Segment segment, long offset, int length, long expires) {
+			this.segment = segment;
+			this.offset = offset;
+			this.length = length;
+			this.expires = expires;
+		}
+	}
+}
@@ -13,6 +13,11 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
@@ -59,6 +64,8 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.DaemonThreadFactory;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
 import edu.harvard.hms.dbmi.bd2k.irct.security.SecurityUtility;
 import edu.harvard.hms.dbmi.i2b2.api.crc.CRCCell;
 import edu.harvard.hms.dbmi.i2b2.api.crc.xml.pdo.OutputOptionSelectType;
@@ -116,6 +123,14 @@ public class I2B2XMLResourceImplementation implements
 
 	protected ResourceState resourceState;
 
+	protected long maxExecutionTime;
+	private final ConcurrentMap<String, Long> queryStarts = new ConcurrentHashMap<String, Long>();
+	private final ExpiringCache<String, String> cancelledQueries = new ExpiringCache<String, String>(
+			10000, 86400000);
+	private final ExpiringCache<String, String> queryOwners = new ExpiringCache<String, String>(
+			10000, 86400000);
+	private ScheduledExecutorService watchdog;
+
 	@Override
 	public void setup(Map<String, String> parameters)
 			throws ResourceInterfaceException {
@@ -146,6 +161,25 @@ public class I2B2XMLResourceImplementation implements
 			this.ignoreCertificate = false;
 		}
 
+		String maxExecutionTimeString = parameters.get("maxExecutionTime");
+		try {
+			this.maxExecutionTime = maxExecutionTimeString == null ? 0 : Long
+					.parseLong(maxExecutionTimeString);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException(
+					"Invalid value for maxExecutionTime");
+		}
+		if (this.maxExecutionTime > 0 && watchdog == null) {
+			watchdog = Executors.newSingleThreadScheduledExecutor(
+					new DaemonThreadFactory("i2b2-watchdog"));
+			watchdog.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					cancelExpiredQueries();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
+
 		// Setup Cells
 		try {
 			crcCell = new CRCCell();
@@ -457,6 +491,12 @@ public class I2B2XMLResourceImplementation implements
 			result.setResourceActionId(projectId + "|" + queryId + "|"
 					+ resultId);
 			result.setResultStatus(ResultStatus.RUNNING);
+			queryOwners.put(result.getResourceActionId(), session.getUser()
+					.getName());
+			if (maxExecutionTime > 0) {
+				queryStarts.put(result.getResourceActionId(),
+						System.currentTimeMillis());
+			}
 		} catch (JAXBException | IOException | I2B2InterfaceException e) {
 			result.setResultStatus(ResultStatus.ERROR);
 			result.setMessage(e.getMessage());
@@ -506,6 +546,14 @@ public class I2B2XMLResourceImplementation implements
 	 * @return Result
 	 */
 	protected Result checkForResult(SecureSession session, Result result) {
+		String cancelReason = cancelledQueries.get(result
+				.getResourceActionId());
+		if (cancelReason != null) {
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(cancelReason);
+			return result;
+		}
+
 		HttpClient client = createClient(session);
 
 		String resultInstanceId = result.getResourceActionId();
@@ -554,10 +602,70 @@ public class I2B2XMLResourceImplementation implements
 		} catch (JAXBException | I2B2InterfaceException | IOException e) {
 			result.setMessage(e.getLocalizedMessage());
 			result.setResultStatus(ResultStatus.ERROR);
+		} finally {
+			// A finished query is no longer timed by the watchdog
+			if (result.getResultStatus() != ResultStatus.RUNNING) {
+				queryStarts.remove(resultInstanceId);
+			}
 		}
+		return result;
+
+	}
 
+	/**
+	 * Cancels a query submitted by the user of the session. The CRC cell has
+	 * no call to stop a query instance, so the query is no longer polled and
+	 * its result reports an error; the query itself runs to completion on the
+	 * i2b2 server.
+	 * 
+	 * @param session
+	 *            Current Session
+	 * @param result
+	 *            Result of the query
+	 * @return Result
+	 * @throws ResourceInterfaceException
+	 *             The query was not submitted by the user
+	 */
+	public Result cancel(SecureSession session, Result result)
+			throws ResourceInterfaceException {
+		String resourceActionId = result.getResourceActionId();
+		String owner = resourceActionId == null ? null : queryOwners
+				.get(resourceActionId);
+		if (owner == null || session == null || session.getUser() == null
+				|| !owner.equals(session.getUser().getName())) {
+			throw new ResourceInterfaceException("Unknown query "
+					+ resourceActionId);
+		}
+		cancelQuery(resourceActionId, "Query cancelled");
+		result.setResultStatus(ResultStatus.ERROR);
+		result.setMessage("Query cancelled");
 		return result;
+	}
+
+	/**
+	 * Stops polling a query and records why. The CRC cell has no call to stop
+	 * a query instance, so the query itself runs to completion on the i2b2
+	 * server. Subclasses that drive their own polling stop it here as well.
+	 * 
+	 * @param resourceActionId
+	 *            Resource action id of the query
+	 * @param reason
+	 *            Message reported by the result
+	 */
+	protected void cancelQuery(String resourceActionId, String reason) {
+		queryStarts.remove(resourceActionId);
+		cancelledQueries.put(resourceActionId, reason);
+	}
 
+	private void cancelExpiredQueries() {
+		long started = System.currentTimeMillis() - maxExecutionTime;
+		for (Map.Entry<String, Long> queryStart : queryStarts.entrySet()) {
+			if (queryStart.getValue() < started) {
+				cancelQuery(queryStart.getKey(),
+						"Query exceeded the maximum execution time of "
+								+ maxExecutionTime + " ms");
+			}
+		}
 	}
 
 	@Override
@@ -921,16 +1029,80 @@ public class I2B2XMLResourceImplementation implements
 	}
 
 	private ONTCell createOntCell(String projectId) throws JAXBException {
+		return setupOntConnection(ontCell, projectId);
+	}
+
+	private ONTCell setupOntConnection(ONTCell cell, String projectId) {
 		if (this.useProxy) {
-			ontCell.setupConnection(this.resourceURL, this.domain, "", "",
+			cell.setupConnection(this.resourceURL, this.domain, "", "",
 					projectId, this.useProxy, this.proxyURL
 							+ "/OntologyService");
 		} else {
-			ontCell.setupConnection(this.resourceURL + "OntologyService/",
+			cell.setupConnection(this.resourceURL + "OntologyService/",
 					this.domain, this.userName, this.password, projectId,
 					false, null);
 		}
-		return ontCell;
+		return cell;
+	}
+
+	/**
+	 * Creates an ontology cell that is not shared with the rest of the
+	 * resource. It can be used to make ontology requests from a background
+	 * thread.
+	 * 
+	 * @return Ontology Cell
+	 * @throws ResourceInterfaceException
+	 *             An error occurred setting up the cell
+	 */
+	protected ONTCell createUnsharedOntCell() throws ResourceInterfaceException {
+		try {
+			ONTCell cell = new ONTCell();
+			cell.setup();
+			return cell;
+		} catch (JAXBException e) {
+			throw new ResourceInterfaceException(e);
+		}
+	}
+
+	/**
+	 * Returns the children of a concept using the given ontology cell. Several
+	 * threads can make this call at once as long as each uses its own cell.
+	 * 
+	 * @param cell
+	 *            Ontology cell to use
+	 * @param path
+	 *            Project, or concept below a project
+	 * @param session
+	 *            Current Session
+	 * @return Children
+	 * @throws ResourceInterfaceException
+	 *             An error occurred retrieving the children
+	 */
+	protected List<Entity> getChildren(ONTCell cell, Entity path,
+			SecureSession session) throws ResourceInterfaceException {
+		HttpClient client = createClient(session);
+		String[] pathComponents = path.getPui().split("/");
+
+		try {
+			setupOntConnection(cell, pathComponents[2]);
+			if (pathComponents.length == 3) {
+				// The children of a project are its ontology categories
+				return convertConceptsTypeToEntities(path.getPui(),
+						cell.getCategories(client, false, false, true, "core"));
+			}
+			String myPath = "\\";
+			for (String pathComponent : Arrays.copyOfRange(pathComponents, 3,
+					pathComponents.length)) {
+				myPath += "\\" + pathComponent;
+			}
+			String basePath = pathComponents[0] + "/" + pathComponents[1]
+					+ "/" + pathComponents[2];
+
+			return convertConceptsTypeToEntities(basePath, cell.getChildren(
+					client, myPath, false, false, false, -1, "core"));
+		} catch (Exception e) {
+			throw new ResourceInterfaceException(e.getMessage());
+		}
 	}
 
 	private PMCell createPMCell() throws JAXBException {
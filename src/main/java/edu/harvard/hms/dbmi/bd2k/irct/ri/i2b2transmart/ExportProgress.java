@@ -0,0 +1,72 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2transmart;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Tracks how far a tranSMART clinical data export has got. The export is
+ * retrieved in batches of concept paths, and each batch is committed to the
+ * result set as soon as it arrives. A failed batch is kept until a retry of
+ * it completes.
+ *
+ */
+class ExportProgress {
+	private List<String> batches;
+	private int completedBatches;
+	private long rowsWritten;
+	private long bytesReceived;
+	private final List<Integer> failedBatches = new ArrayList<Integer>();
+
+	synchronized void start(List<String> batches) {
+		this.batches = new ArrayList<String>(batches);
+	}
+
+	synchronized boolean isStarted() {
+		return batches != null;
+	}
+
+	synchronized String getBatch(int batch) {
+		return batches.get(batch);
+	}
+
+	synchronized void batchCompleted(int batch, long rowsWritten,
+			long batchBytes) {
+		this.completedBatches++;
+		this.failedBatches.remove(Integer.valueOf(batch));
+		this.rowsWritten = rowsWritten;
+		this.bytesReceived += batchBytes;
+	}
+
+	synchronized void batchFailed(int batch, long batchBytes) {
+		if (!failedBatches.contains(batch)) {
+			this.failedBatches.add(batch);
+		}
+		this.bytesReceived += batchBytes;
+	}
+
+	synchronized int getCompletedBatches() {
+		return completedBatches;
+	}
+
+	synchronized long getRowsWritten() {
+		return rowsWritten;
+	}
+
+	synchronized List<Integer> getFailedBatches() {
+		return new ArrayList<Integer>(failedBatches);
+	}
+
+	@Override
+	public synchronized String toString() {
+		String message = "Retrieved " + completedBatches + " of "
+				+ (batches == null ? 0 : batches.size()) + " batches, " + rowsWritten + " rows, "
+				+ bytesReceived + " bytes";
+		if (!failedBatches.isEmpty()) {
+			message += ", batches " + failedBatches + " failed";
+		}
+		return message;
+	}
+}
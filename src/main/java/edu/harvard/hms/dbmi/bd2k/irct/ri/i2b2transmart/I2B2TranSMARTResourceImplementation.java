@@ -3,7 +3,9 @@
  * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
 package edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2transmart;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URLDecoder;
@@ -13,6 +15,14 @@ import java.util.Arrays;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
 import javax.json.Json;
 import javax.json.JsonArray;
@@ -24,14 +34,16 @@ import javax.json.JsonValue;
 import javax.json.stream.JsonParser;
 import javax.json.stream.JsonParser.Event;
 
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.input.CountingInputStream;
 import org.apache.http.HttpResponse;
 import org.apache.http.NameValuePair;
-import org.apache.http.client.ClientProtocolException;
 import org.apache.http.client.HttpClient;
 import org.apache.http.client.entity.UrlEncodedFormEntity;
 import org.apache.http.client.methods.HttpGet;
 import org.apache.http.client.methods.HttpPost;
 import org.apache.http.message.BasicNameValuePair;
+import org.apache.http.util.EntityUtils;
 
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindByPath;
@@ -48,10 +60,13 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
-import edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2.I2B2OntologyRelationship;
 import edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2.I2B2XMLResourceImplementation;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.DaemonThreadFactory;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
+import edu.harvard.hms.dbmi.i2b2.api.ont.ONTCell;
 
 /**
  * An implementation of a resource that communicates with the tranSMART
@@ -60,7 +75,19 @@ import edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2.I2B2XMLResourceImplementation;
  */
 public class I2B2TranSMARTResourceImplementation extends
 		I2B2XMLResourceImplementation {
+	private static final long JOB_RETENTION_MINUTES = 60;
+
 	private String transmartURL;
+	private long pollInitialDelay;
+	private long pollMaxDelay;
+	private int batchRetries;
+	private ScheduledExecutorService scheduler;
+	private ExecutorService workers;
+	private WildcardExpander wildcardExpander;
+	private ExecutorService countRequests;
+	private ExpiringCache<String, JsonObject> childCountCache;
+	private TextSearchCache textSearchCache;
+	private Map<String, TranSMARTQueryJob> jobs = new ConcurrentHashMap<String, TranSMARTQueryJob>();
 
 	@Override
 	public void setup(Map<String, String> parameters)
@@ -72,179 +99,346 @@ public class I2B2TranSMARTResourceImplementation extends
 		}
 
 		this.transmartURL = parameters.get("transmartURL");
+		this.pollInitialDelay = getLongParameter(parameters,
+				"pollInitialDelay", 250);
+		this.pollMaxDelay = getLongParameter(parameters, "pollMaxDelay", 5000);
+		this.batchRetries = (int) getLongParameter(parameters, "batchRetries",
+				2);
+
+		if (scheduler == null) {
+			scheduler = Executors.newScheduledThreadPool(1,
+					new DaemonThreadFactory("tranSMART-scheduler"));
+			workers = Executors.newFixedThreadPool(
+					(int) getLongParameter(parameters, "workerThreads", 4),
+					new DaemonThreadFactory("tranSMART-worker"));
+			countRequests = Executors.newFixedThreadPool(
+					(int) getLongParameter(parameters, "countThreads", 4),
+					new DaemonThreadFactory("tranSMART-counts"));
+			childCountCache = new ExpiringCache<String, JsonObject>(
+					(int) getLongParameter(parameters, "countCacheSize", 1000),
+					getLongParameter(parameters, "countCacheTTL", 300000));
+			textSearchCache = new TextSearchCache(this,
+					(int) getLongParameter(parameters, "searchCacheSize", 500),
+					getLongParameter(parameters, "searchCacheTTL", 600000));
+			wildcardExpander = new WildcardExpander(this,
+					Executors.newFixedThreadPool((int) getLongParameter(
+							parameters, "expansionThreads", 8),
+							new DaemonThreadFactory("tranSMART-expansion")),
+					(int) getLongParameter(parameters, "expansionCacheSize",
+							100), getLongParameter(parameters,
+							"expansionCacheTTL", 3600000));
+			// The i2b2 watchdog stops once the CRC query has completed, so
+			// the jobs are timed over their whole export as well
+			scheduler.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					cancelExpiredJobs();
+				}
+			}, 1, 1, TimeUnit.SECONDS);
+		}
 
 		super.setup(parameters);
 	}
 
 	@Override
 	public List<Entity> getPathRelationship(Entity path,
-			OntologyRelationship relationship, SecureSession session)
+			OntologyRelationship relationship, final SecureSession session)
 			throws ResourceInterfaceException {
-		List<Entity> returns = super.getPathRelationship(path, relationship,
-				session);
+		String[] pathComponents = path.getPui().split("/");
+		if (pathComponents.length <= 3) {
+			return super.getPathRelationship(path, relationship, session);
+		}
 
-		// Get the counts from the tranSMART server
-		try {
-			HttpClient client = createClient(session);
-			String basePath = path.getPui();
-			String[] pathComponents = basePath.split("/");
-
-			if (pathComponents.length > 3) {
-				String myPath = "\\";
-				for (String pathComponent : Arrays.copyOfRange(pathComponents,
-						3, pathComponents.length)) {
-					myPath += "\\" + pathComponent;
+		String myPath = "\\";
+		for (String pathComponent : Arrays.copyOfRange(pathComponents, 3,
+				pathComponents.length)) {
+			myPath += "\\" + pathComponent;
+		}
+		final String conceptKey = myPath + "\\";
+		// Counts depend on the studies the user may access
+		String countKey = getCacheUser(session) + "|" + conceptKey;
+
+		// Get the counts from the tranSMART server while the i2b2 request is
+		// running
+		JsonObject counts = childCountCache.get(countKey);
+		Future<JsonObject> countRequest = null;
+		if (counts == null) {
+			countRequest = countRequests.submit(new Callable<JsonObject>() {
+				@Override
+				public JsonObject call() throws IOException {
+					return getChildConceptCounts(conceptKey, session);
 				}
-				basePath = pathComponents[0] + "/" + pathComponents[1] + "/"
-						+ pathComponents[2];
-
-				HttpPost post = new HttpPost(this.transmartURL
-						+ "/chart/childConceptPatientCounts");
-				List<NameValuePair> formParameters = new ArrayList<NameValuePair>();
-				formParameters.add(new BasicNameValuePair("charttype",
-						"childconceptpatientcounts"));
-				formParameters.add(new BasicNameValuePair("concept_key", myPath
-						+ "\\"));
-				formParameters.add(new BasicNameValuePair("concept_level", ""));
-
-				post.setEntity(new UrlEncodedFormEntity(formParameters));
-
-				HttpResponse response = client.execute(post);
+			});
+		}
 
-				JsonReader jsonReader = Json.createReader(response.getEntity()
-						.getContent());
+		List<Entity> returns = null;
+		try {
+			returns = super.getPathRelationship(path, relationship, session);
+		} finally {
+			// The counts are of no use if the children could not be listed
+			if (returns == null && countRequest != null) {
+				countRequest.cancel(true);
+			}
+		}
 
-				JsonObject counts = jsonReader.readObject().getJsonObject(
-						"counts");
+		if (countRequest != null) {
+			try {
+				counts = countRequest.get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				countRequest.cancel(true);
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+			if (counts != null) {
+				childCountCache.put(countKey, counts);
+			}
+		}
 
-				for (Entity singleReturn : returns) {
-					String singleReturnMyPath = convertPUItoI2B2Path(singleReturn
-							.getPui());
+		if (counts != null) {
+			for (Entity singleReturn : returns) {
+				String singleReturnMyPath = convertPUItoI2B2Path(singleReturn
+						.getPui());
 
-					if (counts.containsKey(singleReturnMyPath)) {
-						singleReturn.getCounts().put("count",
-								counts.getInt(singleReturnMyPath));
-					}
+				if (counts.containsKey(singleReturnMyPath)) {
+					singleReturn.getCounts().put("count",
+							counts.getInt(singleReturnMyPath));
 				}
 			}
-		} catch (IOException e) {
-			e.printStackTrace();
 		}
 
 		return returns;
 	}
 
+	/**
+	 * Returns the identity that responses fetched with the credentials of a
+	 * session are cached under: the user name, or the token if the session has
+	 * no user
+	 * 
+	 * @param session
+	 *            Session
+	 * @return Cache user
+	 */
+	String getCacheUser(SecureSession session) {
+		if (session == null) {
+			return "";
+		}
+		if (session.getUser() != null && session.getUser().getName() != null) {
+			return session.getUser().getName();
+		}
+		return session.getToken() == null ? "" : session.getToken().toString();
+	}
+
+	private JsonObject getChildConceptCounts(String conceptKey,
+			SecureSession session) throws IOException {
+		HttpClient client = createClient(session);
+		HttpPost post = new HttpPost(this.transmartURL
+				+ "/chart/childConceptPatientCounts");
+		List<NameValuePair> formParameters = new ArrayList<NameValuePair>();
+		formParameters.add(new BasicNameValuePair("charttype",
+				"childconceptpatientcounts"));
+		formParameters.add(new BasicNameValuePair("concept_key", conceptKey));
+		formParameters.add(new BasicNameValuePair("concept_level", ""));
+
+		post.setEntity(new UrlEncodedFormEntity(formParameters));
+
+		HttpResponse response = client.execute(post);
+
+		JsonReader jsonReader = Json.createReader(response.getEntity()
+				.getContent());
+
+		JsonObject counts = jsonReader.readObject().getJsonObject("counts");
+		jsonReader.close();
+		return counts;
+	}
+
 	@Override
 	public Result runQuery(SecureSession session, Query query, Result result)
 			throws ResourceInterfaceException {
 		result = super.runQuery(session, query, result);
 
 		if (result.getResultStatus() != ResultStatus.ERROR) {
-			String resultInstanceId = result.getResourceActionId();
-			String resultId = resultInstanceId.split("\\|")[2];
-			try {
-				// Wait for it to be either ready or fail
-				result = checkForResult(session, result);
-				while ((result.getResultStatus() != ResultStatus.ERROR)
-						&& (result.getResultStatus() != ResultStatus.COMPLETE)) {
-					Thread.sleep(3000);
-					result = checkForResult(session, result);
-				}
-				if (result.getResultStatus() == ResultStatus.ERROR) {
-					return result;
-				}
-				result.setResultStatus(ResultStatus.RUNNING);
-
-				// Gather Select Clauses
-				Map<String, String> aliasMap = new HashMap<String, String>();
-
-				for (SelectClause selectClause : query
-						.getClausesOfType(SelectClause.class)) {
-					String pui = selectClause.getParameter().getPui()
-							.replaceAll("/" + this.resourceName + "/", "");
-
-					String rawPUI = selectClause.getParameter().getPui();
-					if (rawPUI.endsWith("*")) {
-						//Get the base PUI
-						String basePUI = rawPUI.substring(0, rawPUI.length() - 1);
-						boolean compact = false;
-						String subPUI = null;
-						
-						if(selectClause.getStringValues().containsKey("COMPACT") && selectClause.getStringValues().get("COMPACT").equalsIgnoreCase("true")) {
-							compact = true;
-						}
-						if(selectClause.getStringValues().containsKey("REMOVEPREPEND") && selectClause.getStringValues().get("REMOVEPREPEND").equalsIgnoreCase("true")) {
-							subPUI = basePUI.substring(0, basePUI.substring(0, basePUI.length() - 1).lastIndexOf("/"));
-						}
-						
-						//Loop through all the children and add them to the aliasMap
-						aliasMap.putAll(getAllChildrenAsAliasMap(basePUI, subPUI, compact, session));
-						
-					} else {
-						pui = convertPUItoI2B2Path(selectClause.getParameter()
-								.getPui());
-						aliasMap.put(pui.replaceAll("%2[f,F]", "/") + "\\",
-								selectClause.getAlias());
-					}
+			TranSMARTQueryJob job = new TranSMARTQueryJob(this, session, query,
+					result);
+			jobs.put(result.getResourceActionId(), job);
+			job.start();
+		}
+		return result;
+	}
+
+	@Override
+	protected void cancelQuery(String resourceActionId, String reason) {
+		super.cancelQuery(resourceActionId, reason);
+		TranSMARTQueryJob job = jobs.get(resourceActionId);
+		if (job != null) {
+			job.cancel(reason);
+		}
+	}
+
+	private void cancelExpiredJobs() {
+		if (maxExecutionTime <= 0) {
+			return;
+		}
+		try {
+			long started = System.currentTimeMillis() - maxExecutionTime;
+			for (TranSMARTQueryJob job : jobs.values()) {
+				if (!job.isDone() && job.getStarted() < started) {
+					cancelQuery(job.getResourceActionId(),
+							"Query exceeded the maximum execution time of "
+									+ maxExecutionTime + " ms");
 				}
+			}
+		} catch (RuntimeException e) {
+			// Keep the watchdog scheduled
+			e.printStackTrace();
+		}
+	}
 
-				// Run Additional Queries and Create Result Set
-				result = runClinicalDataQuery(session, result, aliasMap,
-						resultId);
-				result.setResultStatus(ResultStatus.COMPLETE);
+	/**
+	 * Returns the status of the CRC query for the given result
+	 * 
+	 * @param session
+	 *            Current Session
+	 * @param result
+	 *            Result
+	 * @return Result
+	 */
+	Result checkQueryStatus(SecureSession session, Result result) {
+		return checkForResult(session, result);
+	}
 
-				// Set the status to complete
-			} catch (InterruptedException | UnsupportedOperationException
-					| IOException | ResultSetException | PersistableException e) {
-				result.setResultStatus(ResultStatus.ERROR);
-				result.setMessage(e.getMessage());
+	/**
+	 * Creates the map of i2b2 paths to column aliases for the select clauses
+	 * of the query
+	 * 
+	 * @param query
+	 *            Query
+	 * @param session
+	 *            Current Session
+	 * @return Alias Map
+	 * @throws ResourceInterfaceException
+	 *             An error occurred expanding a wildcard select clause
+	 */
+	Map<String, String> createAliasMap(Query query, SecureSession session)
+			throws ResourceInterfaceException {
+		Map<String, String> aliasMap = new HashMap<String, String>();
+
+		for (SelectClause selectClause : query
+				.getClausesOfType(SelectClause.class)) {
+			String pui = selectClause.getParameter().getPui()
+					.replaceAll("/" + this.resourceName + "/", "");
+
+			String rawPUI = selectClause.getParameter().getPui();
+			if (rawPUI.endsWith("*")) {
+				//Get the base PUI
+				String basePUI = rawPUI.substring(0, rawPUI.length() - 1);
+				boolean compact = false;
+				String subPUI = null;
+				
+				if(selectClause.getStringValues().containsKey("COMPACT") && selectClause.getStringValues().get("COMPACT").equalsIgnoreCase("true")) {
+					compact = true;
+				}
+				if(selectClause.getStringValues().containsKey("REMOVEPREPEND") && selectClause.getStringValues().get("REMOVEPREPEND").equalsIgnoreCase("true")) {
+					subPUI = basePUI.substring(0, basePUI.substring(0, basePUI.length() - 1).lastIndexOf("/"));
+				}
+				
+				//Loop through all the children and add them to the aliasMap
+				aliasMap.putAll(getAllChildrenAsAliasMap(basePUI, subPUI, compact, session));
+				
+			} else {
+				pui = convertPUItoI2B2Path(selectClause.getParameter()
+						.getPui());
+				aliasMap.put(pui.replaceAll("%2[f,F]", "/") + "\\",
+						selectClause.getAlias());
 			}
 		}
-		return result;
+		return aliasMap;
 	}
 	
 	private Map<String, String> getAllChildrenAsAliasMap(String basePUI, String subPUI, boolean compact, SecureSession session) throws ResourceInterfaceException {
 		Map<String, String> returns = new HashMap<String, String>();
 		
-		Entity baseEntity = new Entity(basePUI);
-		for(Entity entity : super.getPathRelationship(baseEntity, I2B2OntologyRelationship.CHILD, session)) {
-			
-			if(entity.getAttributes().containsKey("visualattributes")) {
-				String visualAttributes = entity.getAttributes().get("visualattributes");
-				
-				if(visualAttributes.startsWith("C") || visualAttributes.startsWith("F")) {
-					returns.putAll(getAllChildrenAsAliasMap(entity.getPui(), subPUI, compact, session));
-				} else if (visualAttributes.startsWith("L")) {
-					String pui = convertPUItoI2B2Path(entity.getPui()).replaceAll("%2[f,F]", "/")  + "\\";
-					String alias =  pui;
-					if(compact) {
-						alias = basePUI;
-					}
-					if(subPUI != null) {
-						alias = alias.replaceAll(subPUI, "");
-					}
-					if(alias.endsWith("/")) {
-						alias = alias.substring(0, alias.length() - 1);
-					}
-					returns.put(pui, alias);
-				}
-				
+		Map<String, String> leaves = wildcardExpander.expand(basePUI, session);
+		for(String leafPUI : leaves.keySet()) {
+			String pui = convertPUItoI2B2Path(leafPUI).replaceAll("%2[f,F]", "/")  + "\\";
+			String alias =  pui;
+			if(compact) {
+				alias = leaves.get(leafPUI);
 			}
+			if(subPUI != null) {
+				alias = alias.replaceAll(subPUI, "");
+			}
+			if(alias.endsWith("/")) {
+				alias = alias.substring(0, alias.length() - 1);
+			}
+			returns.put(pui, alias);
 		}
 		
-		
 		return returns;
 	}
 
-	private Result runClinicalDataQuery(SecureSession session, Result result,
-			Map<String, String> aliasMap, String resultId)
-			throws ResultSetException, ClientProtocolException, IOException,
+	/**
+	 * Creates an ontology cell for use by a single expansion thread
+	 * 
+	 * @return Ontology Cell
+	 * @throws ResourceInterfaceException
+	 *             An error occurred setting up the cell
+	 */
+	ONTCell createOntologyCell() throws ResourceInterfaceException {
+		return createUnsharedOntCell();
+	}
+
+	/**
+	 * Returns the children of a folder using the given ontology cell
+	 * 
+	 * @param cell
+	 *            Ontology cell owned by the calling thread
+	 * @param path
+	 *            Folder
+	 * @param session
+	 *            Current Session
+	 * @return Children
+	 * @throws ResourceInterfaceException
+	 *             An error occurred retrieving the children
+	 */
+	List<Entity> listChildren(ONTCell cell, Entity path, SecureSession session)
+			throws ResourceInterfaceException {
+		return getChildren(cell, path, session);
+	}
+
+	/**
+	 * Retrieves the clinical data for the patient set in batches of concept
+	 * paths. Each batch is committed to the result set as soon as it has been
+	 * read, and the progress records how far the export has got. A batch that
+	 * fails is retried on its own after a delay, and if it still fails it is
+	 * recorded in the progress and the remaining batches are retrieved. Once
+	 * the export has started only the batches that failed are retrieved.
+	 * 
+	 * @param session
+	 *            Current Session
+	 * @param result
+	 *            Result
+	 * @param aliasMap
+	 *            Map of i2b2 paths to column aliases
+	 * @param resultId
+	 *            Patient set id
+	 * @param job
+	 *            Job of the export, which stops the retrieval when it is
+	 *            cancelled
+	 * @return Result
+	 * @throws ResultSetException
+	 *             An error occurred writing to the result set
+	 * @throws IOException
+	 *             The retrieval was interrupted
+	 * @throws PersistableException
+	 *             An error occurred committing the result set
+	 */
+	Result runClinicalDataQuery(SecureSession session, Result result,
+			Map<String, String> aliasMap, String resultId,
+			TranSMARTQueryJob job) throws ResultSetException, IOException,
 			PersistableException {
-		// Setup Resultset
+		ExportProgress progress = job.getProgress();
 		ResultSet rs = (ResultSet) result.getData();
-		if (rs.getSize() == 0) {
-			rs = createInitialDataset(result, aliasMap);
-		}
 
 		// Get additional fields to grab from alias
 		List<String> additionalFields = new ArrayList<String>();
@@ -256,51 +450,122 @@ public class I2B2TranSMARTResourceImplementation extends
 
 		String pivot = "PATIENT_NUM";
 
-		// Setup initial fields
-		Map<String, Long> entryMap = new HashMap<String, Long>();
+		// Rows by patient, kept by the job for the failed batches
+		Map<String, Long> entryMap = job.getPatientRows();
 
-		// Loop through the columns submitting and appending to the
-		// rows every 10
-		
-		
-		List<String> parameterList = new ArrayList<String>();
-		int counter = 0;
-		String parameters = "";
-		for (String param : aliasMap.keySet()) {
-			if (counter >= 10) {
-				parameterList.add(parameters);
-				counter = 0;
-				parameters = "";
+		List<Integer> batches = new ArrayList<Integer>();
+		if (progress.isStarted()) {
+			batches.addAll(progress.getFailedBatches());
+		} else {
+			// Setup Resultset
+			synchronized (rs) {
+				if (rs.getSize() == 0) {
+					rs = createInitialDataset(result, aliasMap);
+				}
+			}
+
+			// Loop through the columns submitting and appending to the
+			// rows every 10
+			List<String> parameterList = new ArrayList<String>();
+			int counter = 0;
+			String parameters = "";
+			for (String param : aliasMap.keySet()) {
+				if (counter >= 10) {
+					parameterList.add(parameters);
+					counter = 0;
+					parameters = "";
+				}
+				if (!parameters.equals("")) {
+					parameters += "|";
+				}
+				parameters += param;
+				counter++;
 			}
 			if (!parameters.equals("")) {
-				parameters += "|";
+				parameterList.add(parameters);
+			}
+			progress.start(parameterList);
+			for (int batch = 0; batch < parameterList.size(); batch++) {
+				batches.add(batch);
 			}
-			parameters += param;
-			counter++;
-		}
-		if (!parameters.equals("")) {
-			parameterList.add(parameters);
 		}
 
-		for (String parameter : parameterList) {
+		for (int batch : batches) {
+			// A cancelled export is not written any further
+			if (job.isDone()) {
+				return result;
+			}
+
 			// Call the tranSMART API to get the dataset
 			String url = this.transmartURL
 					+ "/ClinicalData/retrieveClinicalData?rid="
 					+ resultId
 					+ "&conceptPaths="
-					+ URLEncoder.encode(URLDecoder.decode(parameter, "UTF-8"),
+					+ URLEncoder.encode(URLDecoder.decode(progress.getBatch(batch), "UTF-8"),
 							"UTF-8");
 			System.out.println(url);
-			HttpClient client = createClient(session);
-			HttpGet get = new HttpGet(url);
-			HttpResponse response = client.execute(get);
-
-			JsonParser parser = Json.createParser(response.getEntity()
-					.getContent());
 
-			convertJsonStreamToResultSet(rs, parser, aliasMap, pivot, entryMap,
-					additionalFields);
+			for (int attempt = 0;; attempt++) {
+				CountingInputStream content = null;
+				HttpResponse response = null;
+				try {
+					HttpClient client = createClient(session);
+					HttpGet get = new HttpGet(url);
+					job.setRequest(get);
+					response = client.execute(get);
+					content = new CountingInputStream(response.getEntity()
+							.getContent());
+					// Read the whole batch first so the result set is not
+					// held while waiting on tranSMART
+					byte[] body = IOUtils.toByteArray(content);
+					if (job.isDone()) {
+						return result;
+					}
 
+					// Reports copy the committed rows under the same lock
+					synchronized (rs) {
+						JsonParser parser = Json
+								.createParser(new ByteArrayInputStream(body));
+						convertJsonStreamToResultSet(rs, parser, aliasMap,
+								pivot, entryMap, additionalFields);
+						parser.close();
+
+						// Commit the batch so it is visible to the user
+						if (rs instanceof FileResultSet) {
+							((FileResultSet) rs).merge();
+						}
+						progress.batchCompleted(batch, entryMap.size(),
+								content.getByteCount());
+					}
+					break;
+				} catch (IOException | JsonException e) {
+					// Release the connection of the failed response
+					if (response != null) {
+						EntityUtils.consumeQuietly(response.getEntity());
+					}
+					// The request of a cancelled export fails when aborted
+					if (job.isDone()) {
+						return result;
+					}
+					if (attempt < batchRetries) {
+						try {
+							// Back off before the batch is requested again
+							Thread.sleep(1000L * (attempt + 1));
+						} catch (InterruptedException ie) {
+							Thread.currentThread().interrupt();
+							throw new InterruptedIOException(
+									"Interrupted while retrieving clinical data");
+						}
+						continue;
+					}
+					e.printStackTrace();
+					progress.batchFailed(batch, content == null ? 0 : content
+							.getByteCount());
+					break;
+				} finally {
+					job.setRequest(null);
+				}
+			}
 		}
 		result.setData(rs);
 		return result;
@@ -414,8 +679,84 @@ public class I2B2TranSMARTResourceImplementation extends
 	@Override
 	public Result getResults(SecureSession session, Result result)
 			throws ResourceInterfaceException {
-		// This method only exists so the results for i2b2XML do not get called
-		return result;
+		// The export is driven by its job so the results for i2b2XML do not
+		// get called
+		TranSMARTQueryJob job = jobs.get(result.getResourceActionId());
+		if (job == null) {
+			return result;
+		}
+		// An incomplete export is kept so its failed batches can be retried
+		if (job.isDone() && !job.isIncomplete()) {
+			jobs.remove(result.getResourceActionId());
+		}
+		return job.report(result);
+	}
+
+	/**
+	 * Retrieves again the batches of concept paths that failed in an export
+	 * submitted by the user of the session. The rows already retrieved are
+	 * kept, and the result reports the export as running until the retry has
+	 * finished.
+	 * 
+	 * @param session
+	 *            Current Session
+	 * @param result
+	 *            Result of the export
+	 * @return Result
+	 * @throws ResourceInterfaceException
+	 *             The export was not submitted by the user, or has no failed
+	 *             batches
+	 */
+	public Result retryFailedBatches(SecureSession session, Result result)
+			throws ResourceInterfaceException {
+		String resourceActionId = result.getResourceActionId();
+		TranSMARTQueryJob job = resourceActionId == null ? null : jobs
+				.get(resourceActionId);
+		if (job == null || session == null
+				|| !job.getOwner().equals(getCacheUser(session))) {
+			throw new ResourceInterfaceException("Unknown query "
+					+ resourceActionId);
+		}
+		if (!job.retry()) {
+			throw new ResourceInterfaceException("Query " + resourceActionId
+					+ " has no failed batches to retry");
+		}
+		return job.report(result);
+	}
+
+	/**
+	 * Called by a job once it has completed or failed. The job is kept
+	 * around until its results are collected, or the retention period passes.
+	 * 
+	 * @param job
+	 *            Finished job
+	 */
+	void jobFinished(final TranSMARTQueryJob job) {
+		scheduler.schedule(new Runnable() {
+			@Override
+			public void run() {
+				// A job whose failed batches are being retried is kept
+				if (job.isDone()) {
+					jobs.remove(job.getResourceActionId());
+				}
+			}
+		}, JOB_RETENTION_MINUTES, TimeUnit.MINUTES);
+	}
+
+	ScheduledExecutorService getScheduler() {
+		return scheduler;
+	}
+
+	ExecutorService getWorkers() {
+		return workers;
+	}
+
+	long getPollInitialDelay() {
+		return pollInitialDelay;
+	}
+
+	long getPollMaxDelay() {
+		return pollMaxDelay;
 	}
 
 	@Override
@@ -458,45 +799,67 @@ public class I2B2TranSMARTResourceImplementation extends
 
 	public List<Entity> searchObservationOnly(String searchTerm,
 			String strategy, SecureSession session, String onlObs) {
-		List<Entity> entities = new ArrayList<Entity>();
+		return textSearchCache.search(searchTerm, strategy, onlObs, session);
+	}
 
-		try {
-			URI uri = new URI(this.transmartURL.split("://")[0],
-					this.transmartURL.split("://")[1].split("/")[0], "/"
-							+ this.transmartURL.split("://")[1].split("/")[1]
-							+ "/textSearch/findPaths", "oblyObs=" + onlObs
-							+ "&term=" + searchTerm, null);
-
-			HttpClient client = createClient(session);
-			HttpGet get = new HttpGet(uri);
-			HttpResponse response = client.execute(get);
-			JsonReader reader = Json.createReader(response.getEntity()
-					.getContent());
-			JsonArray arrayResults = reader.readArray();
-
-			for (JsonValue val : arrayResults) {
-				JsonObject returnObject = (JsonObject) val;
-
-				Entity returnedEntity = new Entity();
-				returnedEntity
-						.setPui("/"
-								+ this.resourceName
-								+ converti2b2Path(returnObject
-										.getString("conceptPath")));
-
-				if (!returnObject.isNull("text")) {
-					returnedEntity.getAttributes().put("text",
-							returnObject.getString("text"));
-				}
-				entities.add(returnedEntity);
+	/**
+	 * Runs a text search against the tranSMART server
+	 * 
+	 * @param searchTerm
+	 *            Search term
+	 * @param onlObs
+	 *            Only return observations
+	 * @param session
+	 *            Current Session
+	 * @return Search hits
+	 * @throws URISyntaxException
+	 *             The tranSMART URL is not valid
+	 * @throws IOException
+	 *             An error occurred communicating with the server
+	 */
+	List<TextSearchCache.Hit> findPaths(String searchTerm, String onlObs,
+			SecureSession session) throws URISyntaxException, IOException {
+		List<TextSearchCache.Hit> hits = new ArrayList<TextSearchCache.Hit>();
+
+		URI uri = new URI(this.transmartURL.split("://")[0],
+				this.transmartURL.split("://")[1].split("/")[0], "/"
+						+ this.transmartURL.split("://")[1].split("/")[1]
+						+ "/textSearch/findPaths", "oblyObs=" + onlObs
+						+ "&term=" + searchTerm, null);
+
+		HttpClient client = createClient(session);
+		HttpGet get = new HttpGet(uri);
+		HttpResponse response = client.execute(get);
+		JsonReader reader = Json.createReader(response.getEntity()
+				.getContent());
+		JsonArray arrayResults = reader.readArray();
+
+		for (JsonValue val : arrayResults) {
+			JsonObject returnObject = (JsonObject) val;
+			String conceptPath = returnObject.getString("conceptPath");
+
+			String text = null;
+			if (!returnObject.isNull("text")) {
+				text = returnObject.getString("text");
 			}
-
-		} catch (URISyntaxException | JsonException | IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
+			hits.add(new TextSearchCache.Hit("/" + this.resourceName
+					+ converti2b2Path(conceptPath), text));
 		}
+		reader.close();
+
+		return hits;
+	}
 
-		return entities;
+	private long getLongParameter(Map<String, String> parameters,
+			String name, long defaultValue) throws ResourceInterfaceException {
+		if (!parameters.containsKey(name)) {
+			return defaultValue;
+		}
+		try {
+			return Long.parseLong(parameters.get(name));
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException("Invalid value for " + name);
+		}
 	}
 
 	private String convertPUItoI2B2Path(String pui) {
@@ -0,0 +1,149 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2transmart;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
+
+/**
+ * Caches the results of the tranSMART text search. Results are keyed by the
+ * user, term, strategy and observation only flag, as the search only returns
+ * the paths the user may access. Identical searches of a user that arrive
+ * while a request is in flight wait for that request instead of making their
+ * own.
+ *
+ */
+class TextSearchCache {
+	private final I2B2TranSMARTResourceImplementation resource;
+	private final ExpiringCache<String, List<Hit>> cache;
+	private final ConcurrentMap<String, FutureTask<List<Hit>>> inFlight = new ConcurrentHashMap<String, FutureTask<List<Hit>>>();
+
+	/**
+	 * Creates a search cache
+	 *
+	 * @param resource
+	 *            Resource that runs the searches
+	 * @param cacheSize
+	 *            Maximum number of searches held in the cache
+	 * @param cacheTTL
+	 *            Time to live of a cached search in milliseconds
+	 */
+	TextSearchCache(I2B2TranSMARTResourceImplementation resource,
+			int cacheSize, long cacheTTL) {
+		this.resource = resource;
+		this.cache = new ExpiringCache<String, List<Hit>>(cacheSize, cacheTTL);
+	}
+
+	/**
+	 * Returns the entities matching the search term
+	 *
+	 * @param searchTerm
+	 *            Search term
+	 * @param strategy
+	 *            Search strategy
+	 * @param onlObs
+	 *            Only return observations
+	 * @param session
+	 *            Current Session
+	 * @return Entities
+	 */
+	List<Entity> search(final String searchTerm, String strategy,
+			final String onlObs, final SecureSession session) {
+		if (searchTerm == null) {
+			// Passed through to the server as it is
+			try {
+				return toEntities(resource.findPaths(searchTerm, onlObs,
+						session));
+			} catch (Exception e) {
+				e.printStackTrace();
+				return new ArrayList<Entity>();
+			}
+		}
+
+		String key = createKey(resource.getCacheUser(session), searchTerm,
+				strategy, onlObs);
+		List<Hit> hits = cache.get(key);
+
+		if (hits == null) {
+			FutureTask<List<Hit>> request = new FutureTask<List<Hit>>(
+					new Callable<List<Hit>>() {
+						@Override
+						public List<Hit> call() throws Exception {
+							return resource.findPaths(searchTerm, onlObs,
+									session);
+						}
+					});
+			FutureTask<List<Hit>> running = inFlight.putIfAbsent(key, request);
+			if (running == null) {
+				running = request;
+				try {
+					request.run();
+				} finally {
+					inFlight.remove(key, request);
+				}
+			}
+
+			try {
+				hits = running.get();
+				cache.put(key, hits);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				return new ArrayList<Entity>();
+			} catch (ExecutionException e) {
+				e.getCause().printStackTrace();
+				return new ArrayList<Entity>();
+			}
+		}
+
+		return toEntities(hits);
+	}
+
+	private List<Entity> toEntities(List<Hit> hits) {
+		List<Entity> entities = new ArrayList<Entity>();
+		for (Hit hit : hits) {
+			Entity returnedEntity = new Entity();
+			returnedEntity.setPui(hit.pui);
+			if (hit.text != null) {
+				returnedEntity.getAttributes().put("text", hit.text);
+			}
+			entities.add(returnedEntity);
+		}
+		return entities;
+	}
+
+	private String createKey(String user, String searchTerm, String strategy,
+			String onlObs) {
+		return user + "|" + onlObs + "|" + strategy + "|" + searchTerm;
+	}
+
+	/**
+	 * A single path returned by the tranSMART text search
+	 */
+	static class Hit {
+		private final String pui;
+		private final String text;
+
+		/**
+		 * Creates a search hit
+		 *
+		 * @param pui
+		 *            PUI of the path
+		 * @param text
+		 *            Text of the path or null
+		 */
+		Hit(String pui, String text) {
+			this.pui = pui;
+			this.text = text;
+		}
+	}
+}
@@ -0,0 +1,401 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2transmart;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.http.client.methods.HttpUriRequest;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.query.Query;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.Result;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.ResultStatus;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+
+/**
+ * Drives a tranSMART export once the CRC query has been submitted. The job
+ * polls the CRC cell with an increasing delay until the patient set is ready
+ * while the select clauses are expanded alongside it, and retrieves the
+ * clinical data once both are done. Each step is run as a separate task on
+ * the resource executors so that no thread is held while waiting on i2b2.
+ * While the clinical data is retrieved the message reports the progress of
+ * the export, and the rows committed so far are copied into the result set of
+ * the result being reported, since the result set of the export is still
+ * being written.
+ * <p>
+ * If some batches of concept paths can not be retrieved the job ends as
+ * incomplete. The committed rows are still handed out, and the failed batches
+ * can be retried on their own.
+ * <p>
+ * A cancelled job aborts the clinical data request in flight, and the
+ * retrieval stops before the next batch is committed.
+ *
+ */
+class TranSMARTQueryJob implements Runnable {
+
+	/**
+	 * The steps of a tranSMART export
+	 */
+	enum Phase {
+		POLLING, EXPANDING, FETCHING, COMPLETE, INCOMPLETE, ERROR
+	}
+
+	private final I2B2TranSMARTResourceImplementation resource;
+	private final SecureSession session;
+	private final Query query;
+	private final Result result;
+	private final String resultId;
+	private final String owner;
+	private volatile long started = System.currentTimeMillis();
+
+	private volatile Phase phase;
+	private long pollDelay;
+	private int pollCount;
+	private boolean queryComplete;
+	private boolean expansionComplete;
+	private Map<String, String> aliasMap;
+	private final ExportProgress progress = new ExportProgress();
+	private final Map<String, Long> patientRows = new HashMap<String, Long>();
+	private HttpUriRequest request;
+	private Object snapshotData;
+	private int snapshotBatches;
+
+	/**
+	 * Creates a job for a result that has been submitted to the CRC cell
+	 *
+	 * @param resource
+	 *            Resource running the export
+	 * @param session
+	 *            Session of the user that submitted the query
+	 * @param query
+	 *            Query being run
+	 * @param result
+	 *            Result the export is written to
+	 */
+	TranSMARTQueryJob(I2B2TranSMARTResourceImplementation resource,
+			SecureSession session, Query query, Result result) {
+		this.resource = resource;
+		this.session = session;
+		this.query = query;
+		this.result = result;
+		this.resultId = result.getResourceActionId().split("\\|")[2];
+		this.owner = resource.getCacheUser(session);
+		this.phase = Phase.POLLING;
+		this.pollDelay = resource.getPollInitialDelay();
+	}
+
+	/**
+	 * Schedules the first status check of the CRC query and starts expanding
+	 * the select clauses
+	 */
+	void start() {
+		synchronized (this) {
+			result.setResultStatus(ResultStatus.RUNNING);
+			result.setMessage("Waiting for the i2b2 query to complete");
+		}
+		resource.getScheduler().schedule(this, pollDelay,
+				TimeUnit.MILLISECONDS);
+		resource.getWorkers().execute(new Runnable() {
+			@Override
+			public void run() {
+				try {
+					expansionFinished(resource.createAliasMap(query, session));
+				} catch (Exception e) {
+					finish(Phase.ERROR, ResultStatus.ERROR, e.getMessage());
+				}
+			}
+		});
+	}
+
+	@Override
+	public void run() {
+		if (isDone()) {
+			return;
+		}
+		try {
+			switch (phase) {
+			case POLLING:
+				poll();
+				break;
+			case FETCHING:
+				resource.runClinicalDataQuery(session, result, aliasMap,
+						resultId, this);
+				if (progress.getFailedBatches().isEmpty()) {
+					finish(Phase.COMPLETE, ResultStatus.COMPLETE,
+							progress.toString());
+				} else {
+					finish(Phase.INCOMPLETE, ResultStatus.ERROR,
+							progress.toString());
+				}
+				break;
+			default:
+			}
+		} catch (Exception e) {
+			finish(Phase.ERROR, ResultStatus.ERROR, e.getMessage());
+		}
+	}
+
+	private void poll() {
+		// Check against a scratch result so the status seen by the user does
+		// not flip to complete before the clinical data has been retrieved
+		Result probe = new Result();
+		probe.setResourceActionId(result.getResourceActionId());
+		probe = resource.checkQueryStatus(session, probe);
+		pollCount++;
+
+		if (probe.getResultStatus() == ResultStatus.ERROR) {
+			finish(Phase.ERROR, ResultStatus.ERROR, probe.getMessage());
+		} else if (probe.getResultStatus() == ResultStatus.COMPLETE) {
+			queryFinished();
+		} else {
+			setMessage("Waiting for the i2b2 query to complete (" + pollCount
+					+ " checks)");
+			pollDelay = Math.min(pollDelay * 2, resource.getPollMaxDelay());
+			resource.getScheduler().schedule(this, pollDelay,
+					TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private synchronized void queryFinished() {
+		queryComplete = true;
+		if (expansionComplete) {
+			fetch();
+		} else {
+			phase = Phase.EXPANDING;
+			setMessage("Expanding select clauses");
+		}
+	}
+
+	private synchronized void expansionFinished(Map<String, String> aliasMap) {
+		this.aliasMap = aliasMap;
+		expansionComplete = true;
+		if (queryComplete) {
+			fetch();
+		}
+	}
+
+	private synchronized void fetch() {
+		if (isDone()) {
+			return;
+		}
+		phase = Phase.FETCHING;
+		setMessage("Retrieving clinical data");
+		resource.getWorkers().execute(this);
+	}
+
+	private synchronized void setMessage(String message) {
+		if (!isDone()) {
+			result.setMessage(message);
+		}
+	}
+
+	private synchronized void finish(Phase finalPhase, ResultStatus status,
+			String message) {
+		if (isDone()) {
+			return;
+		}
+		phase = finalPhase;
+		result.setResultStatus(status);
+		result.setMessage(message);
+		resource.jobFinished(this);
+	}
+
+	/**
+	 * Stops the export and aborts the clinical data request in flight
+	 *
+	 * @param message
+	 *            Message reported by the result
+	 */
+	synchronized void cancel(String message) {
+		finish(Phase.ERROR, ResultStatus.ERROR, message);
+		if (request != null) {
+			request.abort();
+		}
+	}
+
+	/**
+	 * Retrieves the failed batches of an incomplete export again. The rows
+	 * already committed are kept.
+	 *
+	 * @return True if the retry was started, false if the export is not
+	 *         incomplete
+	 */
+	synchronized boolean retry() {
+		if (phase != Phase.INCOMPLETE) {
+			return false;
+		}
+		// The retry is timed on its own by the watchdog
+		started = System.currentTimeMillis();
+		phase = Phase.FETCHING;
+		result.setResultStatus(ResultStatus.RUNNING);
+		result.setMessage("Retrying batches " + progress.getFailedBatches());
+		resource.getWorkers().execute(this);
+		return true;
+	}
+
+	/**
+	 * Sets the clinical data request in flight, so a cancellation can abort
+	 * it. A request set after the job was cancelled is aborted at once.
+	 *
+	 * @param request
+	 *            Request, or null once it has completed
+	 */
+	synchronized void setRequest(HttpUriRequest request) {
+		this.request = request;
+		if (request != null && isDone()) {
+			request.abort();
+		}
+	}
+
+	/**
+	 * Returns the progress of the clinical data retrieval
+	 *
+	 * @return Progress
+	 */
+	ExportProgress getProgress() {
+		return progress;
+	}
+
+	/**
+	 * Returns the rows of the result set by patient number, kept across
+	 * retries so a retried batch updates the rows of its patients
+	 *
+	 * @return Rows by patient number
+	 */
+	Map<String, Long> getPatientRows() {
+		return patientRows;
+	}
+
+	/**
+	 * Returns the cache user of the session that submitted the query
+	 *
+	 * @return Owner
+	 */
+	String getOwner() {
+		return owner;
+	}
+
+	/**
+	 * Returns the time the job was submitted, or its retry was started
+	 *
+	 * @return Time in milliseconds
+	 */
+	long getStarted() {
+		return started;
+	}
+
+	/**
+	 * Copies the current state of the export onto the given result. Once the
+	 * export has completed, or ended incomplete, its result set is handed
+	 * out. While it is being retrieved the committed rows are copied into the
+	 * result set of the given result instead.
+	 *
+	 * @param target
+	 *            Result to report to
+	 * @return Result
+	 */
+	synchronized Result report(Result target) {
+		if (target != result) {
+			if (phase == Phase.COMPLETE || phase == Phase.INCOMPLETE) {
+				target.setData(result.getData());
+			} else if (phase == Phase.FETCHING) {
+				copyCommittedRows(target);
+			}
+		}
+		target.setResultStatus(result.getResultStatus());
+		if (phase == Phase.FETCHING) {
+			target.setMessage(progress.toString());
+		} else {
+			target.setMessage(result.getMessage());
+		}
+		return target;
+	}
+
+	/**
+	 * Copies the rows committed so far into the result set of the target.
+	 * Rows already copied are updated in place, as a later batch fills in
+	 * more of their columns. Nothing is copied if no batch was committed
+	 * since the last copy into the same result set.
+	 */
+	private void copyCommittedRows(Result target) {
+		if (!(target.getData() instanceof ResultSet)
+				|| !(result.getData() instanceof ResultSet)
+				|| target.getData() == result.getData()) {
+			return;
+		}
+		ResultSet snapshot = (ResultSet) target.getData();
+		ResultSet source = (ResultSet) result.getData();
+		int committedBatches = progress.getCompletedBatches();
+		if (snapshot == snapshotData && committedBatches == snapshotBatches) {
+			return;
+		}
+
+		// The export writes its result set under the same lock
+		synchronized (source) {
+			try {
+				if (snapshot.getColumnSize() == 0) {
+					for (Column column : source.getColumns()) {
+						snapshot.appendColumn(column);
+					}
+				}
+				long committedRows = progress.getRowsWritten();
+				long snapshotRows = snapshot.getSize();
+				source.beforeFirst();
+				snapshot.beforeFirst();
+				for (long row = 0; row < committedRows && source.next(); row++) {
+					if (row < snapshotRows) {
+						snapshot.next();
+					} else {
+						snapshot.appendRow();
+					}
+					for (Column column : source.getColumns()) {
+						snapshot.updateString(column.getName(),
+								source.getString(column.getName()));
+					}
+				}
+				if (snapshot instanceof FileResultSet) {
+					((FileResultSet) snapshot).merge();
+				}
+				snapshotData = snapshot;
+				snapshotBatches = committedBatches;
+			} catch (ResultSetException | PersistableException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns true if the export has completed, ended incomplete or failed
+	 *
+	 * @return Is done
+	 */
+	boolean isDone() {
+		return phase == Phase.COMPLETE || phase == Phase.INCOMPLETE
+				|| phase == Phase.ERROR;
+	}
+
+	/**
+	 * Returns true if the export ended with batches that can be retried
+	 *
+	 * @return Is incomplete
+	 */
+	boolean isIncomplete() {
+		return phase == Phase.INCOMPLETE;
+	}
+
+	/**
+	 * Returns the resource action id of the result being exported
+	 *
+	 * @return Resource action id
+	 */
+	String getResourceActionId() {
+		return result.getResourceActionId();
+	}
+}
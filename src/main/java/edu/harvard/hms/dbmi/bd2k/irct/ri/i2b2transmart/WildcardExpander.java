@@ -0,0 +1,191 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.i2b2transmart;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
+import edu.harvard.hms.dbmi.i2b2.api.ont.ONTCell;
+
+/**
+ * Expands a wildcard select clause into all of the leaf concepts below it.
+ * The ontology tree is walked breadth first, with every folder of a level
+ * requested at once on a bounded thread pool. The leaves found below each
+ * base PUI are cached per user, since the ontology a user sees depends on
+ * their access, so later exports of the same study skip the walk.
+ *
+ */
+class WildcardExpander {
+	private final I2B2TranSMARTResourceImplementation resource;
+	private final ExecutorService executor;
+	private final ExpiringCache<String, Map<String, String>> subtreeCache;
+	private final ThreadLocal<ONTCell> ontCells = new ThreadLocal<ONTCell>();
+
+	/**
+	 * Creates an expander
+	 *
+	 * @param resource
+	 *            Resource the ontology requests are made through
+	 * @param executor
+	 *            Executor that bounds the number of concurrent ontology
+	 *            requests
+	 * @param cacheSize
+	 *            Maximum number of subtrees held in the cache
+	 * @param cacheTTL
+	 *            Time to live of a cached subtree in milliseconds
+	 */
+	WildcardExpander(I2B2TranSMARTResourceImplementation resource,
+			ExecutorService executor, int cacheSize, long cacheTTL) {
+		this.resource = resource;
+		this.executor = executor;
+		this.subtreeCache = new ExpiringCache<String, Map<String, String>>(
+				cacheSize, cacheTTL);
+	}
+
+	/**
+	 * Returns all the leaves below the base PUI. The returned map is keyed by
+	 * the leaf PUI, and the value is the PUI of the folder the leaf is in.
+	 *
+	 * @param basePUI
+	 *            PUI of the folder to expand
+	 * @param session
+	 *            Current Session
+	 * @return Leaves
+	 * @throws ResourceInterfaceException
+	 *             An error occurred walking the ontology
+	 */
+	Map<String, String> expand(String basePUI, SecureSession session)
+			throws ResourceInterfaceException {
+		String cacheUser = resource.getCacheUser(session);
+		Map<String, String> leaves = getCachedLeaves(cacheUser, basePUI);
+		if (leaves != null) {
+			return leaves;
+		}
+
+		leaves = new LinkedHashMap<String, String>();
+		List<String> folders = new ArrayList<String>();
+		folders.add(basePUI);
+
+		while (!folders.isEmpty()) {
+			List<Future<List<Entity>>> levelChildren = new ArrayList<Future<List<Entity>>>();
+			for (String folder : folders) {
+				levelChildren.add(executor.submit(new ChildRequest(folder,
+						session)));
+			}
+
+			List<String> nextFolders = new ArrayList<String>();
+			for (int folderIndex = 0; folderIndex < folders.size(); folderIndex++) {
+				for (Entity entity : getChildren(levelChildren.get(folderIndex))) {
+					String visualAttributes = entity.getAttributes().get(
+							"visualattributes");
+					if (visualAttributes == null) {
+						continue;
+					}
+					if (visualAttributes.startsWith("C")
+							|| visualAttributes.startsWith("F")) {
+						nextFolders.add(entity.getPui());
+					} else if (visualAttributes.startsWith("L")) {
+						leaves.put(entity.getPui(), folders.get(folderIndex));
+					}
+				}
+			}
+			folders = nextFolders;
+		}
+
+		subtreeCache.put(cacheUser + "|" + toFolderPUI(basePUI), leaves);
+		return leaves;
+	}
+
+	/**
+	 * Returns the leaves below the base PUI if it, or one of the folders
+	 * above it, has already been expanded for the user
+	 *
+	 * @param cacheUser
+	 *            User the leaves were cached for
+	 * @param basePUI
+	 *            PUI of the folder to expand
+	 * @return Leaves or null if not cached
+	 */
+	private Map<String, String> getCachedLeaves(String cacheUser,
+			String basePUI) {
+		String folderPUI = toFolderPUI(basePUI);
+		Map<String, String> leaves = subtreeCache.get(cacheUser + "|"
+				+ folderPUI);
+		if (leaves != null) {
+			return leaves;
+		}
+
+		String ancestorPUI = folderPUI;
+		while (ancestorPUI.length() > 1) {
+			ancestorPUI = ancestorPUI.substring(0, ancestorPUI.substring(0,
+					ancestorPUI.length() - 1).lastIndexOf('/') + 1);
+			Map<String, String> ancestorLeaves = subtreeCache.get(cacheUser
+					+ "|" + ancestorPUI);
+			if (ancestorLeaves != null) {
+				leaves = new LinkedHashMap<String, String>();
+				for (String leaf : ancestorLeaves.keySet()) {
+					// Without the trailing slash /a/b would also match /a/bc
+					if (leaf.startsWith(folderPUI)) {
+						leaves.put(leaf, ancestorLeaves.get(leaf));
+					}
+				}
+				return leaves;
+			}
+		}
+		return null;
+	}
+
+	private static String toFolderPUI(String pui) {
+		return pui.endsWith("/") ? pui : pui + "/";
+	}
+
+	private List<Entity> getChildren(Future<List<Entity>> children)
+			throws ResourceInterfaceException {
+		try {
+			return children.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new ResourceInterfaceException(e.getMessage());
+		} catch (ExecutionException e) {
+			if (e.getCause() instanceof ResourceInterfaceException) {
+				throw (ResourceInterfaceException) e.getCause();
+			}
+			throw new ResourceInterfaceException(e.getCause().getMessage());
+		}
+	}
+
+	/**
+	 * Requests the children of a single folder using an ontology cell owned
+	 * by the executing thread
+	 */
+	private class ChildRequest implements Callable<List<Entity>> {
+		private final String folderPUI;
+		private final SecureSession session;
+
+		private ChildRequest(String folderPUI, SecureSession session) {
+			this.folderPUI = folderPUI;
+			this.session = session;
+		}
+
+		@Override
+		public List<Entity> call() throws ResourceInterfaceException {
+			ONTCell cell = ontCells.get();
+			if (cell == null) {
+				cell = resource.createOntologyCell();
+				ontCells.set(cell);
+			}
+			return resource.listChildren(cell, new Entity(folderPUI), session);
+		}
+	}
+}
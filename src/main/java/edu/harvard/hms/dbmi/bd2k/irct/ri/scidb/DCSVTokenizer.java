@@ -0,0 +1,255 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.Arrays;
+
+/**
+ * A tokenizer for the SciDB dcsv output format. Each line holds the
+ * dimensions of a cell in braces followed by its attributes, for example
+ * <code>{0,1} 'abc',2.5,null</code>. Fields are read in a single pass over a
+ * reused buffer, and the characters of the current row are kept until the
+ * next row is read so callers only create the values they need.
+ *
+ */
+public class DCSVTokenizer {
+	private final Reader reader;
+	private final char[] buffer = new char[8192];
+	private int position;
+	private int limit;
+
+	private char[] row = new char[256];
+	private int rowLength;
+	private int[] fieldStarts = new int[16];
+	private int[] fieldEnds = new int[16];
+	private boolean[] fieldNulls = new boolean[16];
+	private int fieldCount;
+
+	/**
+	 * Creates a tokenizer over the given reader
+	 *
+	 * @param reader
+	 *            Reader of the dcsv output
+	 */
+	public DCSVTokenizer(Reader reader) {
+		this.reader = reader;
+	}
+
+	/**
+	 * Reads the next row. Blank lines are skipped.
+	 *
+	 * @return False if there are no more rows
+	 * @throws IOException
+	 *             An error occurred reading the output
+	 */
+	public boolean nextRow() throws IOException {
+		fieldCount = 0;
+		rowLength = 0;
+
+		int c = read();
+		while (c == '\r' || c == '\n') {
+			c = read();
+		}
+		if (c == -1) {
+			return false;
+		}
+		if (c == '{') {
+			c = read();
+		}
+
+		while (true) {
+			int start = rowLength;
+			boolean quoted = false;
+
+			if (c == '\'') {
+				quoted = true;
+				c = read();
+				while (c != -1 && c != '\'') {
+					if (c == '\\') {
+						c = unescape(read());
+						if (c == -1) {
+							break;
+						}
+					}
+					append((char) c);
+					c = read();
+				}
+				c = read();
+			}
+			while (c != -1 && c != ',' && c != '}' && c != '\n' && c != '\r') {
+				append((char) c);
+				c = read();
+			}
+			addField(start, quoted);
+
+			if (c == '}') {
+				// The dimensions are separated from the attributes by a space
+				c = read();
+				if (c == ' ') {
+					c = read();
+				}
+				if (c == -1 || c == '\n' || c == '\r') {
+					return true;
+				}
+			} else if (c == ',') {
+				c = read();
+			} else {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * Returns the number of fields in the current row
+	 *
+	 * @return Field count
+	 */
+	public int getFieldCount() {
+		return fieldCount;
+	}
+
+	/**
+	 * Returns true if the field is a SciDB null or missing value
+	 *
+	 * @param field
+	 *            Field index
+	 * @return Is null
+	 */
+	public boolean isNull(int field) {
+		return fieldNulls[field];
+	}
+
+	/**
+	 * Returns the value of the field
+	 *
+	 * @param field
+	 *            Field index
+	 * @return Value
+	 */
+	public String getString(int field) {
+		return new String(row, fieldStarts[field], fieldEnds[field]
+				- fieldStarts[field]);
+	}
+
+	/**
+	 * Returns the value of an integer field, parsed directly from the row
+	 *
+	 * @param field
+	 *            Field index
+	 * @return Value
+	 */
+	public long getLong(int field) {
+		int position = fieldStarts[field];
+		int end = fieldEnds[field];
+		boolean negative = false;
+		if (position < end && (row[position] == '-' || row[position] == '+')) {
+			negative = row[position] == '-';
+			position++;
+		}
+		if (position == end) {
+			throw new NumberFormatException(getString(field));
+		}
+
+		long value = 0;
+		for (; position < end; position++) {
+			int digit = row[position] - '0';
+			if (digit < 0 || digit > 9) {
+				throw new NumberFormatException(getString(field));
+			}
+			value = value * 10 + digit;
+		}
+		return negative ? -value : value;
+	}
+
+	/**
+	 * Returns the value of a floating point field, including the inf and nan
+	 * values written by SciDB
+	 *
+	 * @param field
+	 *            Field index
+	 * @return Value
+	 */
+	public double getDouble(int field) {
+		String value = getString(field);
+		switch (value) {
+		case "inf":
+			return Double.POSITIVE_INFINITY;
+		case "-inf":
+			return Double.NEGATIVE_INFINITY;
+		case "nan":
+		case "-nan":
+			return Double.NaN;
+		default:
+			return Double.parseDouble(value);
+		}
+	}
+
+	/**
+	 * Returns the value of a bool field
+	 *
+	 * @param field
+	 *            Field index
+	 * @return Value
+	 */
+	public boolean getBoolean(int field) {
+		return fieldEnds[field] - fieldStarts[field] == 4
+				&& row[fieldStarts[field]] == 't';
+	}
+
+	private void addField(int start, boolean quoted) {
+		if (fieldCount == fieldStarts.length) {
+			fieldStarts = Arrays.copyOf(fieldStarts, fieldCount * 2);
+			fieldEnds = Arrays.copyOf(fieldEnds, fieldCount * 2);
+			fieldNulls = Arrays.copyOf(fieldNulls, fieldCount * 2);
+		}
+		fieldStarts[fieldCount] = start;
+		fieldEnds[fieldCount] = rowLength;
+		fieldNulls[fieldCount] = !quoted && isNullToken(start, rowLength);
+		fieldCount++;
+	}
+
+	private boolean isNullToken(int start, int end) {
+		int length = end - start;
+		if (length > 0 && row[start] == '?') {
+			// Missing reason code
+			return true;
+		}
+		return length == 4 && row[start] == 'n' && row[start + 1] == 'u'
+				&& row[start + 2] == 'l' && row[start + 3] == 'l';
+	}
+
+	private void append(char c) {
+		if (rowLength == row.length) {
+			row = Arrays.copyOf(row, rowLength * 2);
+		}
+		row[rowLength++] = c;
+	}
+
+	private int unescape(int c) {
+		switch (c) {
+		case 'n':
+			return '\n';
+		case 't':
+			return '\t';
+		case 'r':
+			return '\r';
+		default:
+			return c;
+		}
+	}
+
+	private int read() throws IOException {
+		if (position == limit) {
+			limit = reader.read(buffer, 0, buffer.length);
+			position = 0;
+			if (limit <= 0) {
+				limit = 0;
+				return -1;
+			}
+		}
+		return buffer[position++];
+	}
+}
@@ -0,0 +1,58 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import edu.harvard.hms.dbmi.scidb.SciDBCommand;
+
+/**
+ * An AFL statement that is sent to SciDB as written, for operators that are
+ * not covered by the SciDB client
+ *
+ */
+public class SciDBAFLCommand implements SciDBCommand {
+	private final String afl;
+
+	/**
+	 * Creates a command from an AFL string
+	 *
+	 * @param afl
+	 *            AFL statement
+	 */
+	public SciDBAFLCommand(String afl) {
+		this.afl = afl;
+	}
+
+	/**
+	 * Returns a command that reports the output schema of the given query
+	 *
+	 * @param query
+	 *            Query
+	 * @return Show command
+	 */
+	public static SciDBAFLCommand showSchema(SciDBCommand query) {
+		return new SciDBAFLCommand("show(" + quote(query.toAFLQueryString())
+				+ ", 'afl')");
+	}
+
+	/**
+	 * Quotes a value as an AFL string literal
+	 *
+	 * @param value
+	 *            Value
+	 * @return String literal
+	 */
+	public static String quote(String value) {
+		return "'" + value.replace("\\", "\\\\").replace("'", "\\'") + "'";
+	}
+
+	@Override
+	public String toAFLQueryString() {
+		return afl;
+	}
+
+	@Override
+	public String toString() {
+		return afl;
+	}
+}
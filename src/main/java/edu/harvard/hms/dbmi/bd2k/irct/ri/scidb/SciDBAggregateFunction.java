@@ -0,0 +1,64 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.Locale;
+
+/**
+ * The SciDB aggregate functions that can be used in an AGGREGATE select
+ * operation. Every function except count needs an attribute to reduce.
+ *
+ */
+public enum SciDBAggregateFunction {
+	COUNT, APPROXDC, AVG, VAR, STDEV, MAD, MIN, MAX, MEDIAN, FIRST_VALUE, LAST_VALUE, SUM, PROD;
+
+	/**
+	 * Returns the function with the given name, ignoring case
+	 *
+	 * @param name
+	 *            Function name
+	 * @return Function
+	 * @throws IllegalArgumentException
+	 *             The function is not supported
+	 */
+	public static SciDBAggregateFunction fromName(String name) {
+		try {
+			return valueOf(name.trim().toUpperCase(Locale.ENGLISH));
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(
+					"Unsupported aggregate function " + name);
+		}
+	}
+
+	/**
+	 * Returns true if the result depends on the order the cells are reduced
+	 * in, so a sort below it can not be dropped
+	 *
+	 * @return Order sensitive
+	 */
+	public boolean isOrderSensitive() {
+		return this == FIRST_VALUE || this == LAST_VALUE;
+	}
+
+	/**
+	 * Returns the AFL call of this function
+	 *
+	 * @param attribute
+	 *            Attribute to reduce, or null to count cells
+	 * @return AFL
+	 * @throws IllegalArgumentException
+	 *             The function needs an attribute
+	 */
+	public String toAFL(String attribute) {
+		if (attribute == null) {
+			if (this != COUNT) {
+				throw new IllegalArgumentException(name().toLowerCase(
+						Locale.ENGLISH)
+						+ " needs an attribute");
+			}
+			return "count(*)";
+		}
+		return name().toLowerCase(Locale.ENGLISH) + "(" + attribute + ")";
+	}
+}
@@ -0,0 +1,218 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.scidb.SciDB;
+import edu.harvard.hms.dbmi.scidb.SciDBArray;
+import edu.harvard.hms.dbmi.scidb.SciDBListElement;
+import edu.harvard.hms.dbmi.scidb.exception.NotConnectedException;
+
+/**
+ * Caches the arrays of a SciDB instance and their schemas. A single
+ * list('arrays') call returns the name, version id and schema of every
+ * array, so the listing is all that is needed to browse the resource or to
+ * look up attribute types while compiling a query. The listing is reloaded
+ * once its time to live has passed. The parsed schema of an array is kept
+ * across reloads for as long as the array version id is unchanged.
+ *
+ */
+public class SciDBArrayCache {
+	private final long timeToLive;
+	private Map<String, CachedArray> arrays;
+	private long expires;
+
+	/**
+	 * Creates an array cache
+	 *
+	 * @param timeToLive
+	 *            Time to live of the array listing in milliseconds
+	 */
+	public SciDBArrayCache(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns the cached arrays by name, or null if the listing has not been
+	 * loaded or has expired
+	 *
+	 * @return Arrays
+	 */
+	public synchronized Map<String, CachedArray> getArrays() {
+		if (arrays == null || expires < System.currentTimeMillis()) {
+			return null;
+		}
+		return arrays;
+	}
+
+	/**
+	 * Returns the cached arrays by name, loading the listing through the
+	 * given connection if needed
+	 *
+	 * @param sciDB
+	 *            SciDB connection
+	 * @return Arrays
+	 * @throws NotConnectedException
+	 *             Not connected to SciDB
+	 * @throws IOException
+	 *             An error occurred reading the listing
+	 */
+	public Map<String, CachedArray> getArrays(SciDB sciDB)
+			throws NotConnectedException, IOException {
+		Map<String, CachedArray> cachedArrays = getArrays();
+		if (cachedArrays == null) {
+			cachedArrays = load(sciDB);
+		}
+		return cachedArrays;
+	}
+
+	/**
+	 * Loads the array listing
+	 *
+	 * @param sciDB
+	 *            SciDB connection
+	 * @return Arrays
+	 * @throws NotConnectedException
+	 *             Not connected to SciDB
+	 * @throws IOException
+	 *             An error occurred reading the listing
+	 */
+	public Map<String, CachedArray> load(SciDB sciDB)
+			throws NotConnectedException, IOException {
+		String response = sciDB.executeQuery(
+				sciDB.list(SciDBListElement.ARRAYS), "dcsv");
+		if (response.contains("Exception")) {
+			throw new IOException(response);
+		}
+
+		DCSVTokenizer tokenizer = new DCSVTokenizer(new InputStreamReader(
+				sciDB.readLines(), StandardCharsets.UTF_8));
+		Map<String, CachedArray> loadedArrays = new LinkedHashMap<String, CachedArray>();
+		if (tokenizer.nextRow()) {
+			int nameField = -1;
+			int versionField = -1;
+			int schemaField = -1;
+			for (int field = 0; field < tokenizer.getFieldCount(); field++) {
+				switch (tokenizer.getString(field).trim()) {
+				case "name":
+					nameField = field;
+					break;
+				case "aid":
+					versionField = field;
+					break;
+				case "schema":
+					schemaField = field;
+					break;
+				default:
+				}
+			}
+			if (nameField == -1 || schemaField == -1) {
+				throw new IOException("Unexpected SciDB array listing");
+			}
+			// Without a version id a change of schema is the only change
+			// that can be seen
+			if (versionField == -1) {
+				versionField = schemaField;
+			}
+
+			while (tokenizer.nextRow()) {
+				String name = tokenizer.getString(nameField);
+				loadedArrays.put(name,
+						new CachedArray(name, tokenizer.getString(versionField),
+								tokenizer.getString(schemaField)));
+			}
+		}
+
+		synchronized (this) {
+			if (arrays != null) {
+				for (CachedArray loadedArray : loadedArrays.values()) {
+					CachedArray previous = arrays.get(loadedArray.name);
+					if (previous != null
+							&& previous.version.equals(loadedArray.version)) {
+						loadedArrays.put(loadedArray.name, previous);
+					}
+				}
+			}
+			arrays = Collections.unmodifiableMap(loadedArrays);
+			expires = System.currentTimeMillis() + timeToLive;
+			return arrays;
+		}
+	}
+
+	/**
+	 * Drops the listing so it is reloaded on the next request. Used after an
+	 * array has been created, removed or changed through this resource.
+	 */
+	public synchronized void invalidate() {
+		arrays = null;
+	}
+
+	/**
+	 * An array in the listing. The schema is parsed the first time it is
+	 * needed.
+	 */
+	public static class CachedArray {
+		private final String name;
+		private final String version;
+		private final String schemaString;
+		private SciDBArray array;
+		private SciDBSchema schema;
+
+		CachedArray(String name, String version, String schemaString) {
+			this.name = name;
+			this.version = version;
+			this.schemaString = schemaString;
+		}
+
+		/**
+		 * Returns the array name
+		 *
+		 * @return Name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns the version id of the array
+		 *
+		 * @return Version
+		 */
+		public String getVersion() {
+			return version;
+		}
+
+		/**
+		 * Returns the array as parsed by the SciDB client
+		 *
+		 * @return Array
+		 */
+		public synchronized SciDBArray getArray() {
+			if (array == null) {
+				// Quoted as in the csv response of show()
+				array = SciDBArray.fromAFLResponseString("'" + schemaString
+						+ "'");
+			}
+			return array;
+		}
+
+		/**
+		 * Returns the attribute types and dimensions of the array
+		 *
+		 * @return Schema
+		 */
+		public synchronized SciDBSchema getSchema() {
+			if (schema == null) {
+				schema = SciDBSchema.parse(schemaString);
+			}
+			return schema;
+		}
+	}
+}
@@ -0,0 +1,269 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.scidb.SciDBCommand;
+
+/**
+ * Reads query output saved in the SciDB binary format. The query is wrapped
+ * so the dimensions are returned as int64 attributes ahead of the query
+ * attributes, and the type template passed as the save format is built from
+ * the query output schema. Each cell is a run of little endian values, a
+ * nullable value being preceded by a missing reason byte, and a string by its
+ * length. Values are decoded from a ByteBuffer into values of the types of
+ * the result set columns.
+ *
+ */
+public class SciDBBinaryReader {
+	private static final List<String> SUPPORTED_TYPES = Arrays.asList("int8",
+			"int16", "int32", "int64", "uint8", "uint16", "uint32", "uint64",
+			"float", "double", "bool", "char", "string");
+	private static final String DIMENSION_PREFIX = "dim_";
+
+	private final InputStream inputStream;
+	private final String[] types;
+	private final boolean[] nullable;
+	private ByteBuffer buffer = ByteBuffer.allocate(65536).order(
+			ByteOrder.LITTLE_ENDIAN);
+	private boolean endOfStream;
+
+	/**
+	 * Creates a reader of the binary output of a query
+	 *
+	 * @param inputStream
+	 *            Binary output
+	 * @param schema
+	 *            Output schema of the query before it was wrapped
+	 */
+	public SciDBBinaryReader(InputStream inputStream, SciDBSchema schema) {
+		this.inputStream = inputStream;
+
+		int dimensionCount = schema.getDimensionNames().size();
+		Map<String, String> attributeTypes = schema.getAttributeTypes();
+		this.types = new String[dimensionCount + attributeTypes.size()];
+		this.nullable = new boolean[types.length];
+
+		Arrays.fill(types, 0, dimensionCount, "int64");
+		int column = dimensionCount;
+		for (String attributeName : attributeTypes.keySet()) {
+			types[column] = attributeTypes.get(attributeName);
+			nullable[column] = schema.isNullable(attributeName);
+			column++;
+		}
+		buffer.flip();
+	}
+
+	/**
+	 * Returns true if every attribute of the schema has a type that can be
+	 * read in the binary format
+	 *
+	 * @param schema
+	 *            Query output schema
+	 * @return Is supported
+	 */
+	public static boolean supports(SciDBSchema schema) {
+		return SUPPORTED_TYPES.containsAll(schema.getAttributeTypes().values());
+	}
+
+	/**
+	 * Wraps a query so its dimensions are returned as attributes
+	 *
+	 * @param query
+	 *            Query
+	 * @param schema
+	 *            Output schema of the query
+	 * @return Wrapped query
+	 */
+	public static SciDBCommand createQuery(SciDBCommand query,
+			SciDBSchema schema) {
+		List<String> dimensionNames = schema.getDimensionNames();
+		if (dimensionNames.isEmpty()) {
+			return query;
+		}
+
+		StringBuilder apply = new StringBuilder("apply(");
+		apply.append(query.toAFLQueryString());
+		List<String> projection = new ArrayList<String>();
+		for (String dimensionName : dimensionNames) {
+			apply.append(", ").append(DIMENSION_PREFIX).append(dimensionName)
+					.append(", ").append(dimensionName);
+			projection.add(DIMENSION_PREFIX + dimensionName);
+		}
+		apply.append(")");
+		projection.addAll(schema.getAttributeTypes().keySet());
+
+		StringBuilder project = new StringBuilder("project(");
+		project.append(apply);
+		for (String attributeName : projection) {
+			project.append(", ").append(attributeName);
+		}
+		project.append(")");
+		return new SciDBAFLCommand(project.toString());
+	}
+
+	/**
+	 * Returns the type template used as the save format of the wrapped query
+	 *
+	 * @param schema
+	 *            Output schema of the query
+	 * @return Type template
+	 */
+	public static String createTemplate(SciDBSchema schema) {
+		StringBuilder template = new StringBuilder("(");
+		for (int dimensioni = 0; dimensioni < schema.getDimensionNames()
+				.size(); dimensioni++) {
+			template.append("int64,");
+		}
+		for (String attributeName : schema.getAttributeTypes().keySet()) {
+			template.append(schema.getAttributeTypes().get(attributeName));
+			if (schema.isNullable(attributeName)) {
+				template.append(" null");
+			}
+			template.append(",");
+		}
+		template.setCharAt(template.length() - 1, ')');
+		return template.toString();
+	}
+
+	/**
+	 * Returns true if there is another cell to read
+	 *
+	 * @return Has next cell
+	 * @throws IOException
+	 *             An error occurred reading the output
+	 */
+	public boolean hasNext() throws IOException {
+		return fill(1);
+	}
+
+	/**
+	 * Reads the next cell as a row of column values. Null values are returned
+	 * as null.
+	 *
+	 * @return Column values
+	 * @throws IOException
+	 *             An error occurred reading the output
+	 */
+	public Object[] readCell() throws IOException {
+		Object[] row = new Object[types.length];
+		for (int column = 0; column < types.length; column++) {
+			boolean isNull = false;
+			if (nullable[column]) {
+				require(1);
+				isNull = buffer.get() != -1;
+			}
+
+			Object value;
+			switch (types[column]) {
+			case "int8":
+				require(1);
+				value = (int) buffer.get();
+				break;
+			case "uint8":
+				require(1);
+				value = buffer.get() & 0xFF;
+				break;
+			case "int16":
+				require(2);
+				value = (int) buffer.getShort();
+				break;
+			case "uint16":
+				require(2);
+				value = buffer.getShort() & 0xFFFF;
+				break;
+			case "int32":
+				require(4);
+				value = buffer.getInt();
+				break;
+			case "uint32":
+				require(4);
+				value = buffer.getInt() & 0xFFFFFFFFL;
+				break;
+			case "int64":
+			case "uint64":
+				require(8);
+				value = buffer.getLong();
+				break;
+			case "float":
+				require(4);
+				value = (double) buffer.getFloat();
+				break;
+			case "double":
+				require(8);
+				value = buffer.getDouble();
+				break;
+			case "bool":
+				require(1);
+				value = buffer.get() != 0;
+				break;
+			case "char":
+				require(1);
+				value = String.valueOf((char) (buffer.get() & 0xFF));
+				break;
+			default:
+				value = readString();
+			}
+			if (!isNull) {
+				row[column] = value;
+			}
+		}
+		return row;
+	}
+
+	private String readString() throws IOException {
+		require(4);
+		int length = buffer.getInt();
+		require(length);
+		// The length includes the terminating null character
+		int stringLength = length > 0 ? length - 1 : 0;
+		String value = new String(buffer.array(), buffer.arrayOffset()
+				+ buffer.position(), stringLength, StandardCharsets.UTF_8);
+		buffer.position(buffer.position() + length);
+		return value;
+	}
+
+	private void require(int bytes) throws IOException {
+		if (!fill(bytes)) {
+			throw new EOFException("Unexpected end of SciDB binary output");
+		}
+	}
+
+	private boolean fill(int bytes) throws IOException {
+		if (buffer.remaining() >= bytes) {
+			return true;
+		}
+		if (bytes > buffer.capacity()) {
+			ByteBuffer larger = ByteBuffer.allocate(
+					Math.max(bytes, buffer.capacity() * 2)).order(
+					ByteOrder.LITTLE_ENDIAN);
+			larger.put(buffer);
+			buffer = larger;
+		} else {
+			buffer.compact();
+		}
+
+		while (buffer.position() < bytes && !endOfStream) {
+			int read = inputStream.read(buffer.array(), buffer.arrayOffset()
+					+ buffer.position(), buffer.remaining());
+			if (read == -1) {
+				endOfStream = true;
+			} else {
+				buffer.position(buffer.position() + read);
+			}
+		}
+		buffer.flip();
+		return buffer.remaining() >= bytes;
+	}
+}
@@ -0,0 +1,129 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+
+/**
+ * Finds the sub-plans that occur more than once in a SciDB query plan.
+ * Identical sub-plans are replaced by a single shared node so the plan is
+ * built once, and shared sub-plans can be replaced by a scan of a temporary
+ * array that holds their output so SciDB computes them once.
+ *
+ */
+public class SciDBCommonSubplans {
+	private static final String TEMP_ARRAY_PREFIX = "IRCT_SUBPLAN_";
+
+	private final Map<SciDBPlanNode, SciDBPlanNode> canonical = new HashMap<SciDBPlanNode, SciDBPlanNode>();
+
+	/**
+	 * Returns the plan with every sub-plan replaced by the first identical
+	 * sub-plan seen by this instance
+	 *
+	 * @param plan
+	 *            Plan
+	 * @return Plan sharing identical sub-plans
+	 */
+	public SciDBPlanNode share(SciDBPlanNode plan) {
+		if (plan == null) {
+			return null;
+		}
+
+		List<SciDBPlanNode> children = new ArrayList<SciDBPlanNode>();
+		boolean childChanged = false;
+		for (SciDBPlanNode child : plan.getChildren()) {
+			SciDBPlanNode sharedChild = share(child);
+			childChanged |= sharedChild != child;
+			children.add(sharedChild);
+		}
+		SciDBPlanNode node = childChanged ? plan.withChildren(children) : plan;
+
+		SciDBPlanNode existing = canonical.get(node);
+		if (existing != null) {
+			return existing;
+		}
+		canonical.put(node, node);
+		return node;
+	}
+
+	/**
+	 * Replaces each sub-plan that occurs more than once by a scan of a
+	 * temporary array. The largest shared sub-plans are replaced first, and
+	 * the returned map holds the temporary array names with the sub-plans
+	 * that must be stored into them, in the order they must be stored.
+	 *
+	 * @param plan
+	 *            Plan
+	 * @param tempArrays
+	 *            Filled with the temporary arrays to create
+	 * @return Plan reading the temporary arrays
+	 */
+	public static SciDBPlanNode materialize(SciDBPlanNode plan,
+			LinkedHashMap<String, SciDBPlanNode> tempArrays) {
+		SciDBPlanNode materialized = plan;
+		while (true) {
+			Map<SciDBPlanNode, Integer> references = new HashMap<SciDBPlanNode, Integer>();
+			countReferences(materialized, references);
+
+			Map<SciDBPlanNode, String> names = new HashMap<SciDBPlanNode, String>();
+			SciDBPlanNode replaced = replaceShared(materialized, references,
+					names);
+			if (names.isEmpty()) {
+				return materialized;
+			}
+			for (Map.Entry<SciDBPlanNode, String> name : names.entrySet()) {
+				tempArrays.put(name.getValue(), name.getKey());
+			}
+			materialized = replaced;
+		}
+	}
+
+	private static void countReferences(SciDBPlanNode node,
+			Map<SciDBPlanNode, Integer> references) {
+		if (node == null || node instanceof Scan) {
+			return;
+		}
+		Integer count = references.get(node);
+		references.put(node, count == null ? 1 : count + 1);
+		for (SciDBPlanNode child : node.getChildren()) {
+			countReferences(child, references);
+		}
+	}
+
+	private static SciDBPlanNode replaceShared(SciDBPlanNode node,
+			Map<SciDBPlanNode, Integer> references,
+			Map<SciDBPlanNode, String> names) {
+		if (node == null || node instanceof Scan) {
+			return node;
+		}
+
+		Integer count = references.get(node);
+		if (count != null && count > 1) {
+			String name = names.get(node);
+			if (name == null) {
+				name = TEMP_ARRAY_PREFIX
+						+ UUID.randomUUID().toString().replace('-', '_');
+				names.put(node, name);
+			}
+			return new Scan(name);
+		}
+
+		List<SciDBPlanNode> children = new ArrayList<SciDBPlanNode>();
+		boolean childChanged = false;
+		for (SciDBPlanNode child : node.getChildren()) {
+			SciDBPlanNode replacedChild = replaceShared(child, references,
+					names);
+			childChanged |= replacedChild != child;
+			children.add(replacedChild);
+		}
+		return childChanged ? node.withChildren(children) : node;
+	}
+}
@@ -0,0 +1,234 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBSchema.Dimension;
+
+/**
+ * Estimates how much of the stored arrays a query plan reads, without running
+ * it. Each scan reads the box of its array left by the between operations
+ * above it; a between narrows the scan of its array when it has a coordinate
+ * for every dimension of the array. Boxes only reach a scan through filters,
+ * projections and cross joins, which keep the dimensions of their inputs;
+ * other operators, such as aggregates and sorts, have dimensions of their
+ * own, so a box above them does not bound what they read. The cells and chunks of each box are
+ * counted from the dimension bounds and chunk lengths of the array cache, so
+ * they are an upper bound for sparse arrays.
+ * <p>
+ * A count is unknown if a scanned array is not in the cache, if a dimension
+ * read is unbounded, or, for chunks, if a chunk length is left to SciDB.
+ *
+ */
+public class SciDBCostEstimator {
+	private final Map<String, CachedArray> arrays;
+
+	/**
+	 * Creates an estimator
+	 *
+	 * @param arrays
+	 *            Cached arrays, may be null
+	 */
+	public SciDBCostEstimator(Map<String, CachedArray> arrays) {
+		this.arrays = arrays;
+	}
+
+	/**
+	 * Returns the estimate of a plan
+	 *
+	 * @param plan
+	 *            Plan
+	 * @return Estimate
+	 */
+	public Estimate estimate(SciDBPlanNode plan) {
+		Estimate estimate = new Estimate();
+		visit(plan, new HashMap<String, long[][]>(), estimate);
+		return estimate;
+	}
+
+	private void visit(SciDBPlanNode node, Map<String, long[][]> boxes,
+			Estimate estimate) {
+		if (node == null) {
+			return;
+		}
+		if (node instanceof Scan) {
+			estimateScan(((Scan) node).getArrayName(), boxes, estimate);
+			return;
+		}
+
+		Map<String, long[][]> childBoxes = boxes;
+		if (node instanceof Between) {
+			// Nested boxes of the same array read their intersection
+			Between between = (Between) node;
+			int[] lowCoordinates = between.getLowCoordinates();
+			int[] highCoordinates = between.getHighCoordinates();
+			long[][] box = new long[2][lowCoordinates.length];
+			long[][] outerBox = boxes.get(between.getArrayName());
+			for (int coordinatei = 0; coordinatei < lowCoordinates.length; coordinatei++) {
+				box[0][coordinatei] = lowCoordinates[coordinatei];
+				box[1][coordinatei] = highCoordinates[coordinatei];
+				if (outerBox != null
+						&& outerBox[0].length == lowCoordinates.length) {
+					box[0][coordinatei] = Math.max(box[0][coordinatei],
+							outerBox[0][coordinatei]);
+					box[1][coordinatei] = Math.min(box[1][coordinatei],
+							outerBox[1][coordinatei]);
+				}
+			}
+			childBoxes = new HashMap<String, long[][]>(boxes);
+			childBoxes.put(between.getArrayName(), box);
+		} else if (!(node instanceof Filter || node instanceof Project
+				|| node instanceof CrossJoin)) {
+			childBoxes = new HashMap<String, long[][]>();
+		}
+		for (SciDBPlanNode child : node.getChildren()) {
+			visit(child, childBoxes, estimate);
+		}
+	}
+
+	private void estimateScan(String arrayName, Map<String, long[][]> boxes,
+			Estimate estimate) {
+		CachedArray array = arrays == null ? null : arrays.get(arrayName);
+		if (array == null) {
+			estimate.cells = null;
+			estimate.chunks = null;
+			estimate.ranges.add(arrayName + "[?]");
+			return;
+		}
+
+		List<Dimension> dimensions = array.getSchema().getDimensions();
+		long[][] box = boxes.get(arrayName);
+		if (box != null && box[0].length != dimensions.size()) {
+			box = null;
+		}
+
+		StringBuilder range = new StringBuilder(arrayName).append('[');
+		Long cells = 1L;
+		Long chunks = 1L;
+		boolean full = true;
+		for (int dimensioni = 0; dimensioni < dimensions.size(); dimensioni++) {
+			Dimension dimension = dimensions.get(dimensioni);
+			Long low = dimension.getLowValue();
+			Long high = dimension.getHighValue();
+			if (box != null) {
+				long boxLow = box[0][dimensioni];
+				long boxHigh = box[1][dimensioni];
+				if ((low == null || boxLow > low)
+						|| (high == null || boxHigh < high)) {
+					full = false;
+				}
+				low = low == null ? boxLow : Math.max(low, boxLow);
+				high = high == null ? boxHigh : Math.min(high, boxHigh);
+			}
+
+			if (dimensioni != 0) {
+				range.append(", ");
+			}
+			range.append(dimension.getName()).append('=')
+					.append(low == null ? "*" : low).append(':')
+					.append(high == null ? "*" : high);
+
+			if (low == null || high == null) {
+				cells = null;
+				chunks = null;
+				continue;
+			}
+			long length = Math.max(0, high - low + 1);
+			cells = multiply(cells, length);
+
+			Long chunkLength = dimension.getChunkLength();
+			if (chunkLength == null || chunkLength < 1
+					|| dimension.getLowValue() == null) {
+				chunks = null;
+			} else if (length == 0) {
+				chunks = multiply(chunks, 0);
+			} else {
+				// Chunks are aligned to the low bound of the dimension
+				long origin = dimension.getLowValue();
+				chunks = multiply(chunks, (high - origin) / chunkLength
+						- (low - origin) / chunkLength + 1);
+			}
+		}
+		estimate.ranges.add(range.append(']').toString());
+		estimate.cells = add(estimate.cells, cells);
+		estimate.chunks = add(estimate.chunks, chunks);
+		if (full) {
+			estimate.fullScans.add(arrayName);
+		}
+	}
+
+	private static Long multiply(Long total, long value) {
+		if (total == null) {
+			return null;
+		}
+		if (value != 0 && total > Long.MAX_VALUE / value) {
+			return Long.MAX_VALUE;
+		}
+		return total * value;
+	}
+
+	private static Long add(Long total, Long value) {
+		if (total == null || value == null) {
+			return null;
+		}
+		return Long.MAX_VALUE - total < value ? Long.MAX_VALUE : total + value;
+	}
+
+	/**
+	 * What a plan is estimated to read
+	 */
+	public static class Estimate {
+		private final List<String> ranges = new ArrayList<String>();
+		private final List<String> fullScans = new ArrayList<String>();
+		private Long cells = 0L;
+		private Long chunks = 0L;
+
+		/**
+		 * Returns the coordinate ranges read of each scanned array, as
+		 * array[dimension=low:high, ...] with * for an unbounded end
+		 *
+		 * @return Ranges
+		 */
+		public List<String> getRanges() {
+			return ranges;
+		}
+
+		/**
+		 * Returns the arrays that are read whole
+		 *
+		 * @return Array names
+		 */
+		public List<String> getFullScans() {
+			return fullScans;
+		}
+
+		/**
+		 * Returns the number of cells read, or null if it is not known
+		 *
+		 * @return Cell count
+		 */
+		public Long getCells() {
+			return cells;
+		}
+
+		/**
+		 * Returns the number of chunks read, or null if it is not known
+		 *
+		 * @return Chunk count
+		 */
+		public Long getChunks() {
+			return chunks;
+		}
+	}
+}
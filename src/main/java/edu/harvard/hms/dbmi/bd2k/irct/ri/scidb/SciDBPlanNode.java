@@ -0,0 +1,733 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.scidb.SciDB;
+import edu.harvard.hms.dbmi.scidb.SciDBAggregateFactory;
+import edu.harvard.hms.dbmi.scidb.SciDBArray;
+import edu.harvard.hms.dbmi.scidb.SciDBCommand;
+
+/**
+ * A node of the logical plan of a SciDB query. The plan is built from the
+ * IRCT query clauses, rewritten by the optimizer and then rendered to AFL
+ * through the SciDB client. Nodes are immutable; rewrites create new nodes
+ * with {@link #withChildren(List)}. Two nodes are equal when they have the
+ * same operator, arguments and inputs, so identical sub-plans can be found by
+ * hashing.
+ *
+ */
+public abstract class SciDBPlanNode {
+	private int hash;
+
+	/**
+	 * Returns the inputs of this node
+	 *
+	 * @return Children
+	 */
+	public abstract List<SciDBPlanNode> getChildren();
+
+	/**
+	 * Returns a copy of this node with different inputs
+	 *
+	 * @param children
+	 *            Children in the order of {@link #getChildren()}
+	 * @return Node
+	 */
+	public abstract SciDBPlanNode withChildren(List<SciDBPlanNode> children);
+
+	/**
+	 * Renders this node and its inputs as a SciDB command
+	 *
+	 * @param sciDB
+	 *            SciDB client
+	 * @return Command
+	 */
+	public abstract SciDBCommand toCommand(SciDB sciDB);
+
+	/**
+	 * Returns the arguments of this node other than its inputs, in a form
+	 * that can be compared
+	 *
+	 * @return Arguments
+	 */
+	protected abstract List<Object> getArguments();
+
+	/**
+	 * Returns the number of dimensions of the output of this node, or -1 if
+	 * it is not known
+	 *
+	 * @param arrays
+	 *            Cached arrays, may be null
+	 * @return Dimension count
+	 */
+	public int getDimensionCount(Map<String, CachedArray> arrays) {
+		return -1;
+	}
+
+	/**
+	 * Returns the names of the arrays scanned below this node
+	 *
+	 * @return Array names
+	 */
+	public Set<String> getArrays() {
+		Set<String> arrays = new HashSet<String>();
+		for (SciDBPlanNode child : getChildren()) {
+			if (child != null) {
+				arrays.addAll(child.getArrays());
+			}
+		}
+		return arrays;
+	}
+
+	/**
+	 * Returns the single input of this node
+	 *
+	 * @return Child
+	 */
+	public SciDBPlanNode getChild() {
+		return getChildren().get(0);
+	}
+
+	/**
+	 * Returns a copy of this node with a different single input
+	 *
+	 * @param child
+	 *            Child
+	 * @return Node
+	 */
+	public SciDBPlanNode withChild(SciDBPlanNode child) {
+		return withChildren(Collections.singletonList(child));
+	}
+
+	@Override
+	public boolean equals(Object obj) {
+		if (this == obj) {
+			return true;
+		}
+		if (obj == null || obj.getClass() != getClass()
+				|| obj.hashCode() != hashCode()) {
+			return false;
+		}
+		SciDBPlanNode other = (SciDBPlanNode) obj;
+		return getArguments().equals(other.getArguments())
+				&& getChildren().equals(other.getChildren());
+	}
+
+	@Override
+	public int hashCode() {
+		if (hash == 0) {
+			hash = 31 * (31 * getClass().hashCode() + getArguments()
+					.hashCode()) + getChildren().hashCode();
+		}
+		return hash;
+	}
+
+	@Override
+	public String toString() {
+		return getClass().getSimpleName() + getChildren();
+	}
+
+	private static String afl(SciDBCommand command) {
+		return command == null ? null : command.toAFLQueryString();
+	}
+
+	private static SciDBCommand render(SciDBPlanNode node, SciDB sciDB) {
+		return node == null ? null : node.toCommand(sciDB);
+	}
+
+	/**
+	 * Reads a stored array
+	 */
+	public static class Scan extends SciDBPlanNode {
+		private final String arrayName;
+
+		public Scan(String arrayName) {
+			this.arrayName = arrayName;
+		}
+
+		public String getArrayName() {
+			return arrayName;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(arrayName);
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.emptyList();
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return this;
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			return new SciDBArray(arrayName);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			if (arrays == null || !arrays.containsKey(arrayName)) {
+				return -1;
+			}
+			return arrays.get(arrayName).getSchema().getDimensionNames()
+					.size();
+		}
+
+		@Override
+		public Set<String> getArrays() {
+			return new HashSet<String>(Collections.singleton(arrayName));
+		}
+
+		@Override
+		public String toString() {
+			return "Scan[" + arrayName + "]";
+		}
+	}
+
+	/**
+	 * A filter predicate together with the array and attribute it reads
+	 */
+	public static class Predicate {
+		private final SciDBCommand function;
+		private final String arrayName;
+		private final String attributeName;
+
+		/**
+		 * Creates a predicate
+		 *
+		 * @param function
+		 *            Predicate function
+		 * @param arrayName
+		 *            Array the attribute belongs to, or null if not known
+		 * @param attributeName
+		 *            Attribute read by the predicate, or null if not known
+		 */
+		public Predicate(SciDBCommand function, String arrayName,
+				String attributeName) {
+			this.function = function;
+			this.arrayName = arrayName;
+			this.attributeName = attributeName;
+		}
+
+		public SciDBCommand getFunction() {
+			return function;
+		}
+
+		public String getArrayName() {
+			return arrayName;
+		}
+
+		public String getAttributeName() {
+			return attributeName;
+		}
+	}
+
+	/**
+	 * Keeps the cells matching all of its predicates
+	 */
+	public static class Filter extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final List<Predicate> predicates;
+
+		public Filter(SciDBPlanNode child, List<Predicate> predicates) {
+			this.child = child;
+			this.predicates = Collections
+					.unmodifiableList(new ArrayList<Predicate>(predicates));
+		}
+
+		public Filter(SciDBPlanNode child, Predicate predicate) {
+			this(child, Collections.singletonList(predicate));
+		}
+
+		public List<Predicate> getPredicates() {
+			return predicates;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			List<Object> arguments = new ArrayList<Object>();
+			for (Predicate predicate : predicates) {
+				arguments.add(Arrays.asList(afl(predicate.getFunction()),
+						predicate.getArrayName(), predicate.getAttributeName()));
+			}
+			return arguments;
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Filter(children.get(0), predicates);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			SciDBCommand function;
+			if (predicates.size() == 1) {
+				function = predicates.get(0).getFunction();
+			} else {
+				StringBuilder and = new StringBuilder();
+				for (Predicate predicate : predicates) {
+					if (and.length() != 0) {
+						and.append(" and ");
+					}
+					and.append("(")
+							.append(predicate.getFunction().toAFLQueryString())
+							.append(")");
+				}
+				function = new SciDBAFLCommand(and.toString());
+			}
+			return sciDB.filter(render(child, sciDB), function);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			return child == null ? -1 : child.getDimensionCount(arrays);
+		}
+	}
+
+	/**
+	 * Keeps the cells within a box of dimension coordinates
+	 */
+	public static class Between extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final String arrayName;
+		private final int[] lowCoordinates;
+		private final int[] highCoordinates;
+
+		public Between(SciDBPlanNode child, String arrayName,
+				int[] lowCoordinates, int[] highCoordinates) {
+			this.child = child;
+			this.arrayName = arrayName;
+			this.lowCoordinates = lowCoordinates;
+			this.highCoordinates = highCoordinates;
+		}
+
+		public String getArrayName() {
+			return arrayName;
+		}
+
+		public int[] getLowCoordinates() {
+			return lowCoordinates;
+		}
+
+		public int[] getHighCoordinates() {
+			return highCoordinates;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(arrayName,
+					Arrays.toString(lowCoordinates),
+					Arrays.toString(highCoordinates));
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Between(children.get(0), arrayName, lowCoordinates,
+					highCoordinates);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			return sciDB.between(render(child, sciDB), lowCoordinates,
+					highCoordinates);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			return child == null ? -1 : child.getDimensionCount(arrays);
+		}
+	}
+
+	/**
+	 * Keeps a subset of the attributes
+	 */
+	public static class Project extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final String[] attributes;
+
+		public Project(SciDBPlanNode child, String[] attributes) {
+			this.child = child;
+			this.attributes = attributes;
+		}
+
+		public String[] getAttributes() {
+			return attributes;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(Arrays.asList(attributes));
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Project(children.get(0), attributes);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			return sciDB.project(render(child, sciDB), attributes);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			return child == null ? -1 : child.getDimensionCount(arrays);
+		}
+
+		@Override
+		public String toString() {
+			return "Project" + Arrays.toString(attributes) + getChildren();
+		}
+	}
+
+	/**
+	 * Sorts the cells into a one dimensional array
+	 */
+	public static class Sort extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final String arrayName;
+		private final String field;
+		private final String direction;
+
+		public Sort(SciDBPlanNode child, String arrayName, String field,
+				String direction) {
+			this.child = child;
+			this.arrayName = arrayName;
+			this.field = field;
+			this.direction = direction;
+		}
+
+		public String getArrayName() {
+			return arrayName;
+		}
+
+		public String getField() {
+			return field;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(arrayName, field, direction);
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Sort(children.get(0), arrayName, field, direction);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			if (field == null) {
+				return sciDB.sort(render(child, sciDB));
+			} else if (direction == null) {
+				return sciDB.sort(render(child, sciDB), field);
+			}
+			return sciDB.sort(render(child, sciDB), field, direction);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			return 1;
+		}
+	}
+
+	/**
+	 * Joins two inputs on pairs of dimensions
+	 */
+	public static class CrossJoin extends SciDBPlanNode {
+		private final SciDBPlanNode left;
+		private final SciDBPlanNode right;
+		private final String leftAlias;
+		private final String rightAlias;
+		private final String leftDimension;
+		private final String rightDimension;
+		private final String[] dimensions;
+
+		/**
+		 * Creates a join on a single pair of dimensions
+		 */
+		public CrossJoin(SciDBPlanNode left, SciDBPlanNode right,
+				String leftDimension, String rightDimension) {
+			this(left, null, right, null, leftDimension, rightDimension, null);
+		}
+
+		/**
+		 * Creates a join of aliased inputs on a list of dimension pairs
+		 */
+		public CrossJoin(SciDBPlanNode left, String leftAlias,
+				SciDBPlanNode right, String rightAlias, String[] dimensions) {
+			this(left, leftAlias, right, rightAlias, null, null, dimensions);
+		}
+
+		private CrossJoin(SciDBPlanNode left, String leftAlias,
+				SciDBPlanNode right, String rightAlias, String leftDimension,
+				String rightDimension, String[] dimensions) {
+			this.left = left;
+			this.right = right;
+			this.leftAlias = leftAlias;
+			this.rightAlias = rightAlias;
+			this.leftDimension = leftDimension;
+			this.rightDimension = rightDimension;
+			this.dimensions = dimensions;
+		}
+
+		public SciDBPlanNode getLeft() {
+			return left;
+		}
+
+		public SciDBPlanNode getRight() {
+			return right;
+		}
+
+		/**
+		 * Returns the number of dimension pairs joined
+		 *
+		 * @return Pair count
+		 */
+		public int getJoinedDimensionCount() {
+			return dimensions == null ? 1 : dimensions.length / 2;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(leftAlias, rightAlias, leftDimension,
+					rightDimension, dimensions == null ? null : Arrays
+							.asList(dimensions));
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Arrays.asList(left, right);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new CrossJoin(children.get(0), leftAlias, children.get(1),
+					rightAlias, leftDimension, rightDimension, dimensions);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			if (dimensions == null) {
+				return sciDB.crossJoin(render(left, sciDB),
+						render(right, sciDB), leftDimension, rightDimension);
+			}
+			return sciDB.crossJoin(render(left, sciDB), leftAlias,
+					render(right, sciDB), rightAlias, dimensions);
+		}
+
+		@Override
+		public int getDimensionCount(Map<String, CachedArray> arrays) {
+			int leftCount = left == null ? -1 : left.getDimensionCount(arrays);
+			int rightCount = right == null ? -1 : right
+					.getDimensionCount(arrays);
+			if (leftCount == -1 || rightCount == -1) {
+				return -1;
+			}
+			return leftCount + rightCount - getJoinedDimensionCount();
+		}
+	}
+
+	/**
+	 * A call of an aggregate function
+	 */
+	public static class AggregateCall {
+		private final SciDBAggregateFunction function;
+		private final String arrayName;
+		private final String attribute;
+		private final String alias;
+
+		/**
+		 * Creates an aggregate call
+		 *
+		 * @param function
+		 *            Aggregate function
+		 * @param arrayName
+		 *            Array the attribute belongs to, or null if not known
+		 * @param attribute
+		 *            Attribute to reduce, or null to count cells
+		 * @param alias
+		 *            Name of the output attribute, or null for the SciDB
+		 *            default
+		 */
+		public AggregateCall(SciDBAggregateFunction function,
+				String arrayName, String attribute, String alias) {
+			this.function = function;
+			this.arrayName = arrayName;
+			this.attribute = attribute;
+			this.alias = alias;
+		}
+
+		public SciDBAggregateFunction getFunction() {
+			return function;
+		}
+
+		public String getArrayName() {
+			return arrayName;
+		}
+
+		public String getAttribute() {
+			return attribute;
+		}
+
+		public String getAlias() {
+			return alias;
+		}
+
+		private String toAFL() {
+			String afl = function.toAFL(attribute);
+			return alias == null ? afl : afl + " as " + alias;
+		}
+	}
+
+	/**
+	 * Reduces the cells with one or more aggregate functions, optionally
+	 * grouped by dimensions
+	 */
+	public static class Aggregate extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final List<AggregateCall> calls;
+		private final List<String> dimensions;
+
+		public Aggregate(SciDBPlanNode child, List<AggregateCall> calls,
+				List<String> dimensions) {
+			this.child = child;
+			this.calls = Collections.unmodifiableList(new ArrayList<AggregateCall>(
+					calls));
+			this.dimensions = Collections.unmodifiableList(new ArrayList<String>(
+					dimensions));
+		}
+
+		public List<AggregateCall> getCalls() {
+			return calls;
+		}
+
+		/**
+		 * Returns the dimensions the cells are grouped by, empty if they are
+		 * reduced to a single cell
+		 *
+		 * @return Dimensions
+		 */
+		public List<String> getDimensions() {
+			return dimensions;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			List<Object> arguments = new ArrayList<Object>();
+			for (AggregateCall call : calls) {
+				arguments.add(call.toAFL());
+			}
+			arguments.add(dimensions);
+			return arguments;
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Aggregate(children.get(0), calls, dimensions);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			AggregateCall first = calls.get(0);
+			if (calls.size() == 1
+					&& first.getFunction() == SciDBAggregateFunction.COUNT
+					&& first.getAttribute() == null) {
+				String dimensionString = null;
+				for (String dimension : dimensions) {
+					dimensionString = dimensionString == null ? dimension
+							: dimensionString + "," + dimension;
+				}
+				return sciDB.aggregate(render(child, sciDB),
+						SciDBAggregateFactory.count(), dimensionString,
+						first.getAlias());
+			}
+
+			StringBuilder aggregate = new StringBuilder("aggregate(");
+			aggregate.append(afl(render(child, sciDB)));
+			for (AggregateCall call : calls) {
+				aggregate.append(", ").append(call.toAFL());
+			}
+			for (String dimension : dimensions) {
+				aggregate.append(", ").append(dimension);
+			}
+			aggregate.append(")");
+			return new SciDBAFLCommand(aggregate.toString());
+		}
+	}
+
+	/**
+	 * Computes the quantiles of an attribute
+	 */
+	public static class Quantile extends SciDBPlanNode {
+		private final SciDBPlanNode child;
+		private final int quantiles;
+		private final String attribute;
+
+		public Quantile(SciDBPlanNode child, int quantiles, String attribute) {
+			this.child = child;
+			this.quantiles = quantiles;
+			this.attribute = attribute;
+		}
+
+		@Override
+		protected List<Object> getArguments() {
+			return Arrays.<Object> asList(quantiles, attribute);
+		}
+
+		@Override
+		public List<SciDBPlanNode> getChildren() {
+			return Collections.singletonList(child);
+		}
+
+		@Override
+		public SciDBPlanNode withChildren(List<SciDBPlanNode> children) {
+			return new Quantile(children.get(0), quantiles, attribute);
+		}
+
+		@Override
+		public SciDBCommand toCommand(SciDB sciDB) {
+			return sciDB.quantile(render(child, sciDB), quantiles, attribute);
+		}
+	}
+}
@@ -0,0 +1,315 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Aggregate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.AggregateCall;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Sort;
+
+/**
+ * Rewrites the logical plan of a SciDB query before it is rendered to AFL.
+ * The rules are applied bottom up until none of them changes the plan:
+ * <ul>
+ * <li>Filter predicates and between boxes that only read one side of a
+ * cross join are moved below the join</li>
+ * <li>Between is moved below filters and projections so the dimension box is
+ * applied first</li>
+ * <li>Consecutive filters are merged into a single filter whose predicates
+ * are joined with and</li>
+ * <li>A sort whose order is discarded by a following sort or ungrouped
+ * aggregate is removed</li>
+ * </ul>
+ * Finally the attributes that are needed above each scan are worked out, and
+ * scans of arrays with other attributes are wrapped in a projection. Schema
+ * information comes from the array cache; rules that need it are skipped for
+ * arrays that are not known.
+ *
+ */
+public class SciDBQueryOptimizer {
+	private static final int MAX_PASSES = 16;
+
+	private final Map<String, CachedArray> arrays;
+	private boolean changed;
+
+	/**
+	 * Creates an optimizer
+	 *
+	 * @param arrays
+	 *            Cached arrays, may be null
+	 */
+	public SciDBQueryOptimizer(Map<String, CachedArray> arrays) {
+		this.arrays = arrays;
+	}
+
+	/**
+	 * Returns the optimized plan
+	 *
+	 * @param plan
+	 *            Plan
+	 * @return Optimized plan
+	 */
+	public SciDBPlanNode optimize(SciDBPlanNode plan) {
+		if (plan == null) {
+			return null;
+		}
+
+		SciDBPlanNode optimized = plan;
+		for (int pass = 0; pass < MAX_PASSES; pass++) {
+			changed = false;
+			optimized = rewrite(optimized);
+			if (!changed) {
+				break;
+			}
+		}
+		return pushProjections(optimized, null);
+	}
+
+	private SciDBPlanNode rewrite(SciDBPlanNode node) {
+		if (node == null) {
+			return null;
+		}
+
+		List<SciDBPlanNode> children = node.getChildren();
+		if (!children.isEmpty()) {
+			List<SciDBPlanNode> rewrittenChildren = new ArrayList<SciDBPlanNode>();
+			boolean childChanged = false;
+			for (SciDBPlanNode child : children) {
+				SciDBPlanNode rewrittenChild = rewrite(child);
+				childChanged |= rewrittenChild != child;
+				rewrittenChildren.add(rewrittenChild);
+			}
+			if (childChanged) {
+				node = node.withChildren(rewrittenChildren);
+			}
+		}
+
+		if (node instanceof Filter) {
+			return rewriteFilter((Filter) node);
+		} else if (node instanceof Between) {
+			return rewriteBetween((Between) node);
+		} else if ((node instanceof Sort || (node instanceof Aggregate && isOrderFree((Aggregate) node)))
+				&& node.getChild() instanceof Sort) {
+			changed = true;
+			return node.withChild(node.getChild().getChild());
+		}
+		return node;
+	}
+
+	private boolean isOrderFree(Aggregate aggregate) {
+		// A grouped aggregate refers to dimensions the sort replaced
+		if (!aggregate.getDimensions().isEmpty()) {
+			return false;
+		}
+		for (AggregateCall call : aggregate.getCalls()) {
+			if (call.getFunction().isOrderSensitive()) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private SciDBPlanNode rewriteFilter(Filter filter) {
+		SciDBPlanNode child = filter.getChild();
+
+		if (child instanceof Filter) {
+			List<Predicate> predicates = new ArrayList<Predicate>(
+					((Filter) child).getPredicates());
+			predicates.addAll(filter.getPredicates());
+			changed = true;
+			return new Filter(child.getChild(), predicates);
+		}
+
+		if (child instanceof CrossJoin) {
+			CrossJoin join = (CrossJoin) child;
+			Set<String> leftArrays = getArrays(join.getLeft());
+			Set<String> rightArrays = getArrays(join.getRight());
+
+			List<Predicate> leftPredicates = new ArrayList<Predicate>();
+			List<Predicate> rightPredicates = new ArrayList<Predicate>();
+			List<Predicate> joinPredicates = new ArrayList<Predicate>();
+			for (Predicate predicate : filter.getPredicates()) {
+				String arrayName = predicate.getArrayName();
+				if (arrayName != null && leftArrays.contains(arrayName)
+						&& !rightArrays.contains(arrayName)) {
+					leftPredicates.add(predicate);
+				} else if (arrayName != null
+						&& rightArrays.contains(arrayName)
+						&& !leftArrays.contains(arrayName)) {
+					rightPredicates.add(predicate);
+				} else {
+					joinPredicates.add(predicate);
+				}
+			}
+			if (leftPredicates.isEmpty() && rightPredicates.isEmpty()) {
+				return filter;
+			}
+
+			changed = true;
+			SciDBPlanNode left = leftPredicates.isEmpty() ? join.getLeft()
+					: new Filter(join.getLeft(), leftPredicates);
+			SciDBPlanNode right = rightPredicates.isEmpty() ? join.getRight()
+					: new Filter(join.getRight(), rightPredicates);
+			SciDBPlanNode pushed = join.withChildren(Arrays
+					.asList(left, right));
+			return joinPredicates.isEmpty() ? pushed : new Filter(pushed,
+					joinPredicates);
+		}
+
+		return filter;
+	}
+
+	private SciDBPlanNode rewriteBetween(Between between) {
+		SciDBPlanNode child = between.getChild();
+
+		if (child instanceof Filter || child instanceof Project) {
+			changed = true;
+			return child.withChild(between.withChild(child.getChild()));
+		}
+
+		if (child instanceof CrossJoin) {
+			// The box only refers to the dimensions of the left input when
+			// every dimension of the right input is joined away
+			CrossJoin join = (CrossJoin) child;
+			int leftDimensions = join.getLeft() == null ? -1 : join.getLeft()
+					.getDimensionCount(arrays);
+			int rightDimensions = join.getRight() == null ? -1 : join
+					.getRight().getDimensionCount(arrays);
+			if (leftDimensions == between.getLowCoordinates().length
+					&& rightDimensions == join.getJoinedDimensionCount()
+					&& getArrays(join.getLeft()).contains(
+							between.getArrayName())) {
+				changed = true;
+				return join.withChildren(Arrays.asList(
+						between.withChild(join.getLeft()), join.getRight()));
+			}
+		}
+
+		return between;
+	}
+
+	/**
+	 * Wraps scans in a projection of the attributes needed above them. Names
+	 * that refer to a subquery rather than a scanned array cannot be traced
+	 * to a scan, so nothing below them is projected.
+	 *
+	 * @param node
+	 *            Node
+	 * @param required
+	 *            Attributes needed above the node as array.attribute, or null
+	 *            if every attribute may be needed
+	 * @return Node
+	 */
+	private SciDBPlanNode pushProjections(SciDBPlanNode node,
+			Set<String> required) {
+		if (node == null) {
+			return null;
+		}
+
+		if (node instanceof Scan) {
+			return projectScan((Scan) node, required);
+		}
+
+		Set<String> childRequired = null;
+		if (node instanceof Project) {
+			if (node.getChild() instanceof Scan) {
+				return node;
+			}
+			childRequired = new HashSet<String>();
+			Set<String> scannedArrays = node.getArrays();
+			for (String attribute : ((Project) node).getAttributes()) {
+				if (attribute.indexOf('.') == -1
+						|| !scannedArrays.contains(attribute.substring(0,
+								attribute.indexOf('.')))) {
+					childRequired = null;
+					break;
+				}
+				childRequired.add(attribute);
+			}
+		} else if (node instanceof Filter && required != null) {
+			childRequired = new HashSet<String>(required);
+			Set<String> scannedArrays = node.getArrays();
+			for (Predicate predicate : ((Filter) node).getPredicates()) {
+				if (predicate.getAttributeName() == null
+						|| !scannedArrays.contains(predicate.getArrayName())) {
+					childRequired = null;
+					break;
+				}
+				childRequired.add(predicate.getArrayName() + "."
+						+ predicate.getAttributeName());
+			}
+		} else if (node instanceof Sort && required != null) {
+			Sort sort = (Sort) node;
+			if (sort.getField() != null
+					&& node.getArrays().contains(sort.getArrayName())) {
+				childRequired = new HashSet<String>(required);
+				childRequired.add(sort.getArrayName() + "." + sort.getField());
+			}
+		} else if (node instanceof Aggregate) {
+			childRequired = new HashSet<String>();
+			Set<String> scannedArrays = node.getArrays();
+			for (AggregateCall call : ((Aggregate) node).getCalls()) {
+				if (call.getAttribute() == null) {
+					continue;
+				}
+				if (!scannedArrays.contains(call.getArrayName())) {
+					childRequired = null;
+					break;
+				}
+				childRequired.add(call.getArrayName() + "."
+						+ call.getAttribute());
+			}
+		} else if (node instanceof Between || node instanceof CrossJoin) {
+			childRequired = required;
+		}
+
+		List<SciDBPlanNode> children = new ArrayList<SciDBPlanNode>();
+		boolean childChanged = false;
+		for (SciDBPlanNode child : node.getChildren()) {
+			SciDBPlanNode pushedChild = pushProjections(child, childRequired);
+			childChanged |= pushedChild != child;
+			children.add(pushedChild);
+		}
+		return childChanged ? node.withChildren(children) : node;
+	}
+
+	private SciDBPlanNode projectScan(Scan scan, Set<String> required) {
+		if (required == null || arrays == null
+				|| !arrays.containsKey(scan.getArrayName())) {
+			return scan;
+		}
+
+		Set<String> attributes = arrays.get(scan.getArrayName()).getSchema()
+				.getAttributeTypes().keySet();
+		List<String> needed = new ArrayList<String>();
+		for (String attribute : attributes) {
+			if (required.contains(scan.getArrayName() + "." + attribute)) {
+				needed.add(attribute);
+			}
+		}
+		// An empty projection is not valid, and the whole array is read when
+		// every attribute is needed anyway
+		if (needed.isEmpty() || needed.size() == attributes.size()) {
+			return scan;
+		}
+		return new Project(scan, needed.toArray(new String[needed.size()]));
+	}
+
+	private Set<String> getArrays(SciDBPlanNode node) {
+		return node == null ? new HashSet<String>() : node.getArrays();
+	}
+}
@@ -0,0 +1,150 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBSchema.Dimension;
+import edu.harvard.hms.dbmi.scidb.SciDBCommand;
+
+/**
+ * Splits the output of a query into coordinate ranges of one dimension so
+ * the ranges can be run and downloaded in separate SciDB sessions. Ranges
+ * are made of whole chunks so every chunk is read by a single range, and are
+ * returned in coordinate order.
+ * <p>
+ * A range is selected by a between over the whole query, so only queries
+ * whose cells map one to one onto the cells of a scanned array can be split;
+ * SciDB then reads just the chunks of the range. Queries that aggregate,
+ * join or sort would be computed in full for every range.
+ *
+ */
+public class SciDBRangePartitioner {
+	private final SciDBSchema schema;
+	private final int dimensionIndex;
+
+	private SciDBRangePartitioner(SciDBSchema schema, int dimensionIndex) {
+		this.schema = schema;
+		this.dimensionIndex = dimensionIndex;
+	}
+
+	/**
+	 * Returns a partitioner over the given dimension, or the first dimension
+	 * with a bounded range if no dimension is given. Null is returned if the
+	 * dimension is not in the schema or its range is not bounded.
+	 *
+	 * @param schema
+	 *            Output schema of the query
+	 * @param dimensionName
+	 *            Dimension to split, may be null
+	 * @return Partitioner or null
+	 */
+	public static SciDBRangePartitioner create(SciDBSchema schema,
+			String dimensionName) {
+		List<Dimension> dimensions = schema.getDimensions();
+		for (int dimensioni = 0; dimensioni < dimensions.size(); dimensioni++) {
+			Dimension dimension = dimensions.get(dimensioni);
+			if (dimensionName != null
+					&& !dimensionName.equals(dimension.getName())) {
+				continue;
+			}
+			if (dimension.getLowValue() != null
+					&& dimension.getHighValue() != null) {
+				return new SciDBRangePartitioner(schema, dimensioni);
+			}
+			if (dimensionName != null) {
+				return null;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns true if the plan only scans, filters, projects and boxes a
+	 * single array, so a range of its output is computed from the chunks of
+	 * that range alone
+	 *
+	 * @param plan
+	 *            Query plan, may be null
+	 * @return True if the plan can be split
+	 */
+	public static boolean supports(SciDBPlanNode plan) {
+		SciDBPlanNode node = plan;
+		while (node instanceof Filter || node instanceof Project
+				|| node instanceof Between) {
+			node = node.getChild();
+		}
+		return node instanceof Scan;
+	}
+
+	/**
+	 * Returns the name of the dimension that is split
+	 *
+	 * @return Dimension name
+	 */
+	public String getDimensionName() {
+		return schema.getDimensions().get(dimensionIndex).getName();
+	}
+
+	/**
+	 * Splits the dimension range into at most the given number of ranges of
+	 * whole chunks. Fewer ranges are returned when the dimension has fewer
+	 * chunks.
+	 *
+	 * @param partitions
+	 *            Number of ranges wanted
+	 * @return Low and high coordinates of each range, in order
+	 */
+	public List<long[]> split(int partitions) {
+		Dimension dimension = schema.getDimensions().get(dimensionIndex);
+		long low = dimension.getLowValue();
+		long high = dimension.getHighValue();
+		long chunkLength = dimension.getChunkLength() == null
+				|| dimension.getChunkLength() < 1 ? 1 : dimension
+				.getChunkLength();
+
+		long chunks = (high - low) / chunkLength + 1;
+		long chunksPerRange = (chunks + partitions - 1) / partitions;
+		long rangeLength = chunksPerRange * chunkLength;
+
+		List<long[]> ranges = new ArrayList<long[]>();
+		for (long rangeLow = low; rangeLow <= high; rangeLow += rangeLength) {
+			ranges.add(new long[] { rangeLow,
+					Math.min(high, rangeLow + rangeLength - 1) });
+		}
+		return ranges;
+	}
+
+	/**
+	 * Returns the query restricted to a range of the split dimension. The
+	 * other dimensions are left unbounded. The query must be one that
+	 * {@link #supports(SciDBPlanNode)} accepts, or a scan of a stored
+	 * output.
+	 *
+	 * @param command
+	 *            Query
+	 * @param range
+	 *            Low and high coordinate
+	 * @return Query of the range
+	 */
+	public SciDBCommand createQuery(SciDBCommand command, long[] range) {
+		int dimensionCount = schema.getDimensions().size();
+		StringBuilder lowCoordinates = new StringBuilder();
+		StringBuilder highCoordinates = new StringBuilder();
+		for (int dimensioni = 0; dimensioni < dimensionCount; dimensioni++) {
+			boolean split = dimensioni == dimensionIndex;
+			lowCoordinates.append(", ").append(
+					split ? Long.toString(range[0]) : "null");
+			highCoordinates.append(", ").append(
+					split ? Long.toString(range[1]) : "null");
+		}
+		return new SciDBAFLCommand("between(" + command.toAFLQueryString()
+				+ lowCoordinates + highCoordinates + ")");
+	}
+}
@@ -3,28 +3,45 @@
  */
 package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
 
-import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.StringWriter;
 import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
 import java.security.KeyManagementException;
 import java.security.NoSuchAlgorithmException;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.net.ssl.HttpsURLConnection;
 import javax.net.ssl.SSLContext;
 import javax.net.ssl.TrustManager;
 import javax.net.ssl.X509TrustManager;
 
-import org.apache.commons.csv.CSVFormat;
-import org.apache.commons.csv.CSVParser;
-import org.apache.commons.csv.CSVRecord;
 import org.apache.commons.io.IOUtils;
 import org.apache.http.Header;
 import org.apache.http.client.HttpClient;
@@ -40,6 +57,7 @@ import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
 import org.apache.http.message.BasicHeader;
 
 import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindByPath;
 import edu.harvard.hms.dbmi.bd2k.irct.model.find.FindInformationInterface;
 import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.Entity;
 import edu.harvard.hms.dbmi.bd2k.irct.model.ontology.OntologyRelationship;
@@ -61,17 +79,31 @@ import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableExceptio
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
 import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
 import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBCostEstimator.Estimate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Aggregate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.AggregateCall;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Quantile;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Sort;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBSessionPool.PooledSession;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.DaemonThreadFactory;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.util.ExpiringCache;
 import edu.harvard.hms.dbmi.bd2k.irct.security.SecurityUtility;
 import edu.harvard.hms.dbmi.scidb.SciDB;
-import edu.harvard.hms.dbmi.scidb.SciDBAggregateFactory;
 import edu.harvard.hms.dbmi.scidb.SciDBArray;
 import edu.harvard.hms.dbmi.scidb.SciDBAttribute;
 import edu.harvard.hms.dbmi.scidb.SciDBCommand;
 import edu.harvard.hms.dbmi.scidb.SciDBDimension;
 import edu.harvard.hms.dbmi.scidb.SciDBFilterFactory;
 import edu.harvard.hms.dbmi.scidb.SciDBFunction;
-import edu.harvard.hms.dbmi.scidb.SciDBListElement;
 import edu.harvard.hms.dbmi.scidb.exception.NotConnectedException;
 
 /**
@@ -82,6 +114,8 @@ public class SciDBResourceImplementation implements
 		PathResourceImplementationInterface,
 		QueryResourceImplementationInterface,
 		ProcessResourceImplementationInterface {
+	private static final Logger logger = Logger
+			.getLogger(SciDBResourceImplementation.class.getName());
 
 	private String resourceName;
 	private String clientId;
@@ -91,6 +125,40 @@ public class SciDBResourceImplementation implements
 
 	private ResourceState resourceState;
 
+	private boolean binaryTransfer;
+	private SciDBArrayCache arrayCache;
+	private boolean optimizeQueries;
+	private boolean materializeSubplans;
+	private int partitions;
+	private String partitionDimension;
+	private ExecutorService partitionWorkers;
+	private SciDBSessionPool sessionPool;
+	private SciDBResultCache resultCache;
+	private SciDBUploadArrays uploadArrays;
+	private long maxExecutionTime;
+	private long maxEstimatedCells;
+	private long maxEstimatedChunks;
+	private boolean rejectFullScans;
+	private ScheduledExecutorService sessionReaper;
+	private ExecutorService resultWriters;
+	private ExecutorService schemaCrawler;
+	private final SciDBSchemaIndex schemaIndex = new SciDBSchemaIndex();
+	private final AtomicBoolean schemaCrawling = new AtomicBoolean();
+	private int ingestionBatchSize;
+	private int ingestionQueueSize;
+	private final SciDBResultWriter.Metrics ingestionMetrics = new SciDBResultWriter.Metrics();
+
+	private final ConcurrentMap<String, SciDBSchema> querySchemas = new ConcurrentHashMap<String, SciDBSchema>();
+	private final Set<String> binaryResults = Collections
+			.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+	private final ConcurrentMap<String, List<String>> resultTempArrays = new ConcurrentHashMap<String, List<String>>();
+	private final ConcurrentMap<String, List<String>> partitionedResults = new ConcurrentHashMap<String, List<String>>();
+	private final ConcurrentMap<String, RunningQuery> runningQueries = new ConcurrentHashMap<String, RunningQuery>();
+	private final ExpiringCache<String, String> cancelledResults = new ExpiringCache<String, String>(
+			10000, 86400000);
+	private final ExpiringCache<String, String> resultOwners = new ExpiringCache<String, String>(
+			10000, 86400000);
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -117,9 +185,263 @@ public class SciDBResourceImplementation implements
 			this.ignoreCertificate = false;
 		}
 
+		this.binaryTransfer = "true".equals(parameters.get("binaryTransfer"));
+		this.optimizeQueries = !"false".equals(parameters
+				.get("optimizeQueries"));
+		this.materializeSubplans = "true".equals(parameters
+				.get("materializeSubplans"));
+
+		String arrayCacheTTL = parameters.get("arrayCacheTTL");
+		try {
+			this.arrayCache = new SciDBArrayCache(
+					arrayCacheTTL == null ? 60000 : Long.parseLong(arrayCacheTTL));
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException(
+					"Invalid value for arrayCacheTTL");
+		}
+
+		String partitionsString = parameters.get("partitions");
+		try {
+			this.partitions = partitionsString == null ? 1 : Integer
+					.parseInt(partitionsString);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException(
+					"Invalid value for partitions");
+		}
+		this.partitionDimension = parameters.get("partitionDimension");
+		if (this.partitions > 1 && partitionWorkers == null) {
+			partitionWorkers = Executors.newFixedThreadPool(this.partitions,
+					new DaemonThreadFactory("SciDB-partition"));
+		}
+
+		try {
+			this.ingestionBatchSize = getIntParameter(parameters,
+					"ingestionBatchSize", 4096);
+			this.ingestionQueueSize = getIntParameter(parameters,
+					"ingestionQueueSize", 2);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException(
+					"Invalid ingestion parameter " + e.getMessage());
+		}
+		if (resultWriters == null) {
+			resultWriters = Executors.newCachedThreadPool(new DaemonThreadFactory(
+					"SciDB-writer"));
+			schemaCrawler = Executors
+					.newSingleThreadExecutor(new DaemonThreadFactory(
+							"SciDB-crawler"));
+		}
+
+		try {
+			this.maxEstimatedCells = getLongParameter(parameters,
+					"maxEstimatedCells", 0);
+			this.maxEstimatedChunks = getLongParameter(parameters,
+					"maxEstimatedChunks", 0);
+		} catch (NumberFormatException e) {
+			throw new ResourceInterfaceException(
+					"Invalid admission parameter " + e.getMessage());
+		}
+		this.rejectFullScans = "true".equals(parameters.get("rejectFullScans"));
+
+		String resultCacheTTL = parameters.get("resultCacheTTL");
+		if (resultCacheTTL != null && resultCache == null) {
+			try {
+				resultCache = new SciDBResultCache(getIntParameter(parameters,
+						"resultCacheSize", 100), Long.parseLong(resultCacheTTL));
+			} catch (NumberFormatException e) {
+				throw new ResourceInterfaceException(
+						"Invalid result cache parameter " + e.getMessage());
+			}
+		}
+
+		if (uploadArrays == null) {
+			try {
+				uploadArrays = new SciDBUploadArrays(getLongParameter(
+						parameters, "uploadTimeout", 86400000));
+			} catch (NumberFormatException e) {
+				throw new ResourceInterfaceException(
+						"Invalid value for uploadTimeout");
+			}
+		}
+
+		if (sessionPool == null) {
+			try {
+				sessionPool = new SciDBSessionPool(this, this.resourceURL,
+						getIntParameter(parameters, "maxSessions", 32),
+						getIntParameter(parameters, "maxUserSessions", 8),
+						getIntParameter(parameters, "sessionWaitTimeout",
+								30000), getIntParameter(parameters,
+								"sessionIdleTimeout", 300000),
+						getIntParameter(parameters, "resultTimeout", 3600000));
+			} catch (NumberFormatException e) {
+				throw new ResourceInterfaceException(
+						"Invalid session pool parameter " + e.getMessage());
+			}
+			sessionReaper = Executors.newSingleThreadScheduledExecutor(
+					new DaemonThreadFactory("SciDB-reaper"));
+			sessionReaper.scheduleWithFixedDelay(new Runnable() {
+				@Override
+				public void run() {
+					reapSessions();
+				}
+			}, 1, 1, TimeUnit.MINUTES);
+
+			try {
+				this.maxExecutionTime = getIntParameter(parameters,
+						"maxExecutionTime", 0);
+			} catch (NumberFormatException e) {
+				throw new ResourceInterfaceException(
+						"Invalid value for maxExecutionTime");
+			}
+			if (this.maxExecutionTime > 0) {
+				sessionReaper.scheduleWithFixedDelay(new Runnable() {
+					@Override
+					public void run() {
+						cancelExpiredQueries();
+					}
+				}, 1, 1, TimeUnit.SECONDS);
+			}
+		}
+
 		resourceState = ResourceState.READY;
 	}
 
+	private int getIntParameter(Map<String, String> parameters, String name,
+			int defaultValue) {
+		String value = parameters.get(name);
+		return value == null ? defaultValue : Integer.parseInt(value);
+	}
+
+	private long getLongParameter(Map<String, String> parameters, String name,
+			long defaultValue) {
+		String value = parameters.get(name);
+		return value == null ? defaultValue : Long.parseLong(value);
+	}
+
+	/**
+	 * Removes the results that were never collected, and closes the sessions
+	 * holding them
+	 */
+	private void reapSessions() {
+		try {
+			for (Map.Entry<String, PooledSession> expired : sessionPool
+					.reap().entrySet()) {
+				logger.fine("Reaping uncollected SciDB result "
+						+ expired.getKey());
+				discardResult(expired.getKey(), expired.getValue());
+			}
+		} catch (RuntimeException e) {
+			// Keep the reaper scheduled
+			e.printStackTrace();
+		}
+	}
+
+	private void discardResult(String resourceActionId,
+			PooledSession pooledSession) {
+		querySchemas.remove(resourceActionId);
+		binaryResults.remove(resourceActionId);
+		partitionedResults.remove(resourceActionId);
+		removeTempArrays(pooledSession.getClient(), pooledSession.getSciDB(),
+				resultTempArrays.remove(resourceActionId));
+		sessionPool.discard(pooledSession);
+	}
+
+	/**
+	 * Cancels a query run by the user of the session
+	 * 
+	 * @param session
+	 *            Session
+	 * @param result
+	 *            Result of the query
+	 * @return Result
+	 * @throws ResourceInterfaceException
+	 *             The query was not run by the user
+	 */
+	public Result cancel(SecureSession session, Result result)
+			throws ResourceInterfaceException {
+		String resourceActionId = result.getResourceActionId();
+		String owner = resourceActionId == null ? null : resultOwners
+				.get(resourceActionId);
+		if (owner == null || !owner.equals(getUserName(session))) {
+			throw new ResourceInterfaceException("Unknown query "
+					+ resourceActionId);
+		}
+		cancelQuery(resourceActionId, "Query cancelled");
+		result.setResultStatus(ResultStatus.ERROR);
+		result.setMessage("Query cancelled");
+		return result;
+	}
+
+	private String getUserName(SecureSession session) {
+		if (session == null || session.getUser() == null
+				|| session.getUser().getName() == null) {
+			return "";
+		}
+		return session.getUser().getName();
+	}
+
+	/**
+	 * Cancels a query. A running query, whose resource action id is still its
+	 * session id, is cancelled in each of its sessions and the sessions are
+	 * closed once it returns; the output of a query that has finished is
+	 * dropped along with its session.
+	 * 
+	 * @param resourceActionId
+	 *            Resource action id of the query
+	 * @param reason
+	 *            Message reported by the result
+	 */
+	private void cancelQuery(String resourceActionId, String reason) {
+		cancelledResults.put(resourceActionId, reason);
+
+		RunningQuery runningQuery = runningQueries.get(resourceActionId);
+		if (runningQuery != null) {
+			runningQuery.cancelReason = reason;
+			synchronized (runningQuery.sessions) {
+				for (PooledSession pooledSession : runningQuery.sessions) {
+					try {
+						new SciDBShim(pooledSession.getClient(),
+								this.resourceURL).cancel(pooledSession
+								.getSciDB().getSessionId());
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+			return;
+		}
+
+		PooledSession pooledSession = sessionPool.claim(resourceActionId);
+		if (pooledSession != null) {
+			List<String> partitionIds = partitionedResults
+					.get(resourceActionId);
+			discardResult(resourceActionId, pooledSession);
+			if (partitionIds != null) {
+				for (String partitionId : partitionIds.subList(1,
+						partitionIds.size())) {
+					sessionPool.discard(sessionPool.claim(partitionId));
+				}
+			}
+		}
+	}
+
+	private void cancelExpiredQueries() {
+		try {
+			long started = System.currentTimeMillis() - maxExecutionTime;
+			for (Map.Entry<String, RunningQuery> runningQuery : runningQueries
+					.entrySet()) {
+				if (runningQuery.getValue().started < started
+						&& runningQuery.getValue().cancelReason == null) {
+					cancelQuery(runningQuery.getKey(),
+							"Query exceeded the maximum execution time of "
+									+ maxExecutionTime + " ms");
+				}
+			}
+		} catch (RuntimeException e) {
+			// Keep the watchdog scheduled
+			e.printStackTrace();
+		}
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -135,97 +457,93 @@ public class SciDBResourceImplementation implements
 			OntologyRelationship relationship, SecureSession session)
 			throws ResourceInterfaceException {
 		List<Entity> entities = new ArrayList<Entity>();
-		// Build
-		HttpClient client = createClient(session);
 		String basePath = path.getPui();
 		String[] pathComponents = basePath.split("/");
-		CSVParser parser = null;
 
-		SciDB sciDB = new SciDB();
-		sciDB.connect(client, this.resourceURL);
+		if (pathComponents.length != 2 && pathComponents.length != 3) {
+			throw new ResourceInterfaceException(relationship.toString()
+					+ " not supported for this path " + basePath);
+		}
 
+		// Only connect when the array listing is not cached
+		PooledSession pooledSession = null;
 		try {
+			Map<String, CachedArray> arrays = arrayCache.getArrays();
+			if (arrays == null) {
+				pooledSession = sessionPool.acquire(session);
+				arrays = arrayCache.load(pooledSession.getSciDB());
+			}
+
+			schemaIndex.refresh(arrays);
+
 			if (pathComponents.length == 2) {
-				sciDB.executeQuery(sciDB.list(SciDBListElement.ARRAYS), "csv");
-				parser = new CSVParser(
-						new InputStreamReader(sciDB.readLines()),
-						CSVFormat.DEFAULT);
-				for (CSVRecord csvRecord : parser) {
-					String name = csvRecord.get(0);
-					name = name.substring(1, name.length() - 1);
-					Entity entity = new Entity();
-					entity.setName(name);
-					entity.setDisplayName(name);
-					entity.setPui(basePath + "/" + name);
-					entity.setDataType(SciDBDataType.ARRAY);
-					entities.add(entity);
-				}
-
-			} else if (pathComponents.length == 3) {
-				sciDB.executeQuery(
-						sciDB.show(new SciDBArray(pathComponents[2])), "csv");
-				String line = inputStreamToString(sciDB.readLines());
-				SciDBArray array = SciDBArray.fromAFLResponseString(line);
+				for (String name : arrays.keySet()) {
+					entities.add(createArrayEntity(basePath, name));
+				}
+
+			} else if (arrays.containsKey(pathComponents[2])) {
+				SciDBArray array = arrays.get(pathComponents[2]).getArray();
 
 				for (String attributeName : array.getAttributes().keySet()) {
-					Entity entity = new Entity();
-					entity.setPui(basePath + "/" + attributeName);
-					entity.setName(attributeName);
-					entity.setDisplayName(attributeName);
-					entity.setDataType(SciDBDataType.ATTRIBUTE);
-
-					SciDBAttribute attribute = array.getAttributes().get(
-							attributeName);
-					entity.getAttributes().put("nullable",
-							Boolean.toString(attribute.isNullable()));
-					entity.getAttributes().put("defaultValue",
-							attribute.getDefaultValue());
-					entity.getAttributes().put("compressionType",
-							attribute.getCompressionType());
-
-					entities.add(entity);
+					entities.add(createAttributeEntity(basePath, attributeName,
+							array.getAttributes().get(attributeName)));
 				}
 				for (String dimensionName : array.getDimensions().keySet()) {
-					Entity entity = new Entity();
-					entity.setPui(basePath + "/" + dimensionName);
-					entity.setName(dimensionName);
-					entity.setDisplayName(dimensionName);
-					entity.setDataType(SciDBDataType.DIMENSION);
-
-					SciDBDimension dimension = array.getDimensions().get(
-							dimensionName);
-					entity.getAttributes().put("lowValue",
-							dimension.getLowValue());
-					entity.getAttributes().put("highValue",
-							dimension.getHighValue());
-					entity.getAttributes().put("chunkLength",
-							dimension.getChunkLength());
-					entity.getAttributes().put("chunkOverlap",
-							dimension.getChunkOverlap());
-					entities.add(entity);
+					entities.add(createDimensionEntity(basePath, dimensionName,
+							array.getDimensions().get(dimensionName)));
 				}
-
-			} else {
-				sciDB.close();
-				throw new ResourceInterfaceException(relationship.toString()
-						+ " not supported for this path " + basePath);
 			}
 		} catch (NotConnectedException | IOException e) {
 			e.printStackTrace();
+			sessionPool.discard(pooledSession);
+			pooledSession = null;
 		} finally {
-			if (parser != null) {
-				try {
-					parser.close();
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-			}
+			sessionPool.release(pooledSession);
 		}
 
-		sciDB.close();
 		return entities;
 	}
 
+	private Entity createArrayEntity(String basePath, String name) {
+		Entity entity = new Entity();
+		entity.setName(name);
+		entity.setDisplayName(name);
+		entity.setPui(basePath + "/" + name);
+		entity.setDataType(SciDBDataType.ARRAY);
+		return entity;
+	}
+
+	private Entity createAttributeEntity(String basePath, String attributeName,
+			SciDBAttribute attribute) {
+		Entity entity = new Entity();
+		entity.setPui(basePath + "/" + attributeName);
+		entity.setName(attributeName);
+		entity.setDisplayName(attributeName);
+		entity.setDataType(SciDBDataType.ATTRIBUTE);
+
+		entity.getAttributes().put("nullable",
+				Boolean.toString(attribute.isNullable()));
+		entity.getAttributes().put("defaultValue", attribute.getDefaultValue());
+		entity.getAttributes().put("compressionType",
+				attribute.getCompressionType());
+		return entity;
+	}
+
+	private Entity createDimensionEntity(String basePath, String dimensionName,
+			SciDBDimension dimension) {
+		Entity entity = new Entity();
+		entity.setPui(basePath + "/" + dimensionName);
+		entity.setName(dimensionName);
+		entity.setDisplayName(dimensionName);
+		entity.setDataType(SciDBDataType.DIMENSION);
+
+		entity.getAttributes().put("lowValue", dimension.getLowValue());
+		entity.getAttributes().put("highValue", dimension.getHighValue());
+		entity.getAttributes().put("chunkLength", dimension.getChunkLength());
+		entity.getAttributes().put("chunkOverlap", dimension.getChunkOverlap());
+		return entity;
+	}
+
 	/*
 	 * (non-Javadoc)
 	 * 
@@ -238,58 +556,591 @@ public class SciDBResourceImplementation implements
 	@Override
 	public Result runQuery(SecureSession session, Query query, Result result)
 			throws ResourceInterfaceException {
-		HttpClient client = createClient(session);
-		SciDB sciDB = new SciDB();
-		sciDB.connect(client, this.resourceURL);
+		PooledSession pooledSession = sessionPool.acquire(session);
+		HttpClient client = pooledSession.getClient();
+		SciDB sciDB = pooledSession.getSciDB();
 		result.setResultStatus(ResultStatus.CREATED);
 
+		// The session id lets the query be cancelled while it runs
+		String sessionId = sciDB.getSessionId();
+		RunningQuery runningQuery = new RunningQuery(pooledSession);
+		runningQueries.put(sessionId, runningQuery);
+		result.setResourceActionId(sessionId);
+		resultOwners.put(sessionId, getUserName(session));
+
+		List<String> tempArrays = new ArrayList<String>();
 		try {
-			SciDBCommand command = createQuery(sciDB, query);
+			SciDBPlanNode plan = createQueryPlan(sciDB, query);
+			if (plan != null) {
+				uploadArrays.touch(plan.getArrays());
+			}
+
+			// Explained queries and queries over the admission limits are
+			// not run
+			if (plan != null
+					&& (isExplain(query) || maxEstimatedCells > 0
+							|| maxEstimatedChunks > 0 || rejectFullScans)) {
+				Estimate estimate = new SciDBCostEstimator(
+						arrayCache.getArrays(sciDB)).estimate(plan);
+				if (isExplain(query)) {
+					explain(result, plan.toCommand(sciDB), estimate);
+					sessionPool.release(pooledSession);
+					return result;
+				}
+				String rejection = checkAdmission(estimate);
+				if (rejection != null) {
+					result.setResultStatus(ResultStatus.ERROR);
+					result.setMessage(rejection);
+					sessionPool.release(pooledSession);
+					return result;
+				}
+			}
 
-			String queryId = sciDB.executeQuery(command, "dcsv");
-			if (queryId.contains("Exception")) {
+			String cacheKey = getResultCacheKey(session, sciDB, plan, false);
+			String cachedArray = cacheKey == null ? null : resultCache
+					.get(cacheKey);
+			if (cachedArray != null) {
+				// The listing may predate a change of an input array, so a
+				// hit is looked up again with the current versions
+				cacheKey = getResultCacheKey(session, sciDB, plan, true);
+				cachedArray = cacheKey == null ? null : resultCache
+						.get(cacheKey);
+			}
+
+			SciDBCommand command;
+			if (cachedArray != null) {
+				logger.fine("Reusing the stored output in " + cachedArray);
+				command = new SciDBAFLCommand("scan(" + cachedArray + ")");
+			} else {
+				if (materializeSubplans && plan != null) {
+					plan = materializeSubplans(sciDB, new SciDBShim(client,
+							this.resourceURL), plan, tempArrays);
+				}
+				command = plan == null ? null : plan.toCommand(sciDB);
+				if (cacheKey != null) {
+					command = storeResult(sciDB, new SciDBShim(client,
+							this.resourceURL), command, cacheKey);
+				}
+			}
+			if (resultCache != null) {
+				removeTempArrays(client, sciDB, resultCache.drainRemoved());
+			}
+			removeTempArrays(client, sciDB, uploadArrays.drainExpired());
+			SciDBSchema schema = getQuerySchema(sciDB, command);
+
+			// Binary output needs a type template, so it is only used when
+			// the output schema is known
+			boolean binary = binaryTransfer && schema != null
+					&& SciDBBinaryReader.supports(schema);
+
+			// Large outputs are split into dimension ranges that run in
+			// sessions of their own. Stored outputs are scans, other queries
+			// are only split if a range does not compute the whole query, and
+			// one session of the user is left for other requests.
+			int rangeCount = Math.min(partitions,
+					sessionPool.getMaxUserSessions() - 1);
+			SciDBRangePartitioner partitioner = rangeCount > 1
+					&& schema != null
+					&& (cacheKey != null || SciDBRangePartitioner
+							.supports(plan)) ? SciDBRangePartitioner.create(
+					schema, partitionDimension) : null;
+			List<long[]> ranges = partitioner == null ? null : partitioner
+					.split(rangeCount);
+			List<String> partitionIds = null;
+			String queryId;
+			if (ranges != null && ranges.size() > 1) {
+				partitionIds = executePartitions(session, pooledSession,
+						partitioner, ranges, command, schema, binary);
+				queryId = partitionIds.get(0).split("\\|")[1];
+			} else if (binary) {
+				queryId = sciDB.executeQuery(
+						SciDBBinaryReader.createQuery(command, schema),
+						SciDBBinaryReader.createTemplate(schema));
+			} else {
+				queryId = sciDB.executeQuery(command, "dcsv");
+			}
+			if (runningQuery.cancelReason != null) {
+				// A cancelled session is not reused, and the output of a
+				// query that finished before it was cancelled is dropped
+				result.setResultStatus(ResultStatus.ERROR);
+				result.setMessage(runningQuery.cancelReason);
+				removeTempArrays(client, sciDB, tempArrays);
+				if (partitionIds != null) {
+					for (String partitionId : partitionIds.subList(1,
+							partitionIds.size())) {
+						sessionPool.discard(sessionPool.claim(partitionId));
+					}
+				}
+				sessionPool.discard(pooledSession);
+			} else if (queryId.contains("Exception")) {
 				result.setResultStatus(ResultStatus.ERROR);
 				result.setMessage(queryId);
-				sciDB.close();
+				removeTempArrays(client, sciDB, tempArrays);
+				sessionPool.release(pooledSession);
 			} else {
+				// The session is kept until the results are read
 				result.setResourceActionId(sciDB.getSessionId() + "|" + queryId);
+				resultOwners.put(result.getResourceActionId(),
+						getUserName(session));
+				sessionPool.hold(result.getResourceActionId(), pooledSession);
+				if (partitionIds != null) {
+					partitionedResults.put(result.getResourceActionId(),
+							partitionIds);
+				}
 				result.setResultStatus(ResultStatus.RUNNING);
+				if (schema != null) {
+					querySchemas.put(result.getResourceActionId(), schema);
+				}
+				if (binary) {
+					binaryResults.add(result.getResourceActionId());
+				}
+				if (!tempArrays.isEmpty()) {
+					resultTempArrays.put(result.getResourceActionId(),
+							tempArrays);
+				}
 			}
 		} catch (Exception e) {
 			e.printStackTrace();
 			result.setResultStatus(ResultStatus.ERROR);
-			result.setMessage(e.getMessage().split("\n")[0]);
-			sciDB.close();
+			result.setMessage(runningQuery.cancelReason == null ? e
+					.getMessage().split("\n")[0] : runningQuery.cancelReason);
+			removeTempArrays(client, sciDB, tempArrays);
+			sessionPool.discard(pooledSession);
+		} finally {
+			runningQueries.remove(sessionId);
 		}
 		return result;
 	}
 
-	private SciDBCommand createQuery(SciDB sciDB, Query query) {
-		SciDBCommand command = null;
+	private boolean isExplain(Query query) {
+		for (SelectClause selectClause : query
+				.getClausesOfType(SelectClause.class)) {
+			if (selectClause.getOperationType() != null
+					&& "EXPLAIN".equals(selectClause.getOperationType()
+							.getName())) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Sets the data of the result to a single row describing the query: the
+	 * AFL it compiles to, the dimension ranges of each array it reads, the
+	 * estimated cells and chunks read, and the arrays read whole. Unknown
+	 * estimates are left empty.
+	 * 
+	 * @param result
+	 *            Result
+	 * @param command
+	 *            Compiled query
+	 * @param estimate
+	 *            Estimate of the query
+	 * @throws ResultSetException
+	 *             An error occurred creating the result set
+	 * @throws PersistableException
+	 *             An error occurred creating the result set
+	 */
+	private void explain(Result result, SciDBCommand command, Estimate estimate)
+			throws ResultSetException, PersistableException {
+		FileResultSet rs = createColumns(result, Arrays.asList("AFL",
+				"RANGES", "CELLS", "CHUNKS", "FULL_SCANS"),
+				new PrimitiveDataType[] { PrimitiveDataType.STRING,
+						PrimitiveDataType.STRING, PrimitiveDataType.LONG,
+						PrimitiveDataType.LONG, PrimitiveDataType.STRING });
+		rs.appendRow();
+		rs.updateString(0, command.toAFLQueryString());
+		rs.updateString(1, joinNames(estimate.getRanges()));
+		if (estimate.getCells() != null) {
+			rs.updateLong(2, estimate.getCells());
+		}
+		if (estimate.getChunks() != null) {
+			rs.updateLong(3, estimate.getChunks());
+		}
+		rs.updateString(4, joinNames(estimate.getFullScans()));
+		result.setData(rs);
+		result.setResultStatus(ResultStatus.COMPLETE);
+	}
+
+	/**
+	 * Returns why a query is not admitted, or null if it may run
+	 * 
+	 * @param estimate
+	 *            Estimate of the query
+	 * @return Reason or null
+	 */
+	private String checkAdmission(Estimate estimate) {
+		if (rejectFullScans && !estimate.getFullScans().isEmpty()) {
+			return "Query reads the whole of "
+					+ joinNames(estimate.getFullScans())
+					+ "; restrict it with a between";
+		}
+		if (maxEstimatedCells > 0
+				&& (estimate.getCells() == null || estimate.getCells() > maxEstimatedCells)) {
+			return "Query reads "
+					+ (estimate.getCells() == null ? "an unbounded number of"
+							: "an estimated " + estimate.getCells())
+					+ " cells, more than the limit of " + maxEstimatedCells;
+		}
+		if (maxEstimatedChunks > 0
+				&& (estimate.getChunks() == null || estimate.getChunks() > maxEstimatedChunks)) {
+			return "Query reads "
+					+ (estimate.getChunks() == null ? "an unknown number of"
+							: "an estimated " + estimate.getChunks())
+					+ " chunks, more than the limit of " + maxEstimatedChunks;
+		}
+		return null;
+	}
+
+	private String joinNames(List<String> names) {
+		StringBuilder joined = new StringBuilder();
+		for (String name : names) {
+			if (joined.length() != 0) {
+				joined.append(", ");
+			}
+			joined.append(name);
+		}
+		return joined.toString();
+	}
+
+	/**
+	 * Stores each sub-plan that occurs more than once in the plan into a
+	 * temporary array, and returns the plan reading those arrays instead
+	 * 
+	 * @param sciDB
+	 *            SciDB connection
+	 * @param shim
+	 *            Shim of the connection
+	 * @param plan
+	 *            Query plan
+	 * @param tempArrays
+	 *            Filled with the names of the arrays created
+	 * @return Query plan
+	 * @throws IOException
+	 *             An error occurred storing a sub-plan
+	 */
+	private SciDBPlanNode materializeSubplans(SciDB sciDB, SciDBShim shim,
+			SciDBPlanNode plan, List<String> tempArrays) throws IOException {
+		LinkedHashMap<String, SciDBPlanNode> subplans = new LinkedHashMap<String, SciDBPlanNode>();
+		SciDBPlanNode materializedPlan = SciDBCommonSubplans.materialize(plan,
+				subplans);
+
+		for (String tempArray : subplans.keySet()) {
+			shim.execute(sciDB.getSessionId(), "store("
+					+ subplans.get(tempArray).toCommand(sciDB)
+							.toAFLQueryString() + ", " + tempArray + ")");
+			tempArrays.add(tempArray);
+		}
+		return materializedPlan;
+	}
+
+	/**
+	 * Returns the result cache key of a plan, or null if results are not
+	 * cached or the plan reads arrays whose versions are not known
+	 * 
+	 * @param session
+	 *            Session of the user running the query
+	 * @param sciDB
+	 *            SciDB connection
+	 * @param plan
+	 *            Query plan
+	 * @param reload
+	 *            Read the array versions from SciDB rather than the array
+	 *            cache
+	 * @return Key
+	 */
+	private String getResultCacheKey(SecureSession session, SciDB sciDB,
+			SciDBPlanNode plan, boolean reload) {
+		if (resultCache == null || plan == null) {
+			return null;
+		}
+		String user = "";
+		if (session != null && session.getUser() != null
+				&& session.getUser().getName() != null) {
+			user = session.getUser().getName();
+		} else if (session != null && session.getToken() != null) {
+			user = session.getToken().toString();
+		}
+		try {
+			return SciDBResultCache.createKey(user, plan.toCommand(sciDB)
+					.toAFLQueryString(), plan.getArrays(),
+					reload ? arrayCache.load(sciDB) : arrayCache
+							.getArrays(sciDB));
+		} catch (NotConnectedException | IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Stores the output of a query into a new array of the result cache, and
+	 * returns the query scanning it
+	 * 
+	 * @param sciDB
+	 *            SciDB connection
+	 * @param shim
+	 *            Shim of the connection
+	 * @param command
+	 *            Query
+	 * @param cacheKey
+	 *            Result cache key of the query
+	 * @return Query of the stored output
+	 * @throws IOException
+	 *             An error occurred storing the output
+	 */
+	private SciDBCommand storeResult(SciDB sciDB, SciDBShim shim,
+			SciDBCommand command, String cacheKey) throws IOException {
+		String arrayName = resultCache.createArrayName();
+		shim.execute(sciDB.getSessionId(),
+				"store(" + command.toAFLQueryString() + ", " + arrayName + ")");
+		resultCache.put(cacheKey, arrayName);
+		return new SciDBAFLCommand("scan(" + arrayName + ")");
+	}
+
+	/**
+	 * Runs each range of a query in a SciDB session of its own, concurrently.
+	 * The first range runs in the session of the query, the other sessions
+	 * are held under their ids until the results are read.
+	 * 
+	 * @param session
+	 *            Session
+	 * @param querySession
+	 *            Session of the query
+	 * @param partitioner
+	 *            Partitioner of the query output
+	 * @param ranges
+	 *            Ranges to run
+	 * @param command
+	 *            Query
+	 * @param schema
+	 *            Output schema of the query
+	 * @param binary
+	 *            Save the output in the binary format
+	 * @return Session and query id of each range, in range order
+	 * @throws IOException
+	 *             A range could not be run
+	 */
+	private List<String> executePartitions(final SecureSession session,
+			final PooledSession querySession,
+			SciDBRangePartitioner partitioner, List<long[]> ranges,
+			SciDBCommand command, final SciDBSchema schema,
+			final boolean binary) throws IOException {
+		final RunningQuery runningQuery = runningQueries.get(querySession
+				.getSciDB().getSessionId());
+		List<Future<PooledSession>> executions = new ArrayList<Future<PooledSession>>();
+		final List<String> queryIds = Collections
+				.synchronizedList(new ArrayList<String>(Collections.nCopies(
+						ranges.size(), (String) null)));
+		for (int rangei = 0; rangei < ranges.size(); rangei++) {
+			final int partition = rangei;
+			final SciDBCommand rangeCommand = partitioner.createQuery(command,
+					ranges.get(rangei));
+			executions.add(partitionWorkers
+					.submit(new Callable<PooledSession>() {
+						@Override
+						public PooledSession call() throws Exception {
+							PooledSession partitionSession = partition == 0 ? querySession
+									: sessionPool.acquire(session);
+							SciDB partitionSciDB = partitionSession.getSciDB();
+							String queryId;
+							try {
+								if (runningQuery != null && partition != 0) {
+									runningQuery.add(partitionSession);
+								}
+								if (runningQuery != null
+										&& runningQuery.cancelReason != null) {
+									throw new IOException(
+											runningQuery.cancelReason);
+								}
+								if (binary) {
+									queryId = partitionSciDB.executeQuery(
+											SciDBBinaryReader.createQuery(
+													rangeCommand, schema),
+											SciDBBinaryReader
+													.createTemplate(schema));
+								} else {
+									queryId = partitionSciDB.executeQuery(
+											rangeCommand, "dcsv");
+								}
+							} catch (Exception e) {
+								if (partition != 0) {
+									sessionPool.discard(partitionSession);
+								}
+								throw e;
+							}
+							if (queryId.contains("Exception")) {
+								if (partition != 0) {
+									releaseOrDiscard(runningQuery,
+											partitionSession);
+								}
+								throw new IOException(queryId);
+							}
+							queryIds.set(partition, queryId);
+							return partitionSession;
+						}
+					}));
+		}
+
+		List<PooledSession> partitionSessions = new ArrayList<PooledSession>();
+		String failure = null;
+		for (Future<PooledSession> execution : executions) {
+			try {
+				partitionSessions.add(execution.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = "Interrupted while running the query partitions";
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				failure = e.getCause().getMessage();
+			}
+		}
+		if (failure != null) {
+			for (PooledSession partitionSession : partitionSessions) {
+				if (partitionSession != querySession) {
+					releaseOrDiscard(runningQuery, partitionSession);
+				}
+			}
+			throw new IOException(failure);
+		}
+
+		List<String> partitionIds = new ArrayList<String>();
+		for (int rangei = 0; rangei < ranges.size(); rangei++) {
+			PooledSession partitionSession = partitionSessions.get(rangei);
+			String partitionId = partitionSession.getSciDB().getSessionId()
+					+ "|" + queryIds.get(rangei);
+			if (rangei != 0) {
+				sessionPool.hold(partitionId, partitionSession);
+			}
+			partitionIds.add(partitionId);
+		}
+		logger.fine("Query split into " + ranges.size() + " ranges of "
+				+ partitioner.getDimensionName());
+		return partitionIds;
+	}
+
+	/**
+	 * Returns a session to the pool, or closes it if its query was cancelled
+	 */
+	private void releaseOrDiscard(RunningQuery runningQuery,
+			PooledSession pooledSession) {
+		if (runningQuery != null && runningQuery.cancelReason != null) {
+			sessionPool.discard(pooledSession);
+		} else {
+			sessionPool.release(pooledSession);
+		}
+	}
+
+	private void removeTempArrays(HttpClient client, SciDB sciDB,
+			List<String> tempArrays) {
+		if (tempArrays == null || tempArrays.isEmpty()) {
+			return;
+		}
+		SciDBShim shim = new SciDBShim(client, this.resourceURL);
+		for (String tempArray : tempArrays) {
+			try {
+				shim.execute(sciDB.getSessionId(), "remove(" + tempArray + ")");
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Returns the output schema of a query so the result columns can be typed,
+	 * or null if SciDB could not report it
+	 * 
+	 * @param sciDB
+	 *            SciDB connection
+	 * @param command
+	 *            Query
+	 * @return Output schema
+	 */
+	private SciDBSchema getQuerySchema(SciDB sciDB, SciDBCommand command) {
+		try {
+			String response = sciDB.executeQuery(
+					SciDBAFLCommand.showSchema(command), "csv");
+			if (response.contains("Exception")) {
+				return null;
+			}
+			return SciDBSchema.parse(inputStreamToString(sciDB.readLines()));
+		} catch (NotConnectedException | IOException
+				| IllegalArgumentException e) {
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Compiles a query into an optimized plan in which identical sub-plans
+	 * are shared
+	 * 
+	 * @param sciDB
+	 *            SciDB connection
+	 * @param query
+	 *            Query
+	 * @return Query plan
+	 */
+	private SciDBPlanNode createQueryPlan(SciDB sciDB, Query query) {
+		SciDBPlanNode plan = createPlan(sciDB, query,
+				new IdentityHashMap<Query, SciDBPlanNode>());
+		if (plan == null) {
+			return null;
+		}
+		if (!optimizeQueries) {
+			return new SciDBCommonSubplans().share(plan);
+		}
+
+		Map<String, CachedArray> arrays = null;
+		try {
+			arrays = arrayCache.getArrays(sciDB);
+		} catch (NotConnectedException | IOException e) {
+			e.printStackTrace();
+		}
+		SciDBPlanNode optimizedPlan = new SciDBCommonSubplans()
+				.share(new SciDBQueryOptimizer(arrays).optimize(plan));
+
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("AFL before optimization: "
+					+ plan.toCommand(sciDB).toAFLQueryString());
+			logger.fine("AFL after optimization: "
+					+ optimizedPlan.toCommand(sciDB).toAFLQueryString());
+		}
+		return optimizedPlan;
+	}
+
+	private SciDBPlanNode createPlan(SciDB sciDB, Query query,
+			Map<Query, SciDBPlanNode> compiledQueries) {
+		// A query that is both a subquery and the right side of a join is
+		// only compiled once
+		if (compiledQueries.containsKey(query)) {
+			return compiledQueries.get(query);
+		}
+
+		SciDBPlanNode plan = null;
 		// Parse all subqueries first
-		Map<String, SciDBCommand> subQueryCommands = new HashMap<String, SciDBCommand>();
+		Map<String, SciDBPlanNode> subQueryPlans = new HashMap<String, SciDBPlanNode>();
 		
 		for (String subQueryID : query.getSubQueries().keySet()) {
-			subQueryCommands.put(subQueryID, createQuery(sciDB, query.getSubQuery(subQueryID)));
+			subQueryPlans.put(subQueryID, createPlan(sciDB, query.getSubQuery(subQueryID), compiledQueries));
 		}
 		
 		// Parse all join clauses
 		List<JoinClause> joinClauses = query.getClausesOfType(JoinClause.class);
 		for (JoinClause joinClause : joinClauses) {
-			command = addJoinOperation(sciDB, command, subQueryCommands, joinClause);
+			plan = addJoinOperation(sciDB, plan, subQueryPlans, joinClause, compiledQueries);
 		}
 
 		// Parse all where clauses second
 		List<WhereClause> whereClauses = query
 				.getClausesOfType(WhereClause.class);
 		for (WhereClause whereClause : whereClauses) {
-			command = addWhereOperation(sciDB, command, subQueryCommands, whereClause);
+			plan = addWhereOperation(sciDB, plan, subQueryPlans, whereClause);
 		}
 
 		// Parse all sort clauses
 		List<SortClause> sortClauses = query.getClausesOfType(SortClause.class);
 		for(SortClause sortClause : sortClauses) {
-			command = addSortOperation(sciDB, command, subQueryCommands, sortClause);
+			plan = addSortOperation(sciDB, plan, subQueryPlans, sortClause);
 		}
 
 		// Parse all select clauses
@@ -298,7 +1149,7 @@ public class SciDBResourceImplementation implements
 		List<String> selects = new ArrayList<String>();
 		for (SelectClause selectClause : selectClauses) {
 			if (selectClause.getOperationType() != null) {
-				command = addSelectOperation(sciDB, command, subQueryCommands, selectClause);
+				plan = addSelectOperation(sciDB, plan, subQueryPlans, selectClause);
 			} else {
 				String[] pathComponents = selectClause.getParameter().getPui()
 						.split("/");
@@ -310,30 +1161,33 @@ public class SciDBResourceImplementation implements
 			}
 		}
 		if (!selects.isEmpty()) {
-			command = sciDB.project(command, selects.toArray(new String[] {}));
+			plan = new Project(plan, selects.toArray(new String[] {}));
 		}
 
-		return command;
+		compiledQueries.put(query, plan);
+		return plan;
 
 	}
 
-	private SciDBCommand addWhereOperation(SciDB sciDB,
-			SciDBCommand whereOperation, Map<String, SciDBCommand> subQueryCommands, WhereClause whereClause) {
+	private SciDBPlanNode addWhereOperation(SciDB sciDB,
+			SciDBPlanNode whereOperation, Map<String, SciDBPlanNode> subQueryPlans, WhereClause whereClause) {
 
 		String predicateName = whereClause.getPredicateType().getName();
 
 		if (whereOperation == null) {
 			String arrayName = whereClause.getField().getPui().split("/")[2];
-			whereOperation = new SciDBArray(arrayName);
+			whereOperation = new Scan(arrayName);
 		}
 		switch (predicateName) {
 		case "FILTER":
 			String[] pathComponents = whereClause.getField().getPui().split("/");
 			String array = pathComponents[2];
-			if(subQueryCommands.containsKey(array)) {
-				whereOperation = sciDB.filter(subQueryCommands.get(array), createSciDBFilterOperation(whereClause));
+			Predicate predicate = new Predicate(createSciDBFilterOperation(
+					sciDB, whereClause), array, pathComponents[3]);
+			if(subQueryPlans.containsKey(array)) {
+				whereOperation = new Filter(subQueryPlans.get(array), predicate);
 			} else {
-				whereOperation = sciDB.filter(whereOperation, createSciDBFilterOperation(whereClause));
+				whereOperation = new Filter(whereOperation, predicate);
 			}
 			
 			
@@ -355,74 +1209,107 @@ public class SciDBResourceImplementation implements
 			String[] components = whereClause.getField().getPui().split("/");
 			
 			if (components.length == 3) {
-				if(subQueryCommands.containsKey(components[2])) {
-					whereOperation = subQueryCommands.get(components[2]);
+				if(subQueryPlans.containsKey(components[2])) {
+					whereOperation = subQueryPlans.get(components[2]);
 				} else {
-;					whereOperation = new SciDBArray(components[2]);
+					whereOperation = new Scan(components[2]);
 				}
 			}
 			
-			whereOperation = sciDB.between(whereOperation, lowCoordinates, highCoordinates);
+			whereOperation = new Between(whereOperation, components[2],
+					lowCoordinates, highCoordinates);
 			break;
 		case "QUANTILE":
 			int quantiles = Integer.parseInt(whereClause.getStringValues().get("QUANTILE"));
 			String attribute = whereClause.getStringValues().get("ATTRIBUTE");
-			sciDB.quantile(whereOperation, quantiles, attribute);
+			whereOperation = new Quantile(whereOperation, quantiles, attribute);
 			break;
 		}
 		return whereOperation;
 	}
 
-	private SciDBCommand addSelectOperation(SciDB sciDB,
-			SciDBCommand selectOperation,
-			Map<String, SciDBCommand> subQueryCommands, SelectClause selectClause) {
+	private SciDBPlanNode addSelectOperation(SciDB sciDB,
+			SciDBPlanNode selectOperation,
+			Map<String, SciDBPlanNode> subQueryPlans, SelectClause selectClause) {
 		String operationName = selectClause.getOperationType().getName();
 
 		switch (operationName) {
+		case "EXPLAIN":
+			// Only changes how the query is run
+			break;
 		case "AGGREGATE":
-			String aggregateFunction = selectClause.getStringValues().get(
-					"FUNCTION");
-			String alias = selectClause.getAlias();
-			if (aggregateFunction.equalsIgnoreCase("COUNT")) {
-				if (selectClause.getStringValues().containsKey("DIMENSION")) {
-					String dimension = selectClause.getStringValues().get(
-							"DIMENSION");
-					String[] dimensions = dimension.split("/");
-
-					if (dimensions.length == 4) {
-						dimension = dimensions[3];
-					}
-					selectOperation = sciDB.aggregate(selectOperation,
-							SciDBAggregateFactory.count(), dimension, alias);
-				} else if ((selectClause.getObjectValues() != null) && (selectClause.getObjectValues().containsKey(
-						"DIMENSION"))) {
-
-					String[] dimensions = (String[]) selectClause
-							.getObjectValues().get("DIMENSION");
-
-					String dimensionString = "";
-					for (Object dim : dimensions) {
-						dimensionString += dim + ",";
-					}
+			String[] pathComponents = selectClause.getParameter().getPui()
+					.split("/");
+			String arrayName = pathComponents.length > 2 ? pathComponents[2]
+					: null;
+			String attribute = pathComponents.length == 4 ? pathComponents[3]
+					: null;
+
+			// Several functions of the same attribute can be asked for at once
+			List<AggregateCall> calls = new ArrayList<AggregateCall>();
+			String[] functionNames = selectClause.getStringValues()
+					.get("FUNCTION").split(",");
+			for (String functionName : functionNames) {
+				SciDBAggregateFunction function = SciDBAggregateFunction
+						.fromName(functionName);
+				String alias = selectClause.getAlias();
+				if (alias != null && functionNames.length > 1) {
+					alias = alias + "_" + function.name().toLowerCase();
+				}
+				// count(attr) skips null cells, so it has to be asked for
+				String callAttribute = attribute;
+				if (function == SciDBAggregateFunction.COUNT
+						&& !"true".equalsIgnoreCase(selectClause
+								.getStringValues().get("COUNTATTRIBUTE"))) {
+					callAttribute = null;
+				}
+				calls.add(new AggregateCall(function, arrayName,
+						callAttribute, alias));
+			}
 
-					dimensionString = dimensionString.substring(0,
-							dimensionString.length() - 1);
-					selectOperation = sciDB.aggregate(selectOperation,
-							SciDBAggregateFactory.count(), dimensionString,
-							alias);
-				} else {
-					selectOperation = sciDB.aggregate(selectOperation,
-							SciDBAggregateFactory.count(), null, alias);
+			List<String> dimensions = new ArrayList<String>();
+			if (selectClause.getStringValues().containsKey("DIMENSION")) {
+				for (String dimension : selectClause.getStringValues()
+						.get("DIMENSION").split(",")) {
+					dimensions.add(getDimensionName(dimension));
+				}
+			} else if ((selectClause.getObjectValues() != null)
+					&& (selectClause.getObjectValues()
+							.containsKey("DIMENSION"))) {
+				for (Object dimension : (Object[]) selectClause
+						.getObjectValues().get("DIMENSION")) {
+					dimensions.add(getDimensionName(dimension.toString()));
 				}
 			}
 
+			// Aggregates over the same grouping are computed in one pass
+			if (selectOperation instanceof Aggregate
+					&& ((Aggregate) selectOperation).getDimensions().equals(
+							dimensions)) {
+				Aggregate aggregate = (Aggregate) selectOperation;
+				List<AggregateCall> mergedCalls = new ArrayList<AggregateCall>(
+						aggregate.getCalls());
+				mergedCalls.addAll(calls);
+				selectOperation = new Aggregate(aggregate.getChild(),
+						mergedCalls, dimensions);
+			} else {
+				selectOperation = new Aggregate(selectOperation, calls,
+						dimensions);
+			}
+			break;
 		}
 
 		return selectOperation;
 	}
 
-	private SciDBCommand addJoinOperation(SciDB sciDB,
-			SciDBCommand joinOperation, Map<String, SciDBCommand> subQueryCommands, JoinClause joinClause) {
+	private String getDimensionName(String dimension) {
+		String[] components = dimension.trim().split("/");
+		return components[components.length - 1];
+	}
+
+	private SciDBPlanNode addJoinOperation(SciDB sciDB,
+			SciDBPlanNode joinOperation, Map<String, SciDBPlanNode> subQueryPlans, JoinClause joinClause,
+			Map<Query, SciDBPlanNode> compiledQueries) {
 		String joinName = joinClause.getJoinType().getName();
 
 		switch (joinName) {
@@ -432,59 +1319,57 @@ public class SciDBResourceImplementation implements
 			String leftAlias = joinClause.getStringValues().get("LEFT_ALIAS");
 			if(joinClause.getStringValues().containsKey("DIMENSIONS")) {
 				String rightDimension = joinClause.getStringValues().get("DIMENSIONS");
-				SciDBCommand rightCommand = createQuery(sciDB, right);
+				SciDBPlanNode rightPlan = createPlan(sciDB, right, compiledQueries);
 				String[] components = joinClause.getField().getPui().split("/");
-				joinOperation = sciDB.crossJoin(new SciDBArray(components[2]),
-						rightCommand, components[2] + "." + components[3],
+				joinOperation = new CrossJoin(new Scan(components[2]),
+						rightPlan, components[2] + "." + components[3],
 						rightDimension);
 				
 			} else if(joinClause.getObjectValues().containsKey("DIMENSIONS")) {
 				String[] dimensions = (String[]) joinClause.getObjectValues().get("DIMENSIONS");
 				String[] components = joinClause.getField().getPui().split("/");
-				SciDBCommand rightCommand = createQuery(sciDB, right);
+				SciDBPlanNode rightPlan = createPlan(sciDB, right, compiledQueries);
 				
-				SciDBCommand leftCommand;
-				if(subQueryCommands.containsKey(components[2])) {
-					leftCommand = subQueryCommands.get(components[2]);
+				SciDBPlanNode leftPlan;
+				if(subQueryPlans.containsKey(components[2])) {
+					leftPlan = subQueryPlans.get(components[2]);
 				} else {
-					leftCommand = new SciDBArray(components[2]);
+					leftPlan = new Scan(components[2]);
 				}
-				joinOperation = sciDB.crossJoin(leftCommand, leftAlias, rightCommand, rightAlias, dimensions);
+				joinOperation = new CrossJoin(leftPlan, leftAlias, rightPlan, rightAlias, dimensions);
 				
 			}
 		}
 		return joinOperation;
 	}
 	
-	private SciDBCommand addSortOperation(SciDB sciDB,
-			SciDBCommand sortOperation,
-			Map<String, SciDBCommand> subQueryCommands, SortClause sortClause) {
+	private SciDBPlanNode addSortOperation(SciDB sciDB,
+			SciDBPlanNode sortOperation,
+			Map<String, SciDBPlanNode> subQueryPlans, SortClause sortClause) {
 		String sortName = sortClause.getOperationType().getName();
 		
 		switch (sortName) {
 		case "SORT":
 			String field = null;
+			String array = null;
 			String[] components = sortClause.getParameter().getPui().split("/");
 			
 			if(components.length == 3) {
 				field = components[2];
 			} else if (components.length == 4) {
-				if(subQueryCommands.containsKey(components[2])) {
-					sortOperation = subQueryCommands.get(components[2]);
+				if(subQueryPlans.containsKey(components[2])) {
+					sortOperation = subQueryPlans.get(components[2]);
 				} else {
-;					sortOperation = new SciDBArray(components[2]);
+					sortOperation = new Scan(components[2]);
 				}
+				array = components[2];
 				field = components[3];
 			}
 			
 			String direction = sortClause.getStringValues().get("DIRECTION");
 			
-			if(field == null && direction == null) {
-				sortOperation = sciDB.sort(sortOperation);
-			} else if (field != null && direction == null) {
-				sortOperation = sciDB.sort(sortOperation, field);
-			} else if(field != null && direction != null) {
-				sortOperation = sciDB.sort(sortOperation, field, direction);
+			if (field != null || direction == null) {
+				sortOperation = new Sort(sortOperation, array, field, direction);
 			}
 			break;
 		}
@@ -507,63 +1392,326 @@ public class SciDBResourceImplementation implements
 			return result;
 		}
 
-		HttpClient client = createClient(session);
-		SciDB sciDB = new SciDB();
-		sciDB.connect(client, this.resourceURL);
+		// A result whose session is no longer pooled, for example after a
+		// restart, is read from its session through a new one
+		String resourceActionId = result.getResourceActionId();
+		String cancelReason = cancelledResults.get(resourceActionId);
+		if (cancelReason != null) {
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(cancelReason);
+			return result;
+		}
+		PooledSession pooledSession = sessionPool.claim(resourceActionId);
+		if (pooledSession == null) {
+			pooledSession = sessionPool.acquire(session);
+		}
+		HttpClient client = pooledSession.getClient();
+		SciDB sciDB = pooledSession.getSciDB();
 		try {
-			BufferedReader in = new BufferedReader(
-					new InputStreamReader(sciDB.readLines(result
-							.getResourceActionId().split("\\|")[0])));
-			String line = null;
-
-			boolean firstLine = true;
-			FileResultSet rs = (FileResultSet) result.getData();
-			while ((line = in.readLine()) != null) {
-				if (firstLine) {
-					rs = createColumns(result, line);
-					rs.first();
-					firstLine = false;
-				} else {
-					rs.appendRow();
-					line = line.replaceAll("\\{", "").replaceAll("\\} ", ",");
-
-					CSVParser parser = CSVParser.parse(line,
-							CSVFormat.DEFAULT.withQuote('\''));
-
-					CSVRecord record = parser.getRecords().get(0);
+			String sessionId = resourceActionId.split("\\|")[0];
+			SciDBSchema schema = querySchemas.remove(resourceActionId);
+
+			boolean binary = binaryResults.remove(resourceActionId);
+			List<String> partitionIds = partitionedResults
+					.remove(resourceActionId);
+
+			List<InputStream> inputStreams;
+			if (partitionIds != null) {
+				inputStreams = downloadPartitions(session, pooledSession,
+						partitionIds, binary);
+			} else if (binary) {
+				inputStreams = Collections.singletonList(new SciDBShim(client,
+						this.resourceURL).readBytes(sessionId));
+			} else {
+				inputStreams = Collections.singletonList(sciDB
+						.readLines(sessionId));
+			}
 
-					for (int datai = 0; datai < rs.getColumns().length; datai++) {
-						rs.updateString(datai, record.get(datai));
-					}
-					if (rs.getRow() % (rs.getMaxPending() - 1) == 0) {
-						rs.merge();
-					}
-				}
+			FileResultSet rs;
+			if (binary) {
+				rs = readBinaryResults(result, inputStreams, schema);
+			} else {
+				rs = readDCSVResults(result, inputStreams, schema);
 			}
 
 			result.setData(rs);
 
 			result.setResultStatus(ResultStatus.COMPLETE);
-		} catch (NotConnectedException | IOException | ResultSetException
-				| PersistableException e) {
+		} catch (NotConnectedException | IOException e) {
+			// The shim session may be broken, so it is not reused
+			e.printStackTrace();
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(e.getMessage());
+			removeTempArrays(client, sciDB,
+					resultTempArrays.remove(result.getResourceActionId()));
+			sessionPool.discard(pooledSession);
+			return result;
+		} catch (ResultSetException | PersistableException
+				| NumberFormatException e) {
 			e.printStackTrace();
 			result.setResultStatus(ResultStatus.ERROR);
 			result.setMessage(e.getMessage());
 		}
-		sciDB.close();
+		removeTempArrays(client, sciDB,
+				resultTempArrays.remove(result.getResourceActionId()));
+		sessionPool.release(pooledSession);
 		return result;
 	}
 
-	private FileResultSet createColumns(Result result, String headerLine)
+	/**
+	 * Downloads the output of each range of a partitioned query concurrently
+	 * into temporary files, which are deleted when the returned streams are
+	 * closed. The sessions held for the ranges are returned to the pool.
+	 * 
+	 * @param session
+	 *            Session
+	 * @param querySession
+	 *            Session of the query, which the caller returns to the pool
+	 * @param partitionIds
+	 *            Session and query id of each range
+	 * @param binary
+	 *            The output is in the binary format
+	 * @return Output of each range, in range order
+	 * @throws IOException
+	 *             The output of a range could not be downloaded
+	 */
+	private List<InputStream> downloadPartitions(final SecureSession session,
+			final PooledSession querySession, List<String> partitionIds,
+			final boolean binary) throws IOException {
+		List<Future<Path>> downloads = new ArrayList<Future<Path>>();
+		for (int partitioni = 0; partitioni < partitionIds.size(); partitioni++) {
+			final String partitionId = partitionIds.get(partitioni);
+			final boolean ownSession = partitioni != 0;
+			downloads.add(partitionWorkers.submit(new Callable<Path>() {
+				@Override
+				public Path call() throws Exception {
+					String sessionId = partitionId.split("\\|")[0];
+					PooledSession partitionSession = querySession;
+					if (ownSession) {
+						partitionSession = sessionPool.claim(partitionId);
+						if (partitionSession == null) {
+							partitionSession = sessionPool.acquire(session);
+						}
+					}
+					Path spoolFile = Files.createTempFile("scidb-partition",
+							binary ? ".bin" : ".dcsv");
+					InputStream inputStream = null;
+					try {
+						if (binary) {
+							inputStream = new SciDBShim(partitionSession
+									.getClient(), resourceURL)
+									.readBytes(sessionId);
+						} else {
+							inputStream = partitionSession.getSciDB()
+									.readLines(sessionId);
+						}
+						Files.copy(inputStream, spoolFile,
+								StandardCopyOption.REPLACE_EXISTING);
+						return spoolFile;
+					} catch (Exception e) {
+						Files.deleteIfExists(spoolFile);
+						throw e;
+					} finally {
+						if (inputStream != null) {
+							inputStream.close();
+						}
+						if (ownSession) {
+							sessionPool.release(partitionSession);
+						}
+					}
+				}
+			}));
+		}
+
+		List<Path> spoolFiles = new ArrayList<Path>();
+		String failure = null;
+		for (Future<Path> download : downloads) {
+			try {
+				spoolFiles.add(download.get());
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				failure = "Interrupted while downloading the query partitions";
+			} catch (ExecutionException e) {
+				e.printStackTrace();
+				failure = e.getCause().getMessage();
+			}
+		}
+		if (failure != null) {
+			for (Path spoolFile : spoolFiles) {
+				Files.deleteIfExists(spoolFile);
+			}
+			throw new IOException(failure);
+		}
+
+		List<InputStream> inputStreams = new ArrayList<InputStream>();
+		for (Path spoolFile : spoolFiles) {
+			inputStreams.add(Files.newInputStream(spoolFile,
+					StandardOpenOption.DELETE_ON_CLOSE));
+		}
+		return inputStreams;
+	}
+
+	private FileResultSet readDCSVResults(Result result,
+			List<InputStream> inputStreams, SciDBSchema schema)
+			throws IOException, ResultSetException, PersistableException {
+		FileResultSet rs = (FileResultSet) result.getData();
+		PrimitiveDataType[] columnTypes = null;
+		int columnCount = 0;
+		SciDBResultWriter writer = null;
+
+		try {
+			// Every stream starts with the same header row
+			for (InputStream inputStream : inputStreams) {
+				DCSVTokenizer tokenizer = new DCSVTokenizer(
+						new InputStreamReader(inputStream,
+								StandardCharsets.UTF_8));
+				if (!tokenizer.nextRow()) {
+					continue;
+				}
+				if (columnTypes == null) {
+					List<String> columnNames = new ArrayList<String>();
+					for (int columni = 0; columni < tokenizer.getFieldCount(); columni++) {
+						columnNames.add(tokenizer.getString(columni));
+					}
+					columnTypes = getColumnTypes(schema, columnNames.size());
+					rs = createColumns(result, columnNames, columnTypes);
+					rs.first();
+					columnCount = rs.getColumns().length;
+					writer = createWriter(rs);
+				}
+
+				while (tokenizer.nextRow()) {
+					Object[] row = new Object[columnCount];
+					int fieldCount = Math.min(columnCount,
+							tokenizer.getFieldCount());
+					for (int datai = 0; datai < fieldCount; datai++) {
+						if (!tokenizer.isNull(datai)) {
+							row[datai] = parseField(datai, columnTypes[datai],
+									tokenizer);
+						}
+					}
+					writer.add(row);
+				}
+			}
+			if (writer != null) {
+				finishWriter(writer);
+				writer = null;
+			}
+		} finally {
+			if (writer != null) {
+				writer.abort();
+			}
+			closeStreams(inputStreams);
+		}
+		return rs;
+	}
+
+	private FileResultSet readBinaryResults(Result result,
+			List<InputStream> inputStreams, SciDBSchema schema)
+			throws IOException, ResultSetException, PersistableException {
+		SciDBResultWriter writer = null;
+		try {
+			List<String> columnNames = new ArrayList<String>(
+					schema.getDimensionNames());
+			columnNames.addAll(schema.getAttributeTypes().keySet());
+			FileResultSet rs = createColumns(result, columnNames,
+					getColumnTypes(schema, columnNames.size()));
+			rs.first();
+
+			writer = createWriter(rs);
+			for (InputStream inputStream : inputStreams) {
+				SciDBBinaryReader reader = new SciDBBinaryReader(inputStream,
+						schema);
+				while (reader.hasNext()) {
+					writer.add(reader.readCell());
+				}
+			}
+			finishWriter(writer);
+			writer = null;
+			return rs;
+		} finally {
+			if (writer != null) {
+				writer.abort();
+			}
+			closeStreams(inputStreams);
+		}
+	}
+
+	private SciDBResultWriter createWriter(FileResultSet rs) {
+		return new SciDBResultWriter(rs, resultWriters, ingestionBatchSize,
+				ingestionQueueSize, ingestionMetrics);
+	}
+
+	private void finishWriter(SciDBResultWriter writer) throws IOException,
+			ResultSetException, PersistableException {
+		long rows = writer.finish();
+		if (logger.isLoggable(Level.FINE)) {
+			logger.fine("Wrote " + rows + " rows, ingestion "
+					+ ingestionMetrics.toMap());
+		}
+	}
+
+	/**
+	 * Returns the counters of the result set writers: rows and batches
+	 * written, the batches currently queued and the most ever queued, and the
+	 * total milliseconds readers waited for a full queue and writers waited
+	 * for a batch
+	 * 
+	 * @return Counters by name
+	 */
+	public Map<String, Long> getIngestionMetrics() {
+		return ingestionMetrics.toMap();
+	}
+
+	private void closeStreams(List<InputStream> inputStreams) {
+		for (InputStream inputStream : inputStreams) {
+			try {
+				inputStream.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private PrimitiveDataType[] getColumnTypes(SciDBSchema schema,
+			int columnCount) {
+		PrimitiveDataType[] columnTypes = new PrimitiveDataType[columnCount];
+		Arrays.fill(columnTypes, PrimitiveDataType.STRING);
+
+		if (schema != null) {
+			List<PrimitiveDataType> schemaTypes = schema.getColumnTypes();
+			if (schemaTypes.size() == columnCount) {
+				schemaTypes.toArray(columnTypes);
+			}
+		}
+		return columnTypes;
+	}
+
+	private Object parseField(int column, PrimitiveDataType dataType,
+			DCSVTokenizer tokenizer) {
+		switch (dataType) {
+		case INTEGER:
+			return (int) tokenizer.getLong(column);
+		case LONG:
+			return tokenizer.getLong(column);
+		case DOUBLE:
+			return tokenizer.getDouble(column);
+		case BOOLEAN:
+			return tokenizer.getBoolean(column);
+		default:
+			return tokenizer.getString(column);
+		}
+	}
+
+	private FileResultSet createColumns(Result result,
+			List<String> columnNames, PrimitiveDataType[] columnTypes)
 			throws ResultSetException {
 		FileResultSet rs = (FileResultSet) result.getData();
 
-		headerLine = headerLine.replaceAll("\\{", "").replaceAll("\\} ", ",");
-		String[] columnNames = headerLine.split(",");
-		for (String columnName : columnNames) {
+		for (int columni = 0; columni < columnNames.size(); columni++) {
 			Column newColumn = new Column();
-			newColumn.setName(columnName.trim());
-			newColumn.setDataType(PrimitiveDataType.STRING);
+			newColumn.setName(columnNames.get(columni).trim());
+			newColumn.setDataType(columnTypes[columni]);
 			rs.appendColumn(newColumn);
 		}
 		return rs;
@@ -581,26 +1729,72 @@ public class SciDBResourceImplementation implements
 	@Override
 	public Result runProcess(SecureSession session, IRCTProcess process,
 			Result result) throws ResourceInterfaceException {
-		HttpClient client = createClient(session);
-		SciDB sciDB = new SciDB();
-		sciDB.connect(client, this.resourceURL);
+		PooledSession pooledSession = sessionPool.acquire(session);
+		SciDB sciDB = pooledSession.getSciDB();
+		SciDBShim shim = new SciDBShim(pooledSession.getClient(),
+				this.resourceURL);
+		String arrayName = uploadArrays.createArrayName();
+		List<String> tempArrays = new ArrayList<String>();
 
-		sciDB.close();
+		try {
+			ResultSet resultSet = (ResultSet) process.getObjectValues().get(
+					"RESULTSET");
+			SciDBUploadEntity upload = new SciDBUploadEntity(resultSet,
+					"binary".equalsIgnoreCase(process.getStringValues().get(
+							"FORMAT")));
+
+			String path = shim.upload(sciDB.getSessionId(), upload);
+			tempArrays.add(arrayName);
+			shim.execute(sciDB.getSessionId(), "store(input("
+					+ upload.getSchema() + ", " + SciDBAFLCommand.quote(path)
+					+ ", -2, " + SciDBAFLCommand.quote(upload.getFormat())
+					+ "), " + arrayName + ")");
+			arrayCache.invalidate();
+
+			FileResultSet rs = createColumns(result,
+					Arrays.asList("ARRAY", "ROWS"), new PrimitiveDataType[] {
+							PrimitiveDataType.STRING, PrimitiveDataType.LONG });
+			rs.appendRow();
+			rs.updateString(0, arrayName);
+			rs.updateLong(1, upload.getRowCount());
+			result.setData(rs);
+
+			// The array outlives the session, and is removed once queries
+			// stop reading it
+			uploadArrays.add(arrayName);
+			removeTempArrays(pooledSession.getClient(), sciDB,
+					uploadArrays.drainExpired());
+			result.setResourceActionId(arrayName);
+			sessionPool.release(pooledSession);
+			result.setResultStatus(ResultStatus.COMPLETE);
+		} catch (IOException | ResultSetException | PersistableException
+				| ClassCastException e) {
+			e.printStackTrace();
+			result.setResultStatus(ResultStatus.ERROR);
+			result.setMessage(e.getMessage());
+			removeTempArrays(pooledSession.getClient(), sciDB, tempArrays);
+			sessionPool.discard(pooledSession);
+		}
 		return result;
 	}
 
-	private SciDBCommand createSciDBFilterOperation(WhereClause whereClause) {
+	private SciDBCommand createSciDBFilterOperation(SciDB sciDB,
+			WhereClause whereClause) {
 		String value = whereClause.getStringValues().get("VALUE");
-
-		if (!isNumeric(value)) {
-			value = "'" + value + "'";
-		}
-
 		String operator = whereClause.getStringValues().get("OPERATOR");
 
 		String[] pathComponents = whereClause.getField().getPui().split("/");
 		String field = pathComponents[3];
 
+		// String attributes are always quoted, even if the value is a number
+		SciDBSchema schema = getArraySchema(sciDB, pathComponents[2]);
+		String fieldType = schema == null ? null : schema.getAttributeTypes()
+				.get(field);
+		if ("string".equals(fieldType) || "char".equals(fieldType)
+				|| (fieldType == null && !isNumeric(value))) {
+			value = "'" + value + "'";
+		}
+
 		SciDBFunction returnFunction = null;
 		switch (operator) {
 		case "LT":
@@ -626,6 +1820,29 @@ public class SciDBResourceImplementation implements
 		return returnFunction;
 	}
 
+	/**
+	 * Returns the schema of an array from the array cache, or null if the
+	 * array is not known
+	 * 
+	 * @param sciDB
+	 *            SciDB connection used if the listing needs to be loaded
+	 * @param arrayName
+	 *            Array name
+	 * @return Schema
+	 */
+	private SciDBSchema getArraySchema(SciDB sciDB, String arrayName) {
+		try {
+			CachedArray array = arrayCache.getArrays(sciDB).get(arrayName);
+			if (array != null) {
+				return array.getSchema();
+			}
+		} catch (NotConnectedException | IOException
+				| IllegalArgumentException e) {
+			e.printStackTrace();
+		}
+		return null;
+	}
+
 	private boolean isNumeric(String s) {
 		return s.matches("[-+]?\\d*\\.?\\d+");
 	}
@@ -777,6 +1994,115 @@ public class SciDBResourceImplementation implements
 	public List<Entity> find(Entity path,
 			FindInformationInterface findInformation, SecureSession session)
 			throws ResourceInterfaceException {
-		return new ArrayList<Entity>();
+		List<Entity> entities = new ArrayList<Entity>();
+		if (!(findInformation instanceof FindByPath)) {
+			return entities;
+		}
+		String term = findInformation.getValues().get("term");
+		String strategy = findInformation.getValues().get("strategy");
+
+		String[] pathComponents = path == null ? new String[0] : path.getPui()
+				.split("/");
+		String arrayName = pathComponents.length > 2 ? pathComponents[2]
+				: null;
+
+		refreshSchemaIndex(session);
+		String resourcePath = "/" + this.resourceName;
+		for (SciDBSchemaIndex.Entry entry : schemaIndex.find(term, strategy,
+				arrayName)) {
+			String arrayPath = resourcePath + "/" + entry.getArray().getName();
+			SciDBArray array = entry.getArray().getArray();
+			switch (entry.getDataType()) {
+			case ARRAY:
+				entities.add(createArrayEntity(resourcePath, entry.getName()));
+				break;
+			case ATTRIBUTE:
+				if (array.getAttributes().containsKey(entry.getName())) {
+					entities.add(createAttributeEntity(arrayPath,
+							entry.getName(),
+							array.getAttributes().get(entry.getName())));
+				}
+				break;
+			default:
+				if (array.getDimensions().containsKey(entry.getName())) {
+					entities.add(createDimensionEntity(arrayPath,
+							entry.getName(),
+							array.getDimensions().get(entry.getName())));
+				}
+			}
+		}
+		return entities;
+	}
+
+	/**
+	 * Brings the schema index up to date with the array cache. The first
+	 * search waits for the arrays to be listed; later searches answer from
+	 * the index and, once the listing has expired, have it crawled again in
+	 * the background with the session of the user searching.
+	 * 
+	 * @param session
+	 *            Session
+	 * @throws ResourceInterfaceException
+	 *             The arrays could not be listed for the first search
+	 */
+	private void refreshSchemaIndex(final SecureSession session)
+			throws ResourceInterfaceException {
+		Map<String, CachedArray> arrays = arrayCache.getArrays();
+		if (arrays != null) {
+			schemaIndex.refresh(arrays);
+			return;
+		}
+
+		if (!schemaIndex.isLoaded()) {
+			crawlSchemas(session);
+			return;
+		}
+
+		if (schemaCrawling.compareAndSet(false, true)) {
+			schemaCrawler.execute(new Runnable() {
+				@Override
+				public void run() {
+					try {
+						crawlSchemas(session);
+					} catch (ResourceInterfaceException | RuntimeException e) {
+						e.printStackTrace();
+					} finally {
+						schemaCrawling.set(false);
+					}
+				}
+			});
+		}
+	}
+
+	private void crawlSchemas(SecureSession session)
+			throws ResourceInterfaceException {
+		PooledSession pooledSession = sessionPool.acquire(session);
+		try {
+			schemaIndex.refresh(arrayCache.load(pooledSession.getSciDB()));
+		} catch (NotConnectedException | IOException e) {
+			e.printStackTrace();
+			sessionPool.discard(pooledSession);
+			pooledSession = null;
+		} finally {
+			sessionPool.release(pooledSession);
+		}
+	}
+
+	/**
+	 * The sessions of a query that is running, so it can be cancelled
+	 */
+	private static class RunningQuery {
+		private final long started = System.currentTimeMillis();
+		private final List<PooledSession> sessions = Collections
+				.synchronizedList(new ArrayList<PooledSession>());
+		private volatile String cancelReason;
+
+		private RunningQuery(PooledSession querySession) {
+			sessions.add(querySession);
+		}
+
+		private void add(PooledSession partitionSession) {
+			sessions.add(partitionSession);
+		}
 	}
 }
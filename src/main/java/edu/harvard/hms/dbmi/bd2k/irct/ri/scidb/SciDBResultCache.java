@@ -0,0 +1,211 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.UUID;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+
+/**
+ * Maps queries onto SciDB arrays holding their stored output, so a query
+ * that is run again is answered by scanning the array instead of computing
+ * it again. A query is identified by the user running it, its AFL with
+ * insignificant whitespace removed and the version ids of the arrays it
+ * reads, so a user never reads an output computed for another user and a
+ * new version of an input array never hits an older output.
+ * <p>
+ * Arrays that expire or are evicted to keep the cache under its size are
+ * queued, and must be removed from SciDB by the caller through
+ * {@link #drainRemoved()}.
+ *
+ */
+public class SciDBResultCache {
+	private static final String ARRAY_PREFIX = "IRCT_RESULT_";
+
+	private final long timeToLive;
+	private final LinkedHashMap<String, CachedResult> results;
+	private final List<String> removedArrays = new ArrayList<String>();
+
+	/**
+	 * Creates a result cache
+	 *
+	 * @param maxEntries
+	 *            Maximum number of stored outputs
+	 * @param timeToLive
+	 *            Time to live of a stored output in milliseconds
+	 */
+	public SciDBResultCache(final int maxEntries, long timeToLive) {
+		this.timeToLive = timeToLive;
+		this.results = new LinkedHashMap<String, CachedResult>(16, 0.75f,
+				true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<String, CachedResult> eldest) {
+				if (size() > maxEntries) {
+					removedArrays.add(eldest.getValue().arrayName);
+					return true;
+				}
+				return false;
+			}
+		};
+	}
+
+	/**
+	 * Returns the key of a query, or null if the query reads an array whose
+	 * version is not known and so cannot be cached
+	 *
+	 * @param user
+	 *            User running the query
+	 * @param afl
+	 *            AFL of the query
+	 * @param inputArrays
+	 *            Names of the arrays read by the query
+	 * @param arrays
+	 *            Cached arrays, may be null
+	 * @return Key
+	 */
+	public static String createKey(String user, String afl,
+			Set<String> inputArrays, Map<String, CachedArray> arrays) {
+		if (arrays == null) {
+			return null;
+		}
+		StringBuilder key = new StringBuilder(user).append('|').append(
+				normalize(afl));
+		for (String arrayName : new TreeSet<String>(inputArrays)) {
+			CachedArray array = arrays.get(arrayName);
+			if (array == null) {
+				return null;
+			}
+			key.append('|').append(arrayName).append('@')
+					.append(array.getVersion());
+		}
+		return key.toString();
+	}
+
+	/**
+	 * Returns the array holding the output of the query, or null if it is not
+	 * cached or has expired
+	 *
+	 * @param key
+	 *            Query key
+	 * @return Array name
+	 */
+	public synchronized String get(String key) {
+		CachedResult result = results.get(key);
+		if (result == null) {
+			return null;
+		}
+		if (result.expires < System.currentTimeMillis()) {
+			results.remove(key);
+			removedArrays.add(result.arrayName);
+			return null;
+		}
+		return result.arrayName;
+	}
+
+	/**
+	 * Returns a new array name for the output of a query
+	 *
+	 * @return Array name
+	 */
+	public String createArrayName() {
+		return ARRAY_PREFIX + UUID.randomUUID().toString().replace('-', '_');
+	}
+
+	/**
+	 * Records the array the output of a query has been stored in
+	 *
+	 * @param key
+	 *            Query key
+	 * @param arrayName
+	 *            Array name
+	 */
+	public synchronized void put(String key, String arrayName) {
+		CachedResult previous = results.put(key, new CachedResult(arrayName,
+				System.currentTimeMillis() + timeToLive));
+		if (previous != null) {
+			removedArrays.add(previous.arrayName);
+		}
+	}
+
+	/**
+	 * Returns the arrays that are no longer cached, together with the arrays
+	 * of expired outputs, and forgets them
+	 *
+	 * @return Array names
+	 */
+	public synchronized List<String> drainRemoved() {
+		long now = System.currentTimeMillis();
+		Iterator<CachedResult> iterator = results.values().iterator();
+		while (iterator.hasNext()) {
+			CachedResult result = iterator.next();
+			if (result.expires < now) {
+				removedArrays.add(result.arrayName);
+				iterator.remove();
+			}
+		}
+
+		List<String> removed = new ArrayList<String>(removedArrays);
+		removedArrays.clear();
+		return removed;
+	}
+
+	/**
+	 * Collapses whitespace outside of string literals
+	 *
+	 * @param afl
+	 *            AFL
+	 * @return Normalized AFL
+	 */
+	static String normalize(String afl) {
+		StringBuilder normalized = new StringBuilder(afl.length());
+		boolean quoted = false;
+		boolean space = false;
+		for (int chari = 0; chari < afl.length(); chari++) {
+			char character = afl.charAt(chari);
+			if (quoted) {
+				normalized.append(character);
+				if (character == '\\' && chari + 1 < afl.length()) {
+					normalized.append(afl.charAt(++chari));
+				} else if (character == '\'') {
+					quoted = false;
+				}
+			} else if (Character.isWhitespace(character)) {
+				space = true;
+			} else {
+				// Whitespace is only kept between two name characters
+				if (space
+						&& normalized.length() > 0
+						&& Character.isJavaIdentifierPart(normalized
+								.charAt(normalized.length() - 1))
+						&& Character.isJavaIdentifierPart(character)) {
+					normalized.append(' ');
+				}
+				space = false;
+				normalized.append(character);
+				quoted = character == '\'';
+			}
+		}
+		return normalized.toString();
+	}
+
+	private static class CachedResult {
+		private final String arrayName;
+		private final long expires;
+
+		private CachedResult(String arrayName, long expires) {
+			this.arrayName = arrayName;
+			this.expires = expires;
+		}
+	}
+}
@@ -0,0 +1,266 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.PersistableException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.FileResultSet;
+
+/**
+ * Writes rows into a file result set on a separate thread, so that the
+ * thread reading the query output keeps parsing while earlier rows are
+ * merged to disk. Parsed rows are collected into batches which are handed to
+ * the writer through a bounded queue; the reader only waits when the queue
+ * is full.
+ * <p>
+ * A row is an array of column values, each an Integer, Long, Double, Boolean
+ * or String, or null for a missing value. The result set must not be used by
+ * the caller until {@link #finish()} returns.
+ *
+ */
+public class SciDBResultWriter {
+	private static final List<Object[]> END = new ArrayList<Object[]>(0);
+
+	private final FileResultSet rs;
+	private final int batchSize;
+	private final BlockingQueue<List<Object[]>> batches;
+	private final Metrics metrics;
+	private final Future<Long> writer;
+	private List<Object[]> batch;
+
+	/**
+	 * Creates a writer and starts writing
+	 *
+	 * @param rs
+	 *            Result set whose columns have been created
+	 * @param executor
+	 *            Executor the writer runs on
+	 * @param batchSize
+	 *            Number of rows in a batch
+	 * @param queueSize
+	 *            Number of batches waiting to be written before the reader
+	 *            waits
+	 * @param metrics
+	 *            Metrics to add to
+	 */
+	public SciDBResultWriter(FileResultSet rs, ExecutorService executor,
+			int batchSize, int queueSize, Metrics metrics) {
+		this.rs = rs;
+		this.batchSize = Math.max(1, batchSize);
+		this.batches = new ArrayBlockingQueue<List<Object[]>>(Math.max(1,
+				queueSize));
+		this.metrics = metrics;
+		this.batch = new ArrayList<Object[]>(this.batchSize);
+		this.writer = executor.submit(new Callable<Long>() {
+			@Override
+			public Long call() throws Exception {
+				return write();
+			}
+		});
+	}
+
+	/**
+	 * Adds a row. The row is queued once its batch is full.
+	 *
+	 * @param row
+	 *            Column values
+	 * @throws IOException
+	 *             The writer failed or the reader was interrupted
+	 */
+	public void add(Object[] row) throws IOException {
+		batch.add(row);
+		if (batch.size() >= batchSize) {
+			enqueue(batch);
+			batch = new ArrayList<Object[]>(batchSize);
+		}
+	}
+
+	/**
+	 * Queues the remaining rows and waits until every row has been written
+	 *
+	 * @return Number of rows in the result set
+	 * @throws IOException
+	 *             The writer failed or the reader was interrupted
+	 * @throws ResultSetException
+	 *             A row could not be written
+	 * @throws PersistableException
+	 *             A row could not be merged
+	 */
+	public long finish() throws IOException, ResultSetException,
+			PersistableException {
+		if (!batch.isEmpty()) {
+			enqueue(batch);
+			batch = new ArrayList<Object[]>(0);
+		}
+		enqueue(END);
+		return awaitWriter();
+	}
+
+	/**
+	 * Stops the writer and drops the rows that have not been written
+	 */
+	public void abort() {
+		writer.cancel(true);
+		metrics.queueDepth.addAndGet(-batches.size());
+		batches.clear();
+	}
+
+	private long awaitWriter() throws IOException, ResultSetException,
+			PersistableException {
+		try {
+			return writer.get();
+		} catch (InterruptedException e) {
+			abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while writing the result set");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof ResultSetException) {
+				throw (ResultSetException) cause;
+			} else if (cause instanceof PersistableException) {
+				throw (PersistableException) cause;
+			} else if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause.getMessage(), cause);
+		}
+	}
+
+	private void enqueue(List<Object[]> rows) throws IOException {
+		boolean counted = rows != END;
+		if (counted) {
+			// Counted before it is offered so the writer never takes it first
+			long depth = metrics.queueDepth.incrementAndGet();
+			long maxDepth = metrics.maxQueueDepth.get();
+			while (depth > maxDepth
+					&& !metrics.maxQueueDepth.compareAndSet(maxDepth, depth)) {
+				maxDepth = metrics.maxQueueDepth.get();
+			}
+		}
+
+		long start = System.nanoTime();
+		boolean queued = false;
+		try {
+			while (!batches.offer(rows, 100, TimeUnit.MILLISECONDS)) {
+				// The queue is never drained again once the writer has stopped
+				if (writer.isDone()) {
+					finishFailed();
+				}
+			}
+			queued = true;
+		} catch (InterruptedException e) {
+			abort();
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException(
+					"Interrupted while writing the result set");
+		} finally {
+			metrics.readerStallTime.addAndGet(TimeUnit.NANOSECONDS
+					.toMillis(System.nanoTime() - start));
+			if (counted && !queued) {
+				metrics.queueDepth.decrementAndGet();
+			}
+		}
+		if (counted) {
+			metrics.batches.incrementAndGet();
+		}
+	}
+
+	private void finishFailed() throws IOException {
+		try {
+			awaitWriter();
+		} catch (ResultSetException | PersistableException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		throw new IOException("The result set writer stopped");
+	}
+
+	private long write() throws InterruptedException, ResultSetException,
+			PersistableException {
+		while (true) {
+			long start = System.nanoTime();
+			List<Object[]> rows = batches.take();
+			metrics.writerIdleTime.addAndGet(TimeUnit.NANOSECONDS
+					.toMillis(System.nanoTime() - start));
+			if (rows == END) {
+				return rs.getRow();
+			}
+			metrics.queueDepth.decrementAndGet();
+
+			for (Object[] row : rows) {
+				rs.appendRow();
+				for (int column = 0; column < row.length; column++) {
+					updateValue(column, row[column]);
+				}
+				if (rs.getRow() % (rs.getMaxPending() - 1) == 0) {
+					rs.merge();
+				}
+			}
+			metrics.rows.addAndGet(rows.size());
+		}
+	}
+
+	private void updateValue(int column, Object value)
+			throws ResultSetException {
+		if (value == null) {
+			return;
+		} else if (value instanceof Integer) {
+			rs.updateInt(column, (Integer) value);
+		} else if (value instanceof Long) {
+			rs.updateLong(column, (Long) value);
+		} else if (value instanceof Double) {
+			rs.updateDouble(column, (Double) value);
+		} else if (value instanceof Boolean) {
+			rs.updateBoolean(column, (Boolean) value);
+		} else {
+			rs.updateString(column, value.toString());
+		}
+	}
+
+	/**
+	 * Counters shared by the writers of a resource
+	 */
+	public static class Metrics {
+		private final AtomicLong rows = new AtomicLong();
+		private final AtomicLong batches = new AtomicLong();
+		private final AtomicLong queueDepth = new AtomicLong();
+		private final AtomicLong maxQueueDepth = new AtomicLong();
+		private final AtomicLong readerStallTime = new AtomicLong();
+		private final AtomicLong writerIdleTime = new AtomicLong();
+
+		/**
+		 * Returns the counters by name. The queue depth is the number of
+		 * batches currently waiting in all queues, and the stall and idle times
+		 * are the total time in milliseconds readers waited for room in a queue
+		 * and writers waited for a batch.
+		 *
+		 * @return Counters
+		 */
+		public Map<String, Long> toMap() {
+			Map<String, Long> counters = new LinkedHashMap<String, Long>();
+			counters.put("rows", rows.get());
+			counters.put("batches", batches.get());
+			counters.put("queueDepth", queueDepth.get());
+			counters.put("maxQueueDepth", maxQueueDepth.get());
+			counters.put("readerStallTime", readerStallTime.get());
+			counters.put("writerIdleTime", writerIdleTime.get());
+			return counters;
+		}
+	}
+}
@@ -0,0 +1,263 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+
+/**
+ * The attribute types and dimensions of a SciDB array or query output
+ * as returned by show(), for example
+ * <code>name&lt;a:int64,b:string NULL&gt; [i=0:*,1000,0,j=0:9,10,0]</code>.
+ * The SciDB types are mapped onto the primitive types used by the result
+ * set so values can be stored without going through a string.
+ *
+ */
+public class SciDBSchema {
+	private final String name;
+	private final Map<String, String> attributeTypes = new LinkedHashMap<String, String>();
+	private final Map<String, Boolean> attributeNullable = new LinkedHashMap<String, Boolean>();
+	private final List<String> dimensionNames = new ArrayList<String>();
+	private final List<Dimension> dimensions = new ArrayList<Dimension>();
+
+	private SciDBSchema(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Parses a schema string. Surrounding quotes from a csv response are
+	 * ignored.
+	 *
+	 * @param schemaString
+	 *            Schema string
+	 * @return Schema
+	 */
+	public static SciDBSchema parse(String schemaString) {
+		String schema = schemaString.trim();
+		if (schema.startsWith("'") && schema.endsWith("'")
+				&& schema.length() > 1) {
+			schema = schema.substring(1, schema.length() - 1);
+		}
+
+		int attributeStart = schema.indexOf('<');
+		int attributeEnd = schema.indexOf('>', attributeStart);
+		if (attributeStart == -1 || attributeEnd == -1) {
+			throw new IllegalArgumentException("Invalid SciDB schema "
+					+ schemaString);
+		}
+
+		SciDBSchema sciDBSchema = new SciDBSchema(schema.substring(0,
+				attributeStart).trim());
+
+		for (String attribute : schema.substring(attributeStart + 1,
+				attributeEnd).split(",")) {
+			int typeStart = attribute.indexOf(':');
+			if (typeStart == -1) {
+				continue;
+			}
+			String attributeName = attribute.substring(0, typeStart).trim();
+			String[] typeTokens = attribute.substring(typeStart + 1).trim()
+					.split("\\s+");
+			sciDBSchema.attributeTypes.put(attributeName, typeTokens[0]);
+
+			boolean nullable = false;
+			for (int tokeni = 1; tokeni < typeTokens.length; tokeni++) {
+				if (typeTokens[tokeni].equalsIgnoreCase("NULL")) {
+					nullable = !typeTokens[tokeni - 1].equalsIgnoreCase("NOT");
+				}
+			}
+			sciDBSchema.attributeNullable.put(attributeName, nullable);
+		}
+
+		int dimensionStart = schema.indexOf('[', attributeEnd);
+		int dimensionEnd = schema.lastIndexOf(']');
+		if (dimensionStart != -1 && dimensionEnd > dimensionStart) {
+			String dimensions = schema.substring(dimensionStart + 1,
+					dimensionEnd);
+			if (dimensions.indexOf(';') != -1) {
+				// name=low:high:overlap:chunk;...
+				for (String token : dimensions.split(";")) {
+					sciDBSchema.addDimension(token.trim().split("[=:]"), 4);
+				}
+			} else {
+				// name=low:high,chunk,overlap,...
+				String[] tokens = dimensions.split(",");
+				for (int tokeni = 0; tokeni < tokens.length; tokeni++) {
+					String[] parts = tokens[tokeni].trim().split("[=:]");
+					if (parts.length == 3 && tokeni + 1 < tokens.length
+							&& !isDimensionName(tokens[tokeni + 1])) {
+						String[] withChunk = Arrays.copyOf(parts, 5);
+						withChunk[4] = tokens[++tokeni].trim();
+						parts = withChunk;
+					}
+					sciDBSchema.addDimension(parts, 4);
+				}
+			}
+		}
+
+		return sciDBSchema;
+	}
+
+	private static boolean isDimensionName(String token) {
+		String name = token.trim();
+		return !name.isEmpty()
+				&& Character.isJavaIdentifierStart(name.charAt(0));
+	}
+
+	private void addDimension(String[] parts, int chunkIndex) {
+		String dimensionName = parts[0].trim();
+		if (!isDimensionName(dimensionName)) {
+			return;
+		}
+		dimensionNames.add(dimensionName);
+		dimensions.add(new Dimension(dimensionName, parseBound(parts, 1),
+				parseBound(parts, 2), parseBound(parts, chunkIndex)));
+	}
+
+	private static Long parseBound(String[] parts, int index) {
+		if (index >= parts.length) {
+			return null;
+		}
+		try {
+			return Long.valueOf(parts[index].trim());
+		} catch (NumberFormatException e) {
+			// * and ? stand for unbounded and automatic values
+			return null;
+		}
+	}
+
+	/**
+	 * Maps a SciDB type onto the primitive type used to store it
+	 *
+	 * @param sciDBType
+	 *            SciDB type name
+	 * @return Primitive data type
+	 */
+	public static PrimitiveDataType toPrimitiveDataType(String sciDBType) {
+		switch (sciDBType) {
+		case "int8":
+		case "int16":
+		case "int32":
+		case "uint8":
+		case "uint16":
+			return PrimitiveDataType.INTEGER;
+		case "int64":
+		case "uint32":
+		case "uint64":
+			return PrimitiveDataType.LONG;
+		case "float":
+		case "double":
+			return PrimitiveDataType.DOUBLE;
+		case "bool":
+			return PrimitiveDataType.BOOLEAN;
+		default:
+			return PrimitiveDataType.STRING;
+		}
+	}
+
+	/**
+	 * Returns the types of the columns of a dcsv export of this schema, the
+	 * dimensions followed by the attributes
+	 *
+	 * @return Column types
+	 */
+	public List<PrimitiveDataType> getColumnTypes() {
+		List<PrimitiveDataType> columnTypes = new ArrayList<PrimitiveDataType>();
+		for (int dimensioni = 0; dimensioni < dimensionNames.size(); dimensioni++) {
+			columnTypes.add(PrimitiveDataType.LONG);
+		}
+		for (String attributeType : attributeTypes.values()) {
+			columnTypes.add(toPrimitiveDataType(attributeType));
+		}
+		return columnTypes;
+	}
+
+	/**
+	 * Returns the name of the array, or an empty string for a query output
+	 *
+	 * @return Name
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Returns the attribute names mapped to their SciDB types, in schema order
+	 *
+	 * @return Attribute types
+	 */
+	public Map<String, String> getAttributeTypes() {
+		return attributeTypes;
+	}
+
+	/**
+	 * Returns true if the attribute can hold null values
+	 *
+	 * @param attributeName
+	 *            Attribute name
+	 * @return Is nullable
+	 */
+	public boolean isNullable(String attributeName) {
+		Boolean nullable = attributeNullable.get(attributeName);
+		return nullable != null && nullable;
+	}
+
+	/**
+	 * Returns the dimension names in schema order
+	 *
+	 * @return Dimension names
+	 */
+	public List<String> getDimensionNames() {
+		return dimensionNames;
+	}
+
+	/**
+	 * Returns the dimensions in schema order
+	 *
+	 * @return Dimensions
+	 */
+	public List<Dimension> getDimensions() {
+		return dimensions;
+	}
+
+	/**
+	 * The coordinate range and chunk length of a dimension. Values that are
+	 * unbounded or left to SciDB are null.
+	 */
+	public static class Dimension {
+		private final String name;
+		private final Long lowValue;
+		private final Long highValue;
+		private final Long chunkLength;
+
+		private Dimension(String name, Long lowValue, Long highValue,
+				Long chunkLength) {
+			this.name = name;
+			this.lowValue = lowValue;
+			this.highValue = highValue;
+			this.chunkLength = chunkLength;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public Long getLowValue() {
+			return lowValue;
+		}
+
+		public Long getHighValue() {
+			return highValue;
+		}
+
+		public Long getChunkLength() {
+			return chunkLength;
+		}
+	}
+}
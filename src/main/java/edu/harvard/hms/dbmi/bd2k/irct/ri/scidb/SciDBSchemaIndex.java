@@ -0,0 +1,220 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.logging.Logger;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+
+/**
+ * An in memory index of the names of the arrays of a SciDB instance and of
+ * their attributes and dimensions, so they can be searched without a call to
+ * SciDB. The index is built from array listings of the array cache. When a
+ * newer listing is indexed only the arrays whose version id changed have
+ * their schema read again; the entries of the other arrays are reused.
+ * <p>
+ * Names are matched without regard to case. The index is replaced as a whole
+ * on refresh, so searches never wait for a refresh. An array whose schema can
+ * not be parsed is indexed by its name only.
+ *
+ */
+public class SciDBSchemaIndex {
+	private static final Logger logger = Logger
+			.getLogger(SciDBSchemaIndex.class.getName());
+
+	private volatile Snapshot snapshot = new Snapshot(null,
+			new HashMap<String, ArrayEntries>());
+
+	/**
+	 * Returns true once a listing has been indexed
+	 *
+	 * @return Is loaded
+	 */
+	public boolean isLoaded() {
+		return snapshot.arrays != null;
+	}
+
+	/**
+	 * Returns the time the index was last refreshed in milliseconds
+	 *
+	 * @return Refresh time
+	 */
+	public long getRefreshed() {
+		return snapshot.refreshed;
+	}
+
+	/**
+	 * Indexes an array listing. Nothing is done if the listing is the one
+	 * that is indexed already.
+	 *
+	 * @param arrays
+	 *            Cached arrays by name
+	 */
+	public synchronized void refresh(Map<String, CachedArray> arrays) {
+		Snapshot current = snapshot;
+		if (arrays == null || arrays == current.arrays) {
+			return;
+		}
+
+		Map<String, ArrayEntries> arrayEntries = new HashMap<String, ArrayEntries>();
+		for (CachedArray array : arrays.values()) {
+			ArrayEntries previous = current.arrayEntries.get(array.getName());
+			if (previous != null
+					&& previous.version.equals(array.getVersion())) {
+				arrayEntries.put(array.getName(), previous);
+			} else {
+				arrayEntries.put(array.getName(), new ArrayEntries(array));
+			}
+		}
+		snapshot = new Snapshot(arrays, arrayEntries);
+	}
+
+	/**
+	 * Returns the arrays, attributes and dimensions whose name matches a term
+	 *
+	 * @param term
+	 *            Search term
+	 * @param strategy
+	 *            exact, left (name starts with the term), right (name ends
+	 *            with the term) or contains, the default
+	 * @param arrayName
+	 *            Array to search within, or null to search every array
+	 * @return Matching entries
+	 */
+	public List<Entry> find(String term, String strategy, String arrayName) {
+		Snapshot current = snapshot;
+		List<Entry> matches = new ArrayList<Entry>();
+		if (term == null) {
+			return matches;
+		}
+		String key = term.toLowerCase(Locale.ENGLISH);
+
+		Map<String, List<Entry>> candidates;
+		if ("exact".equalsIgnoreCase(strategy)) {
+			List<Entry> entries = current.names.get(key);
+			candidates = entries == null ? Collections
+					.<String, List<Entry>> emptyMap() : Collections
+					.singletonMap(key, entries);
+		} else if ("left".equalsIgnoreCase(strategy)) {
+			// Names starting with the term sort right after it
+			candidates = current.names.subMap(key, key + Character.MAX_VALUE);
+		} else {
+			candidates = current.names;
+		}
+
+		boolean right = "right".equalsIgnoreCase(strategy);
+		for (Map.Entry<String, List<Entry>> candidate : candidates.entrySet()) {
+			if (right ? !candidate.getKey().endsWith(key) : !candidate
+					.getKey().contains(key)) {
+				continue;
+			}
+			for (Entry entry : candidate.getValue()) {
+				if (arrayName == null
+						|| arrayName.equals(entry.getArray().getName())) {
+					matches.add(entry);
+				}
+			}
+		}
+		return matches;
+	}
+
+	/**
+	 * An array, attribute or dimension in the index
+	 */
+	public static class Entry {
+		private final CachedArray array;
+		private final String name;
+		private final SciDBDataType dataType;
+
+		private Entry(CachedArray array, String name, SciDBDataType dataType) {
+			this.array = array;
+			this.name = name;
+			this.dataType = dataType;
+		}
+
+		/**
+		 * Returns the array the entry is, or belongs to
+		 *
+		 * @return Array
+		 */
+		public CachedArray getArray() {
+			return array;
+		}
+
+		/**
+		 * Returns the name of the array, attribute or dimension
+		 *
+		 * @return Name
+		 */
+		public String getName() {
+			return name;
+		}
+
+		/**
+		 * Returns whether the entry is an array, attribute or dimension
+		 *
+		 * @return Data type
+		 */
+		public SciDBDataType getDataType() {
+			return dataType;
+		}
+	}
+
+	private static class ArrayEntries {
+		private final String version;
+		private final List<Entry> entries = new ArrayList<Entry>();
+
+		private ArrayEntries(CachedArray array) {
+			this.version = array.getVersion();
+			entries.add(new Entry(array, array.getName(), SciDBDataType.ARRAY));
+			SciDBSchema schema;
+			try {
+				schema = array.getSchema();
+			} catch (IllegalArgumentException e) {
+				logger.warning("Indexing " + array.getName()
+						+ " without its schema: " + e.getMessage());
+				return;
+			}
+			for (String attributeName : schema.getAttributeTypes().keySet()) {
+				entries.add(new Entry(array, attributeName,
+						SciDBDataType.ATTRIBUTE));
+			}
+			for (String dimensionName : schema.getDimensionNames()) {
+				entries.add(new Entry(array, dimensionName,
+						SciDBDataType.DIMENSION));
+			}
+		}
+	}
+
+	private static class Snapshot {
+		private final Map<String, CachedArray> arrays;
+		private final Map<String, ArrayEntries> arrayEntries;
+		private final TreeMap<String, List<Entry>> names = new TreeMap<String, List<Entry>>();
+		private final long refreshed = System.currentTimeMillis();
+
+		private Snapshot(Map<String, CachedArray> arrays,
+				Map<String, ArrayEntries> arrayEntries) {
+			this.arrays = arrays;
+			this.arrayEntries = arrayEntries;
+			for (ArrayEntries entries : arrayEntries.values()) {
+				for (Entry entry : entries.entries) {
+					String key = entry.getName().toLowerCase(Locale.ENGLISH);
+					List<Entry> named = names.get(key);
+					if (named == null) {
+						named = new ArrayList<Entry>();
+						names.put(key, named);
+					}
+					named.add(entry);
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,372 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.http.client.HttpClient;
+
+import edu.harvard.hms.dbmi.bd2k.irct.exception.ResourceInterfaceException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.security.SecureSession;
+import edu.harvard.hms.dbmi.scidb.SciDB;
+
+/**
+ * A bounded pool of SciDB shim sessions. Idle sessions are kept per user and
+ * token, since the HTTP client of a session carries the token it was
+ * connected with, and are reused by later requests with the same token
+ * instead of connecting again. Sessions of a token that is no longer used
+ * stay idle until they are closed.
+ * <p>
+ * A session is either idle, borrowed for the duration of a request, or held
+ * for a result that has not been collected yet. The number of open sessions
+ * and the number of borrowed and held sessions of each user are capped;
+ * callers wait for a session up to a timeout. Idle sessions are checked
+ * before they are handed out if they have not been used for a while, and
+ * {@link #reap()} closes idle sessions and returns held sessions that have
+ * been kept too long.
+ *
+ */
+public class SciDBSessionPool {
+	private static final long VALIDATION_INTERVAL = 30000;
+
+	private final SciDBResourceImplementation resource;
+	private final String resourceURL;
+	private final int maxSessions;
+	private final int maxUserSessions;
+	private final long acquireTimeout;
+	private final long idleTimeout;
+	private final long resultTimeout;
+
+	// Keyed by user and token
+	private final Map<String, Deque<PooledSession>> idleSessions = new HashMap<String, Deque<PooledSession>>();
+	private final Map<String, Integer> userSessions = new HashMap<String, Integer>();
+	private final Map<String, PooledSession> heldSessions = new LinkedHashMap<String, PooledSession>();
+	private int openSessions;
+
+	/**
+	 * Creates a session pool
+	 *
+	 * @param resource
+	 *            Resource whose clients are used to connect
+	 * @param resourceURL
+	 *            URL of the shim
+	 * @param maxSessions
+	 *            Maximum number of open sessions
+	 * @param maxUserSessions
+	 *            Maximum number of borrowed and held sessions of a user
+	 * @param acquireTimeout
+	 *            Time to wait for a session in milliseconds
+	 * @param idleTimeout
+	 *            Time after which an idle session is closed in milliseconds
+	 * @param resultTimeout
+	 *            Time after which a held session is reaped in milliseconds
+	 */
+	public SciDBSessionPool(SciDBResourceImplementation resource,
+			String resourceURL, int maxSessions, int maxUserSessions,
+			long acquireTimeout, long idleTimeout, long resultTimeout) {
+		this.resource = resource;
+		this.resourceURL = resourceURL;
+		this.maxSessions = maxSessions;
+		this.maxUserSessions = maxUserSessions;
+		this.acquireTimeout = acquireTimeout;
+		this.idleTimeout = idleTimeout;
+		this.resultTimeout = resultTimeout;
+	}
+
+	/**
+	 * Returns the maximum number of borrowed and held sessions of a user
+	 *
+	 * @return Session count
+	 */
+	public int getMaxUserSessions() {
+		return maxUserSessions;
+	}
+
+	/**
+	 * Borrows a session for the user, connecting a new one if the user has
+	 * no idle session
+	 *
+	 * @param session
+	 *            Session of the user
+	 * @return Pooled session
+	 * @throws ResourceInterfaceException
+	 *             No session became available in time
+	 */
+	public PooledSession acquire(SecureSession session)
+			throws ResourceInterfaceException {
+		String user = getUserName(session);
+		String key = user + "|" + getToken(session);
+		long deadline = System.currentTimeMillis() + acquireTimeout;
+
+		while (true) {
+			PooledSession pooledSession = null;
+			PooledSession evicted = null;
+			synchronized (this) {
+				while (true) {
+					Deque<PooledSession> idle = idleSessions.get(key);
+					if (idle != null && !idle.isEmpty()
+							&& countUserSessions(user) < maxUserSessions) {
+						pooledSession = idle.pollFirst();
+						break;
+					}
+					if (countUserSessions(user) < maxUserSessions) {
+						if (openSessions < maxSessions) {
+							openSessions++;
+							break;
+						}
+						// Make room by closing the session idle the longest
+						evicted = removeEldestIdle();
+						if (evicted != null) {
+							break;
+						}
+					}
+
+					long wait = deadline - System.currentTimeMillis();
+					if (wait <= 0) {
+						throw new ResourceInterfaceException(
+								"No SciDB session available for " + user);
+					}
+					try {
+						wait(wait);
+					} catch (InterruptedException e) {
+						Thread.currentThread().interrupt();
+						throw new ResourceInterfaceException(
+								"Interrupted while waiting for a SciDB session");
+					}
+				}
+				userSessions.put(user, countUserSessions(user) + 1);
+			}
+
+			if (evicted != null) {
+				evicted.getSciDB().close();
+			}
+
+			if (pooledSession == null) {
+				try {
+					HttpClient client = resource.createClient(session);
+					SciDB sciDB = new SciDB();
+					sciDB.connect(client, resourceURL);
+					return new PooledSession(user, key, client, sciDB);
+				} catch (RuntimeException e) {
+					free(user);
+					throw e;
+				}
+			}
+
+			if (System.currentTimeMillis() - pooledSession.lastUsed < VALIDATION_INTERVAL
+					|| isHealthy(pooledSession)) {
+				return pooledSession;
+			}
+			discard(pooledSession);
+		}
+	}
+
+	/**
+	 * Returns a borrowed session to the pool
+	 *
+	 * @param pooledSession
+	 *            Pooled session
+	 */
+	public void release(PooledSession pooledSession) {
+		if (pooledSession == null) {
+			return;
+		}
+		synchronized (this) {
+			pooledSession.lastUsed = System.currentTimeMillis();
+			Deque<PooledSession> idle = idleSessions.get(pooledSession.key);
+			if (idle == null) {
+				idle = new ArrayDeque<PooledSession>();
+				idleSessions.put(pooledSession.key, idle);
+			}
+			idle.addFirst(pooledSession);
+			decrementUserSessions(pooledSession.user);
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Closes a borrowed session that must not be reused
+	 *
+	 * @param pooledSession
+	 *            Pooled session
+	 */
+	public void discard(PooledSession pooledSession) {
+		if (pooledSession == null) {
+			return;
+		}
+		pooledSession.getSciDB().close();
+		free(pooledSession.user);
+	}
+
+	/**
+	 * Keeps a borrowed session open until the result it computed is claimed
+	 *
+	 * @param resultId
+	 *            Id of the result
+	 * @param pooledSession
+	 *            Pooled session
+	 */
+	public synchronized void hold(String resultId, PooledSession pooledSession) {
+		pooledSession.lastUsed = System.currentTimeMillis();
+		heldSessions.put(resultId, pooledSession);
+	}
+
+	/**
+	 * Takes back the session held for a result. The session is borrowed by
+	 * the caller afterwards.
+	 *
+	 * @param resultId
+	 *            Id of the result
+	 * @return Pooled session, or null if no session is held for the result
+	 */
+	public synchronized PooledSession claim(String resultId) {
+		return heldSessions.remove(resultId);
+	}
+
+	/**
+	 * Closes the sessions that have been idle too long, and returns the
+	 * sessions that have been held too long. The returned sessions are
+	 * borrowed by the caller, which must clean up their results and discard
+	 * them.
+	 *
+	 * @return Expired held sessions by result id
+	 */
+	public Map<String, PooledSession> reap() {
+		long now = System.currentTimeMillis();
+		Map<String, PooledSession> expired = new LinkedHashMap<String, PooledSession>();
+		List<PooledSession> closed = new ArrayList<PooledSession>();
+
+		synchronized (this) {
+			Iterator<Map.Entry<String, PooledSession>> heldIterator = heldSessions
+					.entrySet().iterator();
+			while (heldIterator.hasNext()) {
+				Map.Entry<String, PooledSession> held = heldIterator.next();
+				if (now - held.getValue().lastUsed > resultTimeout) {
+					expired.put(held.getKey(), held.getValue());
+					heldIterator.remove();
+				}
+			}
+
+			Iterator<Deque<PooledSession>> idleSessionsIterator = idleSessions
+					.values().iterator();
+			while (idleSessionsIterator.hasNext()) {
+				Deque<PooledSession> idle = idleSessionsIterator.next();
+				Iterator<PooledSession> idleIterator = idle.iterator();
+				while (idleIterator.hasNext()) {
+					PooledSession pooledSession = idleIterator.next();
+					if (now - pooledSession.lastUsed > idleTimeout) {
+						closed.add(pooledSession);
+						idleIterator.remove();
+						openSessions--;
+					}
+				}
+				// Tokens are replaced over time, so their entries are dropped
+				if (idle.isEmpty()) {
+					idleSessionsIterator.remove();
+				}
+			}
+			if (!closed.isEmpty()) {
+				notifyAll();
+			}
+		}
+
+		for (PooledSession pooledSession : closed) {
+			pooledSession.getSciDB().close();
+		}
+		return expired;
+	}
+
+	private boolean isHealthy(PooledSession pooledSession) {
+		try {
+			return !pooledSession
+					.getSciDB()
+					.executeQuery(new SciDBAFLCommand("list('instances')"),
+							"csv").contains("Exception");
+		} catch (Exception e) {
+			return false;
+		}
+	}
+
+	private synchronized void free(String user) {
+		decrementUserSessions(user);
+		openSessions--;
+		notifyAll();
+	}
+
+	private PooledSession removeEldestIdle() {
+		Deque<PooledSession> eldestIdle = null;
+		for (Deque<PooledSession> idle : idleSessions.values()) {
+			if (!idle.isEmpty()
+					&& (eldestIdle == null || idle.peekLast().lastUsed < eldestIdle
+							.peekLast().lastUsed)) {
+				eldestIdle = idle;
+			}
+		}
+		return eldestIdle == null ? null : eldestIdle.pollLast();
+	}
+
+	private int countUserSessions(String user) {
+		Integer count = userSessions.get(user);
+		return count == null ? 0 : count;
+	}
+
+	private void decrementUserSessions(String user) {
+		int count = countUserSessions(user) - 1;
+		if (count > 0) {
+			userSessions.put(user, count);
+		} else {
+			userSessions.remove(user);
+		}
+	}
+
+	private String getUserName(SecureSession session) {
+		if (session == null || session.getUser() == null
+				|| session.getUser().getName() == null) {
+			return "";
+		}
+		return session.getUser().getName();
+	}
+
+	private String getToken(SecureSession session) {
+		if (session == null || session.getToken() == null) {
+			return "";
+		}
+		return session.getToken().toString();
+	}
+
+	/**
+	 * A SciDB session with the HTTP client it was connected with
+	 */
+	public static class PooledSession {
+		private final String user;
+		private final String key;
+		private final HttpClient client;
+		private final SciDB sciDB;
+		private long lastUsed;
+
+		private PooledSession(String user, String key, HttpClient client,
+				SciDB sciDB) {
+			this.user = user;
+			this.key = key;
+			this.client = client;
+			this.sciDB = sciDB;
+			this.lastUsed = System.currentTimeMillis();
+		}
+
+		public HttpClient getClient() {
+			return client;
+		}
+
+		public SciDB getSciDB() {
+			return sciDB;
+		}
+	}
+}
@@ -0,0 +1,130 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URLEncoder;
+
+import org.apache.http.HttpEntity;
+import org.apache.http.HttpResponse;
+import org.apache.http.client.HttpClient;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.client.methods.HttpUriRequest;
+import org.apache.http.util.EntityUtils;
+
+/**
+ * Calls to the SciDB shim endpoints that are not exposed by the SciDB client
+ *
+ */
+public class SciDBShim {
+	private final HttpClient client;
+	private final String resourceURL;
+
+	/**
+	 * Creates a shim client
+	 *
+	 * @param client
+	 *            HTTP client of the current session
+	 * @param resourceURL
+	 *            URL of the shim
+	 */
+	public SciDBShim(HttpClient client, String resourceURL) {
+		this.client = client;
+		this.resourceURL = resourceURL;
+	}
+
+	/**
+	 * Returns the saved output of the last query of a shim session in the
+	 * SciDB binary format
+	 *
+	 * @param sessionId
+	 *            Shim session id
+	 * @return Binary output
+	 * @throws IOException
+	 *             An error occurred requesting the output
+	 */
+	public InputStream readBytes(String sessionId) throws IOException {
+		return get("/read_bytes?id=" + encode(sessionId) + "&n=0")
+				.getEntity().getContent();
+	}
+
+	/**
+	 * Runs an AFL statement in a shim session without saving its output, and
+	 * waits for it to complete
+	 *
+	 * @param sessionId
+	 *            Shim session id
+	 * @param afl
+	 *            AFL statement
+	 * @return Query id
+	 * @throws IOException
+	 *             An error occurred running the statement
+	 */
+	public String execute(String sessionId, String afl) throws IOException {
+		HttpResponse response = get("/execute_query?id=" + encode(sessionId)
+				+ "&query=" + encode(afl));
+		return EntityUtils.toString(response.getEntity()).trim();
+	}
+
+	/**
+	 * Cancels the query running in a shim session
+	 *
+	 * @param sessionId
+	 *            Shim session id
+	 * @throws IOException
+	 *             An error occurred cancelling the query
+	 */
+	public void cancel(String sessionId) throws IOException {
+		EntityUtils.consume(get("/cancel?id=" + encode(sessionId))
+				.getEntity());
+	}
+
+	/**
+	 * Uploads data to a file on the SciDB server that can be read with
+	 * input() in the same shim session
+	 *
+	 * @param sessionId
+	 *            Shim session id
+	 * @param entity
+	 *            Data to upload
+	 * @return Path of the file on the server
+	 * @throws IOException
+	 *             An error occurred uploading the data
+	 */
+	public String upload(String sessionId, HttpEntity entity)
+			throws IOException {
+		HttpPost post = new HttpPost(resourceURL + "/upload?id="
+				+ encode(sessionId));
+		post.setEntity(entity);
+		if (entity.getContentType() != null) {
+			// Replaces the form content type the client sends by default
+			post.setHeader(entity.getContentType());
+		}
+		HttpResponse response = execute(post, "/upload");
+		return EntityUtils.toString(response.getEntity()).trim();
+	}
+
+	private HttpResponse get(String path) throws IOException {
+		return execute(new HttpGet(resourceURL + path),
+				path.substring(0, path.indexOf('?')));
+	}
+
+	private HttpResponse execute(HttpUriRequest request, String endpoint)
+			throws IOException {
+		HttpResponse response = client.execute(request);
+		int statusCode = response.getStatusLine().getStatusCode();
+		if (statusCode != 200) {
+			EntityUtils.consumeQuietly(response.getEntity());
+			throw new IOException("SciDB shim returned " + statusCode
+					+ " for " + endpoint);
+		}
+		return response;
+	}
+
+	private String encode(String value) throws IOException {
+		return URLEncoder.encode(value, "UTF-8");
+	}
+}
@@ -0,0 +1,96 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Keeps track of the arrays that result sets have been uploaded into. An
+ * uploaded array is kept as long as queries keep reading it, and expires
+ * once it has not been read for the time to live, independently of the
+ * session it was uploaded through.
+ * <p>
+ * Expired arrays must be removed from SciDB by the caller through
+ * {@link #drainExpired()}.
+ *
+ */
+public class SciDBUploadArrays {
+	private static final String ARRAY_PREFIX = "IRCT_UPLOAD_";
+
+	private final long timeToLive;
+	private final Map<String, Long> lastUsed = new HashMap<String, Long>();
+
+	/**
+	 * Creates an upload tracker
+	 *
+	 * @param timeToLive
+	 *            Time an uploaded array is kept after it was last read in
+	 *            milliseconds
+	 */
+	public SciDBUploadArrays(long timeToLive) {
+		this.timeToLive = timeToLive;
+	}
+
+	/**
+	 * Returns a new array name for an upload
+	 *
+	 * @return Array name
+	 */
+	public String createArrayName() {
+		return ARRAY_PREFIX + UUID.randomUUID().toString().replace('-', '_');
+	}
+
+	/**
+	 * Records an array that a result set has been uploaded into
+	 *
+	 * @param arrayName
+	 *            Array name
+	 */
+	public synchronized void add(String arrayName) {
+		lastUsed.put(arrayName, System.currentTimeMillis());
+	}
+
+	/**
+	 * Extends the lifetime of the uploaded arrays among the arrays read by a
+	 * query
+	 *
+	 * @param arrayNames
+	 *            Names of the arrays read by the query
+	 */
+	public synchronized void touch(Set<String> arrayNames) {
+		long now = System.currentTimeMillis();
+		for (String arrayName : arrayNames) {
+			if (lastUsed.containsKey(arrayName)) {
+				lastUsed.put(arrayName, now);
+			}
+		}
+	}
+
+	/**
+	 * Returns the uploaded arrays that have not been read for the time to
+	 * live, and forgets them
+	 *
+	 * @return Array names
+	 */
+	public synchronized List<String> drainExpired() {
+		long expired = System.currentTimeMillis() - timeToLive;
+		List<String> removed = new ArrayList<String>();
+		Iterator<Map.Entry<String, Long>> iterator = lastUsed.entrySet()
+				.iterator();
+		while (iterator.hasNext()) {
+			Map.Entry<String, Long> upload = iterator.next();
+			if (upload.getValue() < expired) {
+				removed.add(upload.getKey());
+				iterator.remove();
+			}
+		}
+		return removed;
+	}
+}
@@ -0,0 +1,284 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.apache.http.entity.AbstractHttpEntity;
+
+import edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.exception.ResultSetException;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.Column;
+import edu.harvard.hms.dbmi.bd2k.irct.model.result.tabular.ResultSet;
+
+/**
+ * Streams the rows of a result set to the SciDB shim as the body of an
+ * upload, in either the tsv format or the SciDB binary format. Rows are
+ * written as they are read from the result set and sent with chunked
+ * transfer encoding, so the result set is never held in memory. Every column
+ * becomes a nullable attribute of a one dimensional array, and the schema
+ * and input format to load the upload with are available from the entity.
+ *
+ */
+public class SciDBUploadEntity extends AbstractHttpEntity {
+	private static final int BUFFER_SIZE = 65536;
+
+	private final ResultSet resultSet;
+	private final boolean binary;
+	private final String[] attributeNames;
+	private final PrimitiveDataType[] dataTypes;
+	private long rowCount;
+
+	/**
+	 * Creates an upload of a result set
+	 *
+	 * @param resultSet
+	 *            Result set
+	 * @param binary
+	 *            Use the binary format instead of tsv
+	 */
+	public SciDBUploadEntity(ResultSet resultSet, boolean binary) {
+		this.resultSet = resultSet;
+		this.binary = binary;
+
+		Column[] columns = resultSet.getColumns();
+		this.attributeNames = new String[columns.length];
+		this.dataTypes = new PrimitiveDataType[columns.length];
+		Set<String> usedNames = new HashSet<String>();
+		for (int columni = 0; columni < columns.length; columni++) {
+			String attributeName = toAttributeName(columns[columni].getName());
+			while (!usedNames.add(attributeName)) {
+				attributeName = attributeName + "_" + columni;
+			}
+			attributeNames[columni] = attributeName;
+			dataTypes[columni] = columns[columni].getDataType();
+		}
+
+		setChunked(true);
+		setContentType(binary ? "application/octet-stream"
+				: "text/tab-separated-values");
+	}
+
+	/**
+	 * Returns the schema of the array the upload is loaded into
+	 *
+	 * @return Schema
+	 */
+	public String getSchema() {
+		StringBuilder schema = new StringBuilder("<");
+		for (int columni = 0; columni < attributeNames.length; columni++) {
+			if (columni != 0) {
+				schema.append(", ");
+			}
+			schema.append(attributeNames[columni]).append(':')
+					.append(getType(columni)).append(" NULL");
+		}
+		return schema.append(">[row=0:*,1000000,0]").toString();
+	}
+
+	/**
+	 * Returns the format argument of input() for the upload
+	 *
+	 * @return Input format
+	 */
+	public String getFormat() {
+		if (!binary) {
+			return "tsv";
+		}
+		StringBuilder template = new StringBuilder("(");
+		for (int columni = 0; columni < attributeNames.length; columni++) {
+			if (columni != 0) {
+				template.append(',');
+			}
+			template.append(getType(columni)).append(" null");
+		}
+		return template.append(')').toString();
+	}
+
+	/**
+	 * Returns the number of rows written by the upload
+	 *
+	 * @return Row count
+	 */
+	public long getRowCount() {
+		return rowCount;
+	}
+
+	@Override
+	public void writeTo(OutputStream outputStream) throws IOException {
+		OutputStream bufferedStream = new BufferedOutputStream(outputStream,
+				BUFFER_SIZE);
+		ByteBuffer buffer = ByteBuffer.allocate(9).order(
+				ByteOrder.LITTLE_ENDIAN);
+		StringBuilder line = new StringBuilder();
+		rowCount = 0;
+
+		try {
+			resultSet.beforeFirst();
+			while (resultSet.next()) {
+				if (binary) {
+					for (int columni = 0; columni < dataTypes.length; columni++) {
+						writeBinaryValue(bufferedStream, buffer, columni);
+					}
+				} else {
+					line.setLength(0);
+					for (int columni = 0; columni < dataTypes.length; columni++) {
+						if (columni != 0) {
+							line.append('\t');
+						}
+						appendTSVValue(line, resultSet.getString(columni));
+					}
+					line.append('\n');
+					bufferedStream.write(line.toString().getBytes(
+							StandardCharsets.UTF_8));
+				}
+				rowCount++;
+			}
+		} catch (ResultSetException e) {
+			throw new IOException(e.getMessage(), e);
+		}
+		bufferedStream.flush();
+	}
+
+	private void writeBinaryValue(OutputStream outputStream,
+			ByteBuffer buffer, int column) throws IOException,
+			ResultSetException {
+		String value = resultSet.getString(column);
+		buffer.clear();
+		if (value == null) {
+			// Missing reason 0 followed by an empty value of the type
+			buffer.put((byte) 0);
+			switch (getType(column)) {
+			case "int32":
+				buffer.putInt(0);
+				break;
+			case "int64":
+			case "double":
+				buffer.putLong(0);
+				break;
+			case "bool":
+				buffer.put((byte) 0);
+				break;
+			default:
+				buffer.putInt(1).put((byte) 0);
+			}
+			outputStream.write(buffer.array(), 0, buffer.position());
+			return;
+		}
+
+		buffer.put((byte) -1);
+		switch (getType(column)) {
+		case "int32":
+			buffer.putInt(resultSet.getInt(column));
+			break;
+		case "int64":
+			buffer.putLong(resultSet.getLong(column));
+			break;
+		case "double":
+			buffer.putDouble(resultSet.getDouble(column));
+			break;
+		case "bool":
+			buffer.put((byte) (resultSet.getBoolean(column) ? 1 : 0));
+			break;
+		default:
+			byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+			buffer.putInt(bytes.length + 1);
+			outputStream.write(buffer.array(), 0, buffer.position());
+			outputStream.write(bytes);
+			outputStream.write(0);
+			return;
+		}
+		outputStream.write(buffer.array(), 0, buffer.position());
+	}
+
+	private void appendTSVValue(StringBuilder line, String value) {
+		if (value == null) {
+			line.append("\\N");
+			return;
+		}
+		for (int chari = 0; chari < value.length(); chari++) {
+			char character = value.charAt(chari);
+			switch (character) {
+			case '\t':
+				line.append("\\t");
+				break;
+			case '\n':
+				line.append("\\n");
+				break;
+			case '\r':
+				line.append("\\r");
+				break;
+			case '\\':
+				line.append("\\\\");
+				break;
+			default:
+				line.append(character);
+			}
+		}
+	}
+
+	private String getType(int column) {
+		if (dataTypes[column] == null) {
+			return "string";
+		}
+		switch (dataTypes[column]) {
+		case INTEGER:
+			return "int32";
+		case LONG:
+			return "int64";
+		case FLOAT:
+		case DOUBLE:
+			return "double";
+		case BOOLEAN:
+			return "bool";
+		default:
+			return "string";
+		}
+	}
+
+	private static String toAttributeName(String columnName) {
+		StringBuilder attributeName = new StringBuilder();
+		String name = columnName == null ? "" : columnName.trim();
+		for (int chari = 0; chari < name.length(); chari++) {
+			char character = name.charAt(chari);
+			attributeName
+					.append((character < 128 && Character
+							.isLetterOrDigit(character)) ? character : '_');
+		}
+		if (attributeName.length() == 0
+				|| Character.isDigit(attributeName.charAt(0))) {
+			attributeName.insert(0, "c_");
+		}
+		return attributeName.toString();
+	}
+
+	@Override
+	public boolean isRepeatable() {
+		return false;
+	}
+
+	@Override
+	public long getContentLength() {
+		return -1;
+	}
+
+	@Override
+	public InputStream getContent() {
+		throw new UnsupportedOperationException(
+				"The upload can only be written to a stream");
+	}
+
+	@Override
+	public boolean isStreaming() {
+		return false;
+	}
+}
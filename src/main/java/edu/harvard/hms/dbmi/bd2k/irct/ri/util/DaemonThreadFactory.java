@@ -0,0 +1,36 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.util;
+
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Creates named daemon threads for the background work of a resource
+ * implementation so that it never keeps the application server from shutting
+ * down.
+ * 
+ */
+public class DaemonThreadFactory implements ThreadFactory {
+	private final String prefix;
+	private final AtomicInteger threadCount = new AtomicInteger();
+
+	/**
+	 * Creates a thread factory that names its threads after the given prefix
+	 * 
+	 * @param prefix
+	 *            Thread name prefix
+	 */
+	public DaemonThreadFactory(String prefix) {
+		this.prefix = prefix;
+	}
+
+	@Override
+	public Thread newThread(Runnable runnable) {
+		Thread thread = new Thread(runnable, prefix + "-"
+				+ threadCount.incrementAndGet());
+		thread.setDaemon(true);
+		return thread;
+	}
+}
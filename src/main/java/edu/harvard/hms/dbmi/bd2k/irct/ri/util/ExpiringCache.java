@@ -0,0 +1,103 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.util;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A thread safe in memory cache whose entries expire after a fixed time to
+ * live. Once the cache holds the maximum number of entries the least recently
+ * used entry is evicted.
+ *
+ * @param <K>
+ *            Key type
+ * @param <V>
+ *            Value type
+ */
+public class ExpiringCache<K, V> {
+	private final long timeToLive;
+	private final LinkedHashMap<K, CacheEntry<V>> entries;
+
+	/**
+	 * Creates a cache
+	 *
+	 * @param maxEntries
+	 *            Maximum number of entries held by the cache
+	 * @param timeToLive
+	 *            Time to live of an entry in milliseconds
+	 */
+	public ExpiringCache(final int maxEntries, long timeToLive) {
+		this.timeToLive = timeToLive;
+		this.entries = new LinkedHashMap<K, CacheEntry<V>>(16, 0.75f, true) {
+			private static final long serialVersionUID = 1L;
+
+			@Override
+			protected boolean removeEldestEntry(
+					Map.Entry<K, CacheEntry<V>> eldest) {
+				return size() > maxEntries;
+			}
+		};
+	}
+
+	/**
+	 * Returns the value stored for the key, or null if there is no value or
+	 * it has expired
+	 *
+	 * @param key
+	 *            Key
+	 * @return Value
+	 */
+	public synchronized V get(K key) {
+		CacheEntry<V> entry = entries.get(key);
+		if (entry == null) {
+			return null;
+		}
+		if (entry.expires < System.currentTimeMillis()) {
+			entries.remove(key);
+			return null;
+		}
+		return entry.value;
+	}
+
+	/**
+	 * Stores a value for the key
+	 *
+	 * @param key
+	 *            Key
+	 * @param value
+	 *            Value
+	 */
+	public synchronized void put(K key, V value) {
+		entries.put(key, new CacheEntry<V>(value, System.currentTimeMillis()
+				+ timeToLive));
+	}
+
+	/**
+	 * Removes the value stored for the key
+	 *
+	 * @param key
+	 *            Key
+	 */
+	public synchronized void remove(K key) {
+		entries.remove(key);
+	}
+
+	/**
+	 * Removes all the values from the cache
+	 */
+	public synchronized void clear() {
+		entries.clear();
+	}
+
+	private static class CacheEntry<V> {
+		private final V value;
+		private final long expires;
+
+		private CacheEntry(V value, long expires) {
+			this.value = value;
+			this.expires = expires;
+		}
+	}
+}
@@ -12,6 +12,7 @@ set @filterId = (select IF(id is NULL,0,max(id)) from PredicateType) + 1;
 
 -- SET THE SELECT OPERATIONS
 set @aggregateId = (select IF(id is NULL,0,max(id)) from SelectOperationType) + 1;
+set @explainId = @aggregateId + 1;
 
 
 -- SET THE JOIN OPERATIONS
@@ -20,6 +21,9 @@ set @crossJoinID = (select IF(id is NULL,0,max(id)) from JoinType) + 1;
 -- SET THE SORT OPERATION
 set @sortId = (select IF(id is NULL,0,max(id)) from SortOperationType) + 1;
 
+-- SET THE UPLOAD PROCESS
+set @uploadId = (select IF(id is NULL,0,max(id)) from ProcessType) + 1;
+
 -- SET THE FIELDS
 set @filter_OperatorId = (select IF(id is NULL,0,max(id)) from Field) + 1;
 set @filter_ValueId = @filter_operatorId + 1;
@@ -39,6 +43,11 @@ set @lowBound_BetweenId = @sort_Direction_Id + 1;
 set @highBound_BetweenId = @lowBound_BetweenId + 1;
 set @betweenId = @highBound_BetweenId + 1;
 
+set @upload_ResultSet_Id = @betweenId + 1;
+set @upload_Format_Id = @upload_ResultSet_Id + 1;
+
+set @aggregate_CountAttribute_Id = @upload_Format_Id + 1;
+
 
 
 
@@ -127,8 +136,19 @@ insert into Field_dataTypes(Field_id, dataTypes) values(@aggregate_Dimension_Id,
 insert into Field_dataTypes(Field_id, dataTypes) values(@aggregate_Dimension_Id, 'edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType:ARRAY');
 insert into SelectOperationType_Field(SelectOperationType_id, fields_id) values(@aggregateId, @aggregate_Dimension_Id);
 
+insert into Field(id, description, name, path, relationship, required) values(@aggregate_CountAttribute_Id, 'Count the non-null values of the attribute instead of the cells', 'Count Attribute', 'COUNTATTRIBUTE', null, 0);
+insert into Field_permittedValues(Field_Id, permittedValues) values(@aggregate_CountAttribute_Id, 'TRUE');
+insert into Field_permittedValues(Field_Id, permittedValues) values(@aggregate_CountAttribute_Id, 'FALSE');
+insert into SelectOperationType_Field(SelectOperationType_id, fields_id) values(@aggregateId, @aggregate_CountAttribute_Id);
+
 insert into Resource_SelectOperationType(Resource_Id, supportedSelectOperations_id) values(@resourceId, @aggregateId);
 
+-- INSERT Select Explain Operation
+insert into SelectOperationType(id, name, displayName, description) values(@explainId, 'EXPLAIN', 'Explain', 'Returns the compiled AFL and the estimated dimension ranges, cells and chunks read instead of running the query');
+insert into SelectOperationType_dataTypes(SelectOperationType_id, dataTypes) values(@explainId, 'edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBDataType:ARRAY');
+
+insert into Resource_SelectOperationType(Resource_Id, supportedSelectOperations_id) values(@resourceId, @explainId);
+
 -- INSERT THE Cross Join
 insert into JoinType(id, description, displayName, name) values(@crossJoinID, 'Performs a cross-product join with equality predicates.', 'Cross Join', 'CROSSJOIN');
 insert into JoinType_dataTypes(JoinType_id, dataTypes) values(@crossJoinID, 'edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBDataType:ATTRIBUTE');
@@ -165,3 +185,17 @@ insert into Field_permittedValues(Field_id, permittedValues) values(@sort_Direct
 insert into SortOperationType_Field(SortOperationType_id, fields_id) values(@sortId, @sort_Direction_Id);
 
 insert into Resource_SortOperationType(Resource_id, supportedSortOperations_id) values(@resourceId, @sortId);
+
+-- INSERT THE UPLOAD PROCESS
+insert into ProcessType(id, name, displayName, description) values(@uploadId, 'UPLOAD', 'Upload', 'Upload a result set into a temporary SciDB array that can be joined against');
+
+insert into Field(id, path, name, description, relationship, required) values(@upload_ResultSet_Id, 'RESULTSET', 'Result', 'Result Set', null, 1);
+insert into Field_dataTypes(Field_id, dataTypes) values(@upload_ResultSet_Id, 'edu.harvard.hms.dbmi.bd2k.irct.model.resource.PrimitiveDataType:RESULTSET');
+insert into ProcessType_Fields(ProcessType_id, fields_id) values(@uploadId, @upload_ResultSet_Id);
+
+insert into Field(id, path, name, description, relationship, required) values(@upload_Format_Id, 'FORMAT', 'Format', 'Upload Format', null, 0);
+insert into Field_permittedValues(Field_id, permittedValues) values(@upload_Format_Id, 'tsv');
+insert into Field_permittedValues(Field_id, permittedValues) values(@upload_Format_Id, 'binary');
+insert into ProcessType_Fields(ProcessType_id, fields_id) values(@uploadId, @upload_Format_Id);
+
+insert into Resource_ProcessType(Resource_id, supportedProcesses_id) values(@resourceId, @uploadId);
@@ -0,0 +1,111 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.exac;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class EXACVariantCacheTest {
+	private static final long TTL = 3600000;
+	private static final long MAX_SIZE = 64 * 1024 * 1024;
+
+	@Rule
+	public TemporaryFolder folder = new TemporaryFolder();
+
+	@Test
+	public void keysNameChromosomesTheSameWay() {
+		assertEquals(key("1-100-A-G"), key("chr1-100-A-G"));
+		assertEquals(key("MT-100-A-G"), key("chrM-100-A-G"));
+	}
+
+	@Test
+	public void keysTellContigsApart() {
+		// These contigs shared a key when contigs were hashed
+		assertNotEquals(key("GL000199.1-100-A-G"), key("GL000210.1-100-A-G"));
+		assertNotEquals(key("23-100-A-G"), key("X-100-A-G"));
+		assertNotEquals(key("0-100-A-G"), key("GL000199.1-100-A-G"));
+		assertNotEquals(key("1-100-A-G"), key("01-100-A-G"));
+	}
+
+	@Test
+	public void keysTellVariantsApart() {
+		assertNotEquals(key("1-100-A-G"), key("1-101-A-G"));
+		assertNotEquals(key("1-100-A-G"), key("1-100-A-GA"));
+		assertNotEquals(key("1-100-A-G"), key("1-100-A-N"));
+		assertNotEquals(key("1-100-A-G"),
+				EXACVariantCache.createKey("other", "1-100-A-G"));
+		assertNull(key("1-100-A"));
+		assertNull(key("1-x-A-G"));
+	}
+
+	@Test
+	public void keepsEntriesOfCollidingContigsApart() throws IOException {
+		EXACVariantCache cache = open();
+		cache.put(key("GL000199.1-100-A-G"), bytes("first"));
+		cache.put(key("GL000210.1-100-A-G"), bytes("second"));
+
+		assertArrayEquals(bytes("first"), cache.get(key("GL000199.1-100-A-G")));
+		assertArrayEquals(bytes("second"), cache.get(key("GL000210.1-100-A-G")));
+	}
+
+	@Test
+	public void reopensEntries() throws IOException {
+		EXACVariantCache cache = open();
+		cache.put(key("1-100-A-G"), bytes("value"));
+		long size = cache.getSize();
+
+		EXACVariantCache reopened = open();
+
+		assertArrayEquals(bytes("value"), reopened.get(key("1-100-A-G")));
+		assertEquals(size, reopened.getSize());
+		assertEquals(1, reopened.getEntryCount());
+	}
+
+	@Test
+	public void dropsTornEntryWhenReopened() throws IOException {
+		EXACVariantCache cache = open();
+		cache.put(key("1-100-A-G"), bytes("value"));
+		long size = cache.getSize();
+
+		// An entry cut short by a crash
+		FileOutputStream out = new FileOutputStream(new File(folder.getRoot(),
+				"variants-0.dat"), true);
+		out.write(new byte[] { 0, 0, 0, 40, 0, 9, 1 });
+		out.close();
+
+		EXACVariantCache reopened = open();
+		assertEquals(size, reopened.getSize());
+		assertEquals(size, new File(folder.getRoot(), "variants-0.dat")
+				.length());
+
+		reopened.put(key("2-200-C-T"), bytes("next"));
+		EXACVariantCache again = open();
+		assertArrayEquals(bytes("value"), again.get(key("1-100-A-G")));
+		assertArrayEquals(bytes("next"), again.get(key("2-200-C-T")));
+	}
+
+	private EXACVariantCache open() throws IOException {
+		return new EXACVariantCache(folder.getRoot(), TTL, MAX_SIZE);
+	}
+
+	private static ByteBuffer key(String variantId) {
+		return EXACVariantCache.createKey("variant", variantId);
+	}
+
+	private static byte[] bytes(String value) {
+		return value.getBytes(StandardCharsets.UTF_8);
+	}
+}
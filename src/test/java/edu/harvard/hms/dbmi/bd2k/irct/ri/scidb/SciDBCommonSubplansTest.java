@@ -0,0 +1,74 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+
+public class SciDBCommonSubplansTest {
+
+	@Test
+	public void sharesIdenticalSubplans() {
+		SciDBPlanNode first = filter("a");
+		SciDBPlanNode second = filter("a");
+		assertNotSame(first, second);
+
+		CrossJoin shared = (CrossJoin) new SciDBCommonSubplans()
+				.share(new CrossJoin(first, second, "i", "i"));
+
+		assertSame(shared.getLeft(), shared.getRight());
+	}
+
+	@Test
+	public void sharesSubplansAcrossPlans() {
+		SciDBCommonSubplans subplans = new SciDBCommonSubplans();
+		SciDBPlanNode first = subplans.share(filter("a"));
+
+		assertSame(first, subplans.share(filter("a")));
+		assertNotSame(first, subplans.share(filter("b")));
+	}
+
+	@Test
+	public void materializesRepeatedSubplans() {
+		LinkedHashMap<String, SciDBPlanNode> tempArrays = new LinkedHashMap<String, SciDBPlanNode>();
+
+		CrossJoin materialized = (CrossJoin) SciDBCommonSubplans.materialize(
+				new CrossJoin(filter("a"), filter("a"), "i", "i"), tempArrays);
+
+		assertEquals(1, tempArrays.size());
+		Map.Entry<String, SciDBPlanNode> tempArray = tempArrays.entrySet()
+				.iterator().next();
+		assertTrue(tempArray.getKey().startsWith("IRCT_SUBPLAN_"));
+		assertEquals(filter("a"), tempArray.getValue());
+		assertEquals(new Scan(tempArray.getKey()), materialized.getLeft());
+		assertEquals(new Scan(tempArray.getKey()), materialized.getRight());
+	}
+
+	@Test
+	public void leavesRepeatedScansAndSingleSubplans() {
+		LinkedHashMap<String, SciDBPlanNode> tempArrays = new LinkedHashMap<String, SciDBPlanNode>();
+		SciDBPlanNode plan = new CrossJoin(new CrossJoin(new Scan("a"),
+				new Scan("a"), "i", "i"), filter("b"), "i", "i");
+
+		assertSame(plan, SciDBCommonSubplans.materialize(plan, tempArrays));
+		assertTrue(tempArrays.isEmpty());
+	}
+
+	private static SciDBPlanNode filter(String arrayName) {
+		return new Filter(new Scan(arrayName), new Predicate(
+				new SciDBAFLCommand(arrayName + ".x > 1"), arrayName, "x"));
+	}
+}
@@ -0,0 +1,128 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBCostEstimator.Estimate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Aggregate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.AggregateCall;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Sort;
+
+public class SciDBCostEstimatorTest {
+
+	@Test
+	public void countsFullScan() {
+		Estimate estimate = estimate(new Scan("a"));
+
+		assertEquals(Long.valueOf(10000), estimate.getCells());
+		assertEquals(Long.valueOf(100), estimate.getChunks());
+		assertEquals(Arrays.asList("a"), estimate.getFullScans());
+		assertEquals(Arrays.asList("a[i=0:99, j=0:99]"), estimate.getRanges());
+	}
+
+	@Test
+	public void narrowsScanToBetweenBox() {
+		Estimate estimate = estimate(box(new Scan("a"), 0, 9, 0, 19));
+
+		assertEquals(Long.valueOf(200), estimate.getCells());
+		assertEquals(Long.valueOf(2), estimate.getChunks());
+		assertEquals(Collections.emptyList(), estimate.getFullScans());
+		assertEquals(Arrays.asList("a[i=0:9, j=0:19]"), estimate.getRanges());
+	}
+
+	@Test
+	public void intersectsNestedBoxes() {
+		Estimate estimate = estimate(box(box(new Scan("a"), 5, 50, 0, 99), 0,
+				9, 0, 9));
+
+		assertEquals(Arrays.asList("a[i=5:9, j=0:9]"), estimate.getRanges());
+		assertEquals(Long.valueOf(50), estimate.getCells());
+	}
+
+	@Test
+	public void keepsBoxThroughFilterProjectAndCrossJoin() {
+		SciDBPlanNode plan = box(new Project(new Filter(new CrossJoin(
+				new Scan("a"), new Scan("b"), "i", "i"), new Predicate(
+				new SciDBAFLCommand("x > 1"), "a", "x")), new String[] { "x" }),
+				0, 9, 0, 9);
+
+		Estimate estimate = estimate(plan);
+
+		assertEquals(Arrays.asList("a[i=0:9, j=0:9]", "b[i=0:99]"),
+				estimate.getRanges());
+		assertEquals(Arrays.asList("b"), estimate.getFullScans());
+		assertEquals(Long.valueOf(200), estimate.getCells());
+	}
+
+	@Test
+	public void dropsBoxAboveAggregate() {
+		SciDBPlanNode plan = box(new Aggregate(new Scan("a"),
+				Collections.singletonList(new AggregateCall(
+						SciDBAggregateFunction.COUNT, "a", "x", "n")),
+				Arrays.asList("i", "j")), 0, 9, 0, 9);
+
+		Estimate estimate = estimate(plan);
+
+		assertEquals(Long.valueOf(10000), estimate.getCells());
+		assertEquals(Arrays.asList("a"), estimate.getFullScans());
+	}
+
+	@Test
+	public void dropsBoxAboveSort() {
+		Estimate estimate = estimate(box(new Sort(new Scan("a"), "a", "x",
+				"asc"), 0, 9, 0, 9));
+
+		assertEquals(Long.valueOf(10000), estimate.getCells());
+		assertEquals(Arrays.asList("a"), estimate.getFullScans());
+	}
+
+	@Test
+	public void appliesBoxBelowAggregate() {
+		SciDBPlanNode plan = new Aggregate(box(new Scan("a"), 0, 9, 0, 9),
+				Collections.singletonList(new AggregateCall(
+						SciDBAggregateFunction.COUNT, "a", "x", "n")),
+				Collections.<String> emptyList());
+
+		assertEquals(Long.valueOf(100), estimate(plan).getCells());
+	}
+
+	@Test
+	public void unknownArrayHasNoCount() {
+		Estimate estimate = estimate(new Scan("c"));
+
+		assertNull(estimate.getCells());
+		assertNull(estimate.getChunks());
+		assertEquals(Arrays.asList("c[?]"), estimate.getRanges());
+	}
+
+	private static SciDBPlanNode box(SciDBPlanNode child, int lowI, int highI,
+			int lowJ, int highJ) {
+		return new Between(child, "a", new int[] { lowI, lowJ }, new int[] {
+				highI, highJ });
+	}
+
+	private static Estimate estimate(SciDBPlanNode plan) {
+		Map<String, CachedArray> arrays = new HashMap<String, CachedArray>();
+		arrays.put("a", new CachedArray("a", "1",
+				"a<x:int64>[i=0:99,10,0,j=0:99,10,0]"));
+		arrays.put("b", new CachedArray("b", "1", "b<z:string>[i=0:99,10,0]"));
+		return new SciDBCostEstimator(arrays).estimate(plan);
+	}
+}
@@ -0,0 +1,155 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Aggregate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.AggregateCall;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Sort;
+
+public class SciDBQueryOptimizerTest {
+	private static final Predicate A_X = predicate("a", "x");
+	private static final Predicate A_Y = predicate("a", "y");
+	private static final Predicate B_Z = predicate("b", "z");
+
+	@Test
+	public void mergesConsecutiveFilters() {
+		SciDBPlanNode plan = new Filter(new Filter(new Scan("a"), A_X), A_Y);
+
+		assertEquals(new Filter(new Scan("a"), Arrays.asList(A_X, A_Y)),
+				optimize(plan, null));
+	}
+
+	@Test
+	public void pushesFilterPredicatesBelowCrossJoin() {
+		Predicate both = new Predicate(new SciDBAFLCommand("a.x = b.z"),
+				null, null);
+		SciDBPlanNode plan = new Filter(new CrossJoin(new Scan("a"),
+				new Scan("b"), "i", "i"), Arrays.asList(A_X, B_Z, both));
+
+		assertEquals(new Filter(new CrossJoin(new Filter(new Scan("a"), A_X),
+				new Filter(new Scan("b"), B_Z), "i", "i"), both), optimize(
+				plan, null));
+	}
+
+	@Test
+	public void movesBetweenBelowFilterAndProject() {
+		SciDBPlanNode plan = new Between(new Project(new Filter(new Scan("a"),
+				A_X), new String[] { "x" }), "a", new int[] { 0 },
+				new int[] { 9 });
+
+		assertEquals(new Project(new Filter(new Between(new Scan("a"), "a",
+				new int[] { 0 }, new int[] { 9 }), A_X), new String[] { "x" }),
+				optimize(plan, null));
+	}
+
+	@Test
+	public void movesBetweenBelowCrossJoinWhenRightIsJoinedAway() {
+		Map<String, CachedArray> arrays = arrays();
+		SciDBPlanNode plan = new Between(new CrossJoin(new Scan("a"),
+				new Scan("b"), "i", "i"), "a", new int[] { 0, 0 }, new int[] {
+				9, 9 });
+
+		assertEquals(new CrossJoin(new Between(new Scan("a"), "a", new int[] {
+				0, 0 }, new int[] { 9, 9 }), new Scan("b"), "i", "i"),
+				optimize(plan, arrays));
+	}
+
+	@Test
+	public void keepsBetweenAboveCrossJoinWithoutSchemas() {
+		SciDBPlanNode plan = new Between(new CrossJoin(new Scan("a"),
+				new Scan("b"), "i", "i"), "a", new int[] { 0, 0 }, new int[] {
+				9, 9 });
+
+		assertEquals(plan, optimize(plan, null));
+	}
+
+	@Test
+	public void removesSortBelowSort() {
+		SciDBPlanNode plan = new Sort(new Sort(new Scan("a"), "a", "x", "asc"),
+				"a", "y", "desc");
+
+		assertEquals(new Sort(new Scan("a"), "a", "y", "desc"), optimize(plan,
+				null));
+	}
+
+	@Test
+	public void keepsSortBelowGroupedAggregate() {
+		SciDBPlanNode plan = new Aggregate(new Sort(new Scan("a"), "a", "x",
+				"asc"), Collections.singletonList(new AggregateCall(
+				SciDBAggregateFunction.COUNT, "a", "x", "n")),
+				Collections.singletonList("n"));
+
+		assertEquals(plan, optimize(plan, null));
+	}
+
+	@Test
+	public void removesSortBelowUngroupedAggregate() {
+		SciDBPlanNode plan = new Aggregate(new Sort(new Scan("a"), "a", "x",
+				"asc"), Collections.singletonList(new AggregateCall(
+				SciDBAggregateFunction.SUM, "a", "x", "total")),
+				Collections.<String> emptyList());
+
+		assertEquals(new Aggregate(new Scan("a"), Collections
+				.singletonList(new AggregateCall(SciDBAggregateFunction.SUM,
+						"a", "x", "total")), Collections.<String> emptyList()),
+				optimize(plan, null));
+	}
+
+	@Test
+	public void keepsSortBelowFirstValue() {
+		SciDBPlanNode plan = new Aggregate(new Sort(new Scan("a"), "a", "x",
+				"asc"), Collections.singletonList(new AggregateCall(
+				SciDBAggregateFunction.FIRST_VALUE, "a", "x", "first")),
+				Collections.<String> emptyList());
+
+		assertEquals(plan, optimize(plan, null));
+	}
+
+	@Test
+	public void projectsScanToAggregatedAttributes() {
+		SciDBPlanNode plan = new Aggregate(new Scan("a"),
+				Collections.singletonList(new AggregateCall(
+						SciDBAggregateFunction.SUM, "a", "x", "total")),
+				Collections.<String> emptyList());
+
+		assertEquals(new Aggregate(new Project(new Scan("a"),
+				new String[] { "x" }), Collections.singletonList(new AggregateCall(
+				SciDBAggregateFunction.SUM, "a", "x", "total")),
+				Collections.<String> emptyList()), optimize(plan, arrays()));
+	}
+
+	private static SciDBPlanNode optimize(SciDBPlanNode plan,
+			Map<String, CachedArray> arrays) {
+		return new SciDBQueryOptimizer(arrays).optimize(plan);
+	}
+
+	private static Predicate predicate(String arrayName, String attributeName) {
+		return new Predicate(new SciDBAFLCommand(arrayName + "."
+				+ attributeName + " > 1"), arrayName, attributeName);
+	}
+
+	private static Map<String, CachedArray> arrays() {
+		Map<String, CachedArray> arrays = new HashMap<String, CachedArray>();
+		arrays.put("a", new CachedArray("a", "1",
+				"a<x:int64,y:double>[i=0:99,10,0,j=0:99,10,0]"));
+		arrays.put("b", new CachedArray("b", "1", "b<z:string>[i=0:99,10,0]"));
+		return arrays;
+	}
+}
@@ -0,0 +1,63 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.Collections;
+import java.util.List;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Aggregate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.AggregateCall;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Between;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.CrossJoin;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Filter;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Predicate;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Project;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Scan;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBPlanNode.Sort;
+
+public class SciDBRangePartitionerTest {
+
+	@Test
+	public void supportsCellWisePlans() {
+		SciDBPlanNode plan = new Project(new Filter(new Between(new Scan("a"),
+				"a", new int[] { 0 }, new int[] { 9 }), new Predicate(
+				new SciDBAFLCommand("x > 1"), "a", "x")), new String[] { "x" });
+
+		assertTrue(SciDBRangePartitioner.supports(new Scan("a")));
+		assertTrue(SciDBRangePartitioner.supports(plan));
+	}
+
+	@Test
+	public void rejectsPlansComputedAcrossRanges() {
+		assertFalse(SciDBRangePartitioner.supports(null));
+		assertFalse(SciDBRangePartitioner.supports(new Sort(new Scan("a"),
+				"a", "x", "asc")));
+		assertFalse(SciDBRangePartitioner.supports(new Project(new CrossJoin(
+				new Scan("a"), new Scan("b"), "i", "i"), new String[] { "x" })));
+		assertFalse(SciDBRangePartitioner.supports(new Aggregate(new Scan("a"),
+				Collections.singletonList(new AggregateCall(
+						SciDBAggregateFunction.COUNT, "a", "x", "n")),
+				Collections.<String> emptyList())));
+	}
+
+	@Test
+	public void splitsIntoWholeChunks() {
+		SciDBRangePartitioner partitioner = SciDBRangePartitioner.create(
+				SciDBSchema.parse("a<x:int64>[i=0:99,10,0]"), null);
+
+		List<long[]> ranges = partitioner.split(3);
+
+		assertEquals(3, ranges.size());
+		assertArrayEquals(new long[] { 0, 39 }, ranges.get(0));
+		assertArrayEquals(new long[] { 40, 79 }, ranges.get(1));
+		assertArrayEquals(new long[] { 80, 99 }, ranges.get(2));
+	}
+}
@@ -0,0 +1,55 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNull;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+
+public class SciDBResultCacheTest {
+	private static final Set<String> INPUTS = Collections.singleton("a");
+
+	@Test
+	public void keysIgnoreInsignificantWhitespace() {
+		assertEquals(SciDBResultCache.createKey("alice", "filter(a, x > 1)",
+				INPUTS, arrays("1")), SciDBResultCache.createKey("alice",
+				"filter( a,x>1 )", INPUTS, arrays("1")));
+	}
+
+	@Test
+	public void keysDifferByUser() {
+		assertNotEquals(SciDBResultCache.createKey("alice", "scan(a)", INPUTS,
+				arrays("1")), SciDBResultCache.createKey("bob", "scan(a)",
+				INPUTS, arrays("1")));
+	}
+
+	@Test
+	public void keysDifferByArrayVersion() {
+		assertNotEquals(SciDBResultCache.createKey("alice", "scan(a)", INPUTS,
+				arrays("1")), SciDBResultCache.createKey("alice", "scan(a)",
+				INPUTS, arrays("2")));
+	}
+
+	@Test
+	public void unknownArraysAreNotCached() {
+		assertNull(SciDBResultCache.createKey("alice", "scan(b)",
+				Collections.singleton("b"), arrays("1")));
+		assertNull(SciDBResultCache.createKey("alice", "scan(a)", INPUTS, null));
+	}
+
+	private static Map<String, CachedArray> arrays(String version) {
+		Map<String, CachedArray> arrays = new HashMap<String, CachedArray>();
+		arrays.put("a", new CachedArray("a", version, "a<x:int64>[i=0:99,10,0]"));
+		return arrays;
+	}
+}
@@ -0,0 +1,50 @@
+/* This Source Code Form is subject to the terms of the Mozilla Public
+ * License, v. 2.0. If a copy of the MPL was not distributed with this
+ * file, You can obtain one at http://mozilla.org/MPL/2.0/. */
+package edu.harvard.hms.dbmi.bd2k.irct.ri.scidb;
+
+import static org.junit.Assert.assertEquals;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.junit.Test;
+
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBArrayCache.CachedArray;
+import edu.harvard.hms.dbmi.bd2k.irct.ri.scidb.SciDBSchemaIndex.Entry;
+
+public class SciDBSchemaIndexTest {
+
+	@Test
+	public void indexesAttributesAndDimensions() {
+		SciDBSchemaIndex index = index(new CachedArray("a", "1",
+				"a<x:int64>[i=0:99,10,0]"));
+
+		assertEquals(1, index.find("x", "exact", null).size());
+		assertEquals(SciDBDataType.DIMENSION, index.find("i", "exact", null)
+				.get(0).getDataType());
+	}
+
+	@Test
+	public void indexesNameOfArrayWithInvalidSchema() {
+		SciDBSchemaIndex index = index(new CachedArray("a", "1",
+				"a<x:int64>[i=0:99,10,0]"), new CachedArray("b", "1",
+				"not a schema"));
+
+		List<Entry> matches = index.find("b", "exact", null);
+		assertEquals(1, matches.size());
+		assertEquals(SciDBDataType.ARRAY, matches.get(0).getDataType());
+		assertEquals(1, index.find("x", "exact", null).size());
+	}
+
+	private static SciDBSchemaIndex index(CachedArray... arrays) {
+		Map<String, CachedArray> arrayMap = new HashMap<String, CachedArray>();
+		for (CachedArray array : arrays) {
+			arrayMap.put(array.getName(), array);
+		}
+		SciDBSchemaIndex index = new SciDBSchemaIndex();
+		index.refresh(arrayMap);
+		return index;
+	}
+}